@@ -0,0 +1,92 @@
+package base;
+
+import java.util.Arrays;
+
+/**
+ * AdaptiveOrder
+ * Order in which the predicates of a conjunction are tested, learned while it runs. For every predicate it counts the rows
+ * it was tested on, the rows that passed and the cost spent, in any unit as long as it's the same for all of them.
+ * Every WINDOW rows entering the conjunction, predicates are sorted by cost per row / share of rows rejected, so the cheap ones
+ * that reject most go first, and the counts are halved, so that what was seen long ago counts less and less.
+ * A predicate that was not tested in a window keeps the rank it had, at first all ranks are 0 and the order is the given one.
+ * An order is used by one thread.
+ *
+ * @author Enze Zhou ez242
+ */
+public final class AdaptiveOrder {
+
+	public static final int WINDOW = 4096;		// Number of rows between two reorderings.
+
+	private final Integer [] sorting;			// Ids of the predicates, sorted by rank.
+	private final int [] order;					// Ids of the predicates in the order to test them.
+	private final long [] tested;				// Rows each predicate was tested on.
+	private final long [] passed;				// Rows that passed each predicate.
+	private final double [] cost;				// Cost spent on each predicate.
+	private final double [] rank;				// Rank of each predicate at the last reordering, smaller first.
+	private long rows = 0;						// Rows entering the conjunction since the last reordering.
+
+	/**
+	 * Constructor.
+	 * @param size
+	 * 		number of predicates, tested in the order of their ids at first.
+	 */
+	public AdaptiveOrder(int size) {
+		sorting = new Integer [size];
+		order = new int [size];
+		for (int i = 0; i < size; ++i)
+			sorting[i] = order[i] = i;
+		tested = new long [size];
+		passed = new long [size];
+		cost = new double [size];
+		rank = new double [size];
+	}
+
+	/**
+	 * Get the order to test the predicates in. The array is only changed by endRows.
+	 * @return ids of the predicates.
+	 */
+	public int [] order() {
+		return order;
+	}
+
+	/**
+	 * Record a test of a predicate.
+	 * @param id
+	 * 		id of the predicate.
+	 * @param rowsIn
+	 * 		number of rows tested.
+	 * @param rowsOut
+	 * 		number of rows that passed.
+	 * @param spent
+	 * 		cost of the test.
+	 */
+	public void record(int id, int rowsIn, int rowsOut, double spent) {
+		tested[id] += rowsIn;
+		passed[id] += rowsOut;
+		cost[id] += spent;
+	}
+
+	/**
+	 * Record rows that entered the conjunction, after their predicates are recorded. Predicates are reordered when a window is full.
+	 * @param count
+	 * 		number of rows.
+	 */
+	public void endRows(int count) {
+		rows += count;
+		if (rows < WINDOW)
+			return;
+		rows = 0;
+		for (int i = 0; i < order.length; ++i) {
+			if (tested[i] == 0)
+				continue;
+			double rejected = 1.0 - (double) passed[i] / tested[i];
+			rank[i] = (rejected == 0 ? Double.MAX_VALUE : cost[i] / tested[i] / rejected);
+			tested[i] /= 2;
+			passed[i] /= 2;
+			cost[i] /= 2;
+		}
+		Arrays.sort(sorting, (a, b) -> Double.compare(rank[a], rank[b]));
+		for (int i = 0; i < order.length; ++i)
+			order[i] = sorting[i];
+	}
+}
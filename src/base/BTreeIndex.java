@@ -1,5 +1,6 @@
 package base;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.RandomAccessFile;
@@ -8,9 +9,16 @@ import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Map.Entry;
+import java.util.TreeMap;
 
 /*
  * The class to build B tree index.
+ * Nodes take one page each, with the page size in catalog. The index file has a header if the page size is not the legacy one,
+ * see FileHeader, and page addresses in the tree never count it.
+ * Besides root address, number of leaves and order, the header page holds whether the index is clustered and the length
+ * of the relation file it indexes, so that an index still up to date is not built again, see isUpToDate.
+ * Keys of records appended to the relation are added to leaves in place by merge.
  * 
  * @author Enze Zhou ez242
  */
@@ -24,6 +32,7 @@ public class BTreeIndex {
 	
 	private ArrayList<Tuple> originalData = null;	// Key-rid data from file. Need to sort it if file is not clustered.
 	private FileChannel FC;							// File channel to write index file.
+	private FileHeader header;						// Page layout of index file.
 
 	// Some elements used during the building process.
 	private int traverse;
@@ -63,12 +72,16 @@ public class BTreeIndex {
 		String append = DBCatalog.getCatalog().inputPath.contains("/") ? "db/indexes/" : "db\\indexes\\";
 		RandomAccessFile FOS = null;
 		try {
-			// Index file to write to.
+			// Index file to write to. Pages of an old index with the same name are no longer valid.
+			BufferPool.getPool().invalidate(DBCatalog.getCatalog().inputPath + append + fileName + "." + keyName);
 			FOS = new RandomAccessFile(DBCatalog.getCatalog().inputPath + append + fileName + "." + keyName, "rw");
 			FC = FOS.getChannel();
+			FC.truncate(0);
+			header = FileHeader.forWriting();
+			header.write(FC);
 			
 			// Write nothing to the header page to skip it. Later we will write this page again.
-			ByteBuffer BB = ByteBuffer.allocate(DBCatalog.getCatalog().pageSize);
+			ByteBuffer BB = ByteBuffer.allocate(header.pageSize);
 			BB.clear();
 			FC.write(BB);
 			BB.clear();
@@ -80,9 +93,9 @@ public class BTreeIndex {
 			int keyCount = 0;								// Number of different keys. Used to calculate leaf node number.
 			int lastKey = Integer.MIN_VALUE;
 			for (int i = 0; i < originalData.size(); ++i)
-				if (originalData.get(i).data.get(0) != lastKey) {
+				if (originalData.get(i).values[0] != lastKey) {
 					++keyCount;
-					lastKey = originalData.get(i).data.get(0);
+					lastKey = originalData.get(i).values[0];
 				}
 			
 			// full: number of full leaves to build.
@@ -162,17 +175,17 @@ public class BTreeIndex {
 		
 		// Write header.
 		try {
-			FOS.seek(0);
-			
-			ByteBuffer BB = ByteBuffer.allocate(DBCatalog.getCatalog().pageSize);
+			ByteBuffer BB = ByteBuffer.allocate(header.pageSize);
 			BB.putInt(0, childLayerPgNumMin);
 			BB.putInt(4, tree.get(0).size());
 			BB.putInt(8, order);
+			BB.putInt(12, clusteredOnKey ? 1 : 0);
+			BB.putLong(16, new File(dataPath(fileName)).length());
 			
-			for (int i = 12; i < BB.capacity(); ++i)
+			for (int i = 24; i < BB.capacity(); ++i)
 				BB.put(i, (byte) 0);
 			BB.clear();
-			FC.write(BB);
+			FC.write(BB, header.position(0));
 			BB.clear();
 			
 			FC.close();
@@ -182,6 +195,189 @@ public class BTreeIndex {
 		}
 	}
 	
+	/*
+	 * Get the path of a relation file.
+	 */
+	private static String dataPath(String fileName) {
+		String append = DBCatalog.getCatalog().inputPath.contains("/") ? "db/data/" : "db\\data\\";
+		return DBCatalog.getCatalog().inputPath + append + fileName;
+	}
+	
+	/*
+	 * Get the path of an index file.
+	 */
+	private static String indexPath(String fileName, String keyName) {
+		String append = DBCatalog.getCatalog().inputPath.contains("/") ? "db/indexes/" : "db\\indexes\\";
+		return DBCatalog.getCatalog().inputPath + append + fileName + "." + keyName;
+	}
+	
+	/*
+	 * Test whether an index file was built, or merged into last, for the relation file as it is now, with some settings.
+	 * It is if it's in the page size in catalog, has the order and clustering asked for, records the length the relation
+	 * file has, and is not older than the relation file.
+	 * @param
+	 * 		fileName: the relation.
+	 * 		keyName: the key of the index, part name.
+	 * 		clusteredOnKey: whether the index should be clustered.
+	 * 		order: the order the tree should have.
+	 * @return
+	 * 		whether the index can be used without building it again.
+	 */
+	public static boolean isUpToDate(String fileName, String keyName, boolean clusteredOnKey, int order) {
+		File data = new File(dataPath(fileName));
+		File index = new File(indexPath(fileName, keyName));
+		if (!index.isFile() || index.lastModified() < data.lastModified())
+			return false;
+		try (RandomAccessFile indexFile = new RandomAccessFile(index, "r")) {
+			FileChannel indexFC = indexFile.getChannel();
+			FileHeader indexHeader = FileHeader.read(indexFC);
+			if (indexHeader.pageSize != DBCatalog.getCatalog().pageSize)
+				return false;
+			ByteBuffer BB = ByteBuffer.allocate(24);
+			while (BB.hasRemaining())
+				if (indexFC.read(BB, indexHeader.position(0) + BB.position()) <= 0)
+					return false;
+			return BB.getInt(8) == order && BB.getInt(12) == (clusteredOnKey ? 1 : 0) && BB.getLong(16) == data.length();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return false;
+	}
+	
+	/*
+	 * Add keys of records appended to a relation to its index file in place. Every key goes to the leaf the tree routes it to,
+	 * in order of key and then rid, and only those leaves are written again, so the cost is about the number of keys added.
+	 * Separator keys never change, so a leaf may end up with more than 2 * order keys, until the next build balances it.
+	 * If a leaf would not fit in its page, nothing is written and the index must be built again.
+	 * The length of the relation file recorded in header is updated, so the relation should be complete.
+	 * @param
+	 * 		fileName: the relation.
+	 * 		keyName: the key of the index, part name.
+	 * 		added: (key, page id, tuple id) of every record appended, whose rids come after all the ones in the index.
+	 * @return
+	 * 		whether the keys were added.
+	 */
+	public static boolean merge(String fileName, String keyName, ArrayList<Tuple> added) {
+		String path = indexPath(fileName, keyName);
+		String poolKey = BufferPool.fileKey(path);
+		try (RandomAccessFile indexFile = new RandomAccessFile(path, "rw")) {
+			FileChannel indexFC = indexFile.getChannel();
+			FileHeader indexHeader = FileHeader.read(indexFC);
+			ByteBuffer BB = ByteBuffer.allocate(indexHeader.pageSize);
+			BufferPool.getPool().readPage(poolKey, indexHeader, 0, indexFC, BB);
+			int rootAddr = BB.getInt(0);
+			int leavesNum = BB.getInt(4);
+			if (leavesNum == 0)
+				return false;
+			
+			// Find the leaf of every key from root.
+			Collections.sort(added, (t1, t2) -> {
+				for (int j = 0; j < 3; ++j) {
+					int ret = Integer.compare(t1.values[j], t2.values[j]);
+					if (ret != 0)
+						return ret;
+				}
+				return 0;
+			});
+			TreeMap<Integer, ArrayList<Tuple>> leaves = new TreeMap<>();
+			for (int i = 0; i < added.size(); ++i) {
+				int key = added.get(i).values[0];
+				int addr = rootAddr;
+				while (addr > leavesNum) {
+					BufferPool.getPool().readPage(poolKey, indexHeader, addr, indexFC, BB);
+					int keyNum = BB.getInt(4);
+					int childId = 0;
+					while (childId < keyNum && BB.getInt(8 + childId * 4) <= key)
+						++childId;
+					addr = BB.getInt(8 + keyNum * 4 + childId * 4);
+				}
+				ArrayList<Tuple> leafKeys = leaves.get(addr);
+				if (leafKeys == null)
+					leaves.put(addr, leafKeys = new ArrayList<>());
+				while (i < added.size() && added.get(i).values[0] == key)		// Same key, same leaf.
+					leafKeys.add(added.get(i++));
+				--i;
+			}
+			
+			// Merge new keys into every leaf. Leaves are only written when all of them fit.
+			ArrayList<ByteBuffer> pages = new ArrayList<>();
+			for (Entry<Integer, ArrayList<Tuple>> leaf : leaves.entrySet()) {
+				BufferPool.getPool().readPage(poolKey, indexHeader, leaf.getKey(), indexFC, BB);
+				ByteBuffer page = ByteBuffer.allocate(indexHeader.pageSize);
+				ArrayList<Tuple> leafKeys = leaf.getValue();
+				int entryNum = BB.getInt(4);
+				int readPos = 8;
+				int writePos = 8;
+				int keyNum = 0;
+				int next = 0;								// Next new rid to merge.
+				for (int e = 0; e <= entryNum; ++e) {
+					int key = (e < entryNum ? BB.getInt(readPos) : Integer.MAX_VALUE);
+					
+					// New keys before this one.
+					while (next < leafKeys.size() && (e == entryNum || leafKeys.get(next).values[0] < key)) {
+						int newKey = leafKeys.get(next).values[0];
+						int count = 0;
+						while (next + count < leafKeys.size() && leafKeys.get(next + count).values[0] == newKey)
+							++count;
+						if (writePos + 8 + count * 8 > page.capacity())
+							return false;
+						page.putInt(writePos, newKey);
+						page.putInt(writePos + 4, count);
+						writePos += 8;
+						for (int r = 0; r < count; ++r, ++next) {
+							page.putInt(writePos, leafKeys.get(next).values[1]);
+							page.putInt(writePos + 4, leafKeys.get(next).values[2]);
+							writePos += 8;
+						}
+						++keyNum;
+					}
+					if (e == entryNum)
+						break;
+					
+					// This key, with new rids of it after old ones.
+					int oldCount = BB.getInt(readPos + 4);
+					int count = 0;
+					while (next + count < leafKeys.size() && leafKeys.get(next + count).values[0] == key)
+						++count;
+					if (writePos + 8 + (oldCount + count) * 8 > page.capacity())
+						return false;
+					page.putInt(writePos, key);
+					page.putInt(writePos + 4, oldCount + count);
+					for (int r = 0; r < oldCount * 8; r += 4)
+						page.putInt(writePos + 8 + r, BB.getInt(readPos + 8 + r));
+					writePos += 8 + oldCount * 8;
+					readPos += 8 + oldCount * 8;
+					for (int r = 0; r < count; ++r, ++next) {
+						page.putInt(writePos, leafKeys.get(next).values[1]);
+						page.putInt(writePos + 4, leafKeys.get(next).values[2]);
+						writePos += 8;
+					}
+					++keyNum;
+				}
+				page.putInt(0, 0);
+				page.putInt(4, keyNum);
+				pages.add(page);
+			}
+			
+			// Write leaves, then the length of relation file in header.
+			int p = 0;
+			for (int addr : leaves.keySet()) {
+				ByteBuffer page = pages.get(p++);
+				while (page.hasRemaining())
+					indexFC.write(page, indexHeader.position(addr) + page.position());
+			}
+			ByteBuffer length = ByteBuffer.allocate(8);
+			length.putLong(0, new File(dataPath(fileName)).length());
+			while (length.hasRemaining())
+				indexFC.write(length, indexHeader.position(0) + 16 + length.position());
+			BufferPool.getPool().invalidate(path);
+			return true;
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return false;
+	}
+	
 	/*
 	 * Read an existing index and rewrite to a human-readable form like the one provided.
 	 */
@@ -191,10 +387,11 @@ public class BTreeIndex {
 			RandomAccessFile inputFile = new RandomAccessFile(DBCatalog.getCatalog().inputPath + append + fileName + "." + keyName, "r");
 			PrintWriter outputFile = new PrintWriter(DBCatalog.getCatalog().inputPath + append + fileName + "." + keyName + "_humanreadable");
 			FileChannel inputChannel = inputFile.getChannel();
-			ByteBuffer inputBuffer = ByteBuffer.allocate(DBCatalog.getCatalog().pageSize);
+			String inputKey = BufferPool.fileKey(DBCatalog.getCatalog().inputPath + append + fileName + "." + keyName);
+			FileHeader inputHeader = FileHeader.read(inputChannel);
+			ByteBuffer inputBuffer = ByteBuffer.allocate(inputHeader.pageSize);
 			
-			inputChannel.read(inputBuffer);
-			inputBuffer.flip();
+			BufferPool.getPool().readPage(inputKey, inputHeader, 0, inputChannel, inputBuffer);
 			int rootAddr = inputBuffer.getInt(0);
 			int leavesNum = inputBuffer.getInt(4);
 			int order = inputBuffer.getInt(8);
@@ -208,9 +405,7 @@ public class BTreeIndex {
 			int childAddr;
 			
 			// Go to root and write information.
-			inputFile.seek(DBCatalog.getCatalog().pageSize * rootAddr);
-			inputChannel.read(inputBuffer);
-			inputBuffer.flip();
+			BufferPool.getPool().readPage(inputKey, inputHeader, rootAddr, inputChannel, inputBuffer);
 			
 			int keyCount = inputBuffer.getInt(4);
 			content = "Root node is: IndexNode with keys [";
@@ -235,9 +430,7 @@ public class BTreeIndex {
 				
 				outputFile.println("---------Next layer is index nodes---------");
 				for (int i = 0; i < children.size(); ++i) {						// Here children means all the index nodes in this layer that are being written.
-					inputFile.seek(DBCatalog.getCatalog().pageSize * children.get(i));
-					inputChannel.read(inputBuffer);
-					inputBuffer.flip();
+					BufferPool.getPool().readPage(inputKey, inputHeader, children.get(i), inputChannel, inputBuffer);
 					
 					content = "IndexNode with keys [" + inputBuffer.getInt(8);	// Every index node other than root has at least one key.
 					keyCount = inputBuffer.getInt(4);
@@ -261,9 +454,7 @@ public class BTreeIndex {
 			outputFile.println("---------Next layer is leaf nodes---------");
 			for (int i = 0; i < leavesNum; ++i) {
 				outputFile.println("LeafNode[");
-				inputFile.seek(DBCatalog.getCatalog().pageSize * (i + 1));
-				inputChannel.read(inputBuffer);
-				inputBuffer.flip();
+				BufferPool.getPool().readPage(inputKey, inputHeader, i + 1, inputChannel, inputBuffer);
 				
 				keyCount = inputBuffer.getInt(4);
 				int pos = 8;
@@ -358,7 +549,7 @@ public class BTreeIndex {
 		 */
 		@Override
 		void writeToFile() {
-			ByteBuffer BB = ByteBuffer.allocate(DBCatalog.getCatalog().pageSize);
+			ByteBuffer BB = ByteBuffer.allocate(header.pageSize);
 			BB.putInt(0, 1);
 			BB.putInt(4, keys.size());
 			int writePos = 8;
@@ -405,15 +596,15 @@ public class BTreeIndex {
 		public BTreeLeafNode(int keyNum) {
 			int tempKeyNum = 0;
 			while (tempKeyNum < keyNum) {
-				int key = originalData.get(traverse).data.get(0);
+				int key = originalData.get(traverse).values[0];
 				keys.add(key);
 				rids.add(new ArrayList<Tuple>());
 				
 				// Unlike for index node whose count is pre-assigned, here we need a flag to stop getting next data, so out-of-index need to be handled.
-				while (traverse < originalData.size() && originalData.get(traverse).data.get(0) == key) {
-					Tuple rid = new Tuple();
-					rid.data.add(originalData.get(traverse).data.get(1));
-					rid.data.add(originalData.get(traverse).data.get(2));
+				while (traverse < originalData.size() && originalData.get(traverse).values[0] == key) {
+					Tuple rid = new Tuple(2);
+					rid.values[0] = originalData.get(traverse).values[1];
+					rid.values[1] = originalData.get(traverse).values[2];
 					rids.get(rids.size() - 1).add(rid);
 					++traverse;
 				}
@@ -427,7 +618,7 @@ public class BTreeIndex {
 		 */
 		@Override
 		void writeToFile() {
-			ByteBuffer BB = ByteBuffer.allocate(DBCatalog.getCatalog().pageSize);
+			ByteBuffer BB = ByteBuffer.allocate(header.pageSize);
 			BB.putInt(0, 0);
 			BB.putInt(4, keys.size());
 			int writePos = 8;
@@ -437,9 +628,9 @@ public class BTreeIndex {
 				BB.putInt(writePos, rids.get(i).size());
 				writePos += 4;
 				for (int j = 0; j < rids.get(i).size(); ++j) {
-					BB.putInt(writePos, rids.get(i).get(j).data.get(0));
+					BB.putInt(writePos, rids.get(i).get(j).values[0]);
 					writePos += 4;
-					BB.putInt(writePos, rids.get(i).get(j).data.get(1));
+					BB.putInt(writePos, rids.get(i).get(j).values[1]);
 					writePos += 4;
 				}
 			}
@@ -470,7 +661,7 @@ public class BTreeIndex {
 		 */
 		public int compare(Tuple t1, Tuple t2) {
 			for (int j = 0; j < 3; ++j) {
-				int ret = t1.data.get(j).compareTo(t2.data.get(j));
+				int ret = Integer.compare(t1.values[j], t2.values[j]);
 				if (ret != 0)
 					return ret;
 			}
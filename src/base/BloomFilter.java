@@ -0,0 +1,114 @@
+package base;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * BloomFilter
+ * Set of the values of a column that can answer "surely not in it". DBCatalog builds one for every column while
+ * gathering statistics. A value the filter says is absent is in no tuple, so an equality on it selects nothing,
+ * and a tuple joined by equality on it with this column finds no partner.
+ * The filter has BITS_PER_KEY bits for every value expected and HASHES hash functions, so about 1% of absent values
+ * pass it. Hash i of a value is h1 + i * h2, where h1 and h2 are the two halves of a 64 bit mix of it.
+ *
+ * @author Enze Zhou ez242
+ */
+public final class BloomFilter {
+
+	public static final int BITS_PER_KEY = 10;
+	public static final int HASHES = 7;
+	public static final int MAX_BITS = 1 << 27;			// 16 MB for one column at most.
+
+	private final long [] words;			// Bits of the filter.
+	private final int bits;					// Number of bits, 64 * words.length.
+
+	/**
+	 * Constructor of an empty filter.
+	 * @param expected
+	 * 		number of values expected to be added. More can be added at the cost of more false positives.
+	 */
+	public BloomFilter(long expected) {
+		long size = Math.max(64, Math.min(MAX_BITS, expected * BITS_PER_KEY));
+		words = new long [(int) ((size + 63) / 64)];
+		bits = words.length * 64;
+	}
+
+	/*
+	 * Constructor of a filter read back.
+	 */
+	private BloomFilter(long [] words) {
+		this.words = words;
+		bits = words.length * 64;
+	}
+
+	/*
+	 * Mix the bits of a value, finalizer of MurmurHash3.
+	 */
+	private static long mix(int value) {
+		long h = value;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/**
+	 * Add a value.
+	 * @param value
+	 * 		the value.
+	 */
+	public void add(int value) {
+		long h = mix(value);
+		int h1 = (int) h;
+		int h2 = (int) (h >>> 32);
+		for (int i = 0; i < HASHES; ++i) {
+			int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % bits;
+			words[bit >>> 6] |= 1L << bit;
+		}
+	}
+
+	/**
+	 * Test whether a value may have been added.
+	 * @param value
+	 * 		the value.
+	 * @return false if the value was surely never added.
+	 */
+	public boolean mightContain(int value) {
+		long h = mix(value);
+		int h1 = (int) h;
+		int h2 = (int) (h >>> 32);
+		for (int i = 0; i < HASHES; ++i) {
+			int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % bits;
+			if ((words[bit >>> 6] & (1L << bit)) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Write this filter to a stream as [number of words, words...].
+	 * @param out
+	 * 		the stream.
+	 */
+	public void write(DataOutputStream out) throws IOException {
+		out.writeInt(words.length);
+		for (long word : words)
+			out.writeLong(word);
+	}
+
+	/**
+	 * Read a filter written by write.
+	 * @param in
+	 * 		the stream.
+	 * @return the filter.
+	 */
+	public static BloomFilter read(DataInputStream in) throws IOException {
+		long [] words = new long [in.readInt()];
+		for (int i = 0; i < words.length; ++i)
+			words[i] = in.readLong();
+		return new BloomFilter(words);
+	}
+}
@@ -0,0 +1,324 @@
+package base;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.util.HashMap;
+
+/**
+ * BufferPool
+ * A fixed number of page frames shared by every reader of data and index files, keyed by (file, page id).
+ * Replacement uses the clock algorithm: every frame has a reference bit that is set on access and cleared
+ * when the clock hand passes, and the first unpinned frame with a cleared bit is the victim.
+ * Singleton pattern because all the operators of all the queries share the same pool.
+ *
+ * Files are identified by their normalized absolute path, see fileKey. Whoever rewrites a file must call invalidate,
+ * TupleWriter does it when it opens a file by name.
+ * Frames have the page size in catalog when the pool is first used. Pages of a file with smaller pages take only
+ * part of a frame, pages of a file with larger pages are read outside the pool.
+ *
+ * @author Enze Zhou ez242
+ */
+public final class BufferPool {
+
+	/*
+	 * Key of a page in the pool.
+	 */
+	private static final class PageKey {
+		final String file;
+		final int pageId;
+
+		PageKey(String file, int pageId) {
+			this.file = file;
+			this.pageId = pageId;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof PageKey))
+				return false;
+			PageKey other = (PageKey) o;
+			return pageId == other.pageId && file.equals(other.file);
+		}
+
+		@Override
+		public int hashCode() {
+			return file.hashCode() * 31 + pageId;
+		}
+	}
+
+	public static final int POOL_BYTES = 4 << 20;				// Memory of the pool, 1024 frames of 4 KB pages.
+	public static final int MIN_FRAMES = 16;					// Least number of frames, whatever the page size.
+
+	private static BufferPool pool = new BufferPool(Math.max(MIN_FRAMES, POOL_BYTES / DBCatalog.getCatalog().pageSize));	// The only instance of this class.
+
+	private final int pageSize;
+	private final ByteBuffer [] frames;							// Page frames.
+	private final PageKey [] keys;								// Page held by each frame, null if the frame is free.
+	private final int [] pinCounts;								// Number of users of each frame. Pinned frames are never evicted.
+	private final boolean [] referenced;						// Reference bit for clock.
+	private final HashMap<PageKey, Integer> table = new HashMap<>();	// Map a page to its frame.
+	private int hand = 0;										// Clock hand.
+
+	private long hits = 0;
+	private long misses = 0;
+
+	/*
+	 * Constructor is private for singleton pattern.
+	 * @param frameNum
+	 * 		number of frames.
+	 */
+	private BufferPool(int frameNum) {
+		pageSize = DBCatalog.getCatalog().pageSize;
+		frames = new ByteBuffer [frameNum];
+		keys = new PageKey [frameNum];
+		pinCounts = new int [frameNum];
+		referenced = new boolean [frameNum];
+		for (int i = 0; i < frameNum; ++i)
+			frames[i] = ByteBuffer.allocate(pageSize);
+	}
+
+	/**
+	 * Get the only instance of this class.
+	 * @return the only instance of this class.
+	 */
+	public static BufferPool getPool() { return pool; }
+
+	/**
+	 * Get the name a file is known by in the pool, so that different spellings of the same path share pages.
+	 * @param path
+	 * 		path of the file.
+	 * @return normalized absolute path.
+	 */
+	public static String fileKey(String path) {
+		return Paths.get(path).toAbsolutePath().normalize().toString();
+	}
+
+	/**
+	 * Pin a page, reading it from file if it's not in the pool.
+	 * If every frame is pinned, the page is read into a buffer outside the pool.
+	 * @param file
+	 * 		key of the file, see fileKey.
+	 * @param header
+	 * 		page layout of the file.
+	 * @param pageId
+	 * 		page id in the file.
+	 * @param FC
+	 * 		channel of the file, used when the page needs to be read.
+	 * @return read-only view of the page whose limit is the number of bytes in it, null if the page is beyond the end of file.
+	 */
+	public synchronized ByteBuffer pin(String file, FileHeader header, int pageId, FileChannel FC) throws IOException {
+		PageKey key = new PageKey(file, pageId);
+		Integer frame = table.get(key);
+		if (frame != null) {
+			++hits;
+			++pinCounts[frame];
+			referenced[frame] = true;
+			return view(frame);
+		}
+
+		++misses;
+		int victim = (header.pageSize <= pageSize ? findVictim() : -1);
+		ByteBuffer buffer = (victim == -1 ? ByteBuffer.allocate(header.pageSize) : frames[victim]);
+		if (victim != -1 && keys[victim] != null) {
+			table.remove(keys[victim]);
+			keys[victim] = null;
+		}
+		if (load(FC, header, pageId, buffer) <= 0)
+			return null;
+		if (victim == -1)
+			return buffer.asReadOnlyBuffer();
+
+		keys[victim] = key;
+		table.put(key, victim);
+		pinCounts[victim] = 1;
+		referenced[victim] = true;
+		return view(victim);
+	}
+
+	/**
+	 * Unpin a page pinned before. Pages read outside the pool are simply ignored.
+	 * @param file
+	 * 		key of the file.
+	 * @param pageId
+	 * 		page id in the file.
+	 */
+	public synchronized void unpin(String file, int pageId) {
+		Integer frame = table.get(new PageKey(file, pageId));
+		if (frame != null && pinCounts[frame] > 0)
+			--pinCounts[frame];
+	}
+
+	/**
+	 * Copy a page into a buffer owned by caller. The page is only pinned during the copy,
+	 * so callers that may not finish reading a file never keep a frame.
+	 * @param file
+	 * 		key of the file.
+	 * @param header
+	 * 		page layout of the file.
+	 * @param pageId
+	 * 		page id in the file.
+	 * @param FC
+	 * 		channel of the file.
+	 * @param dst
+	 * 		buffer to copy to, at least as large as a page of the file. After the call it is ready for read, as after read and flip.
+	 * @return number of bytes in the page, -1 if the page is beyond the end of file.
+	 */
+	public int readPage(String file, FileHeader header, int pageId, FileChannel FC, ByteBuffer dst) throws IOException {
+		ByteBuffer page = pin(file, header, pageId, FC);
+		dst.clear();
+		if (page == null) {
+			dst.flip();
+			return -1;
+		}
+		int ret = page.remaining();
+		dst.put(page);
+		dst.flip();
+		unpin(file, pageId);
+		return ret;
+	}
+
+	/**
+	 * Copy a page into a buffer owned by caller if it's in the pool, without reading the file.
+	 * Used by asynchronous readers, which read the pages that are not in the pool themselves and then put them.
+	 * @param file
+	 * 		key of the file.
+	 * @param pageId
+	 * 		page id in the file.
+	 * @param dst
+	 * 		buffer to copy to, at least as large as a page of the file. If the page is copied it is ready for read, as after read and flip.
+	 * @return number of bytes in the page, -1 if the page is not in the pool.
+	 */
+	public synchronized int readCached(String file, int pageId, ByteBuffer dst) {
+		Integer frame = table.get(new PageKey(file, pageId));
+		if (frame == null)
+			return -1;
+		++hits;
+		referenced[frame] = true;
+		dst.clear();
+		dst.put(view(frame));
+		dst.flip();
+		return dst.limit();
+	}
+
+	/**
+	 * Put a page read outside the pool into it, so that later reads of the page are hits. Counted as a miss.
+	 * Nothing is kept if the page is larger than a frame or every frame is pinned.
+	 * @param file
+	 * 		key of the file.
+	 * @param header
+	 * 		page layout of the file.
+	 * @param pageId
+	 * 		page id in the file.
+	 * @param page
+	 * 		content of the page from position to limit. The buffer itself is not changed.
+	 */
+	public synchronized void put(String file, FileHeader header, int pageId, ByteBuffer page) {
+		++misses;
+		PageKey key = new PageKey(file, pageId);
+		if (table.containsKey(key) || header.pageSize > pageSize)
+			return;
+		int victim = findVictim();
+		if (victim == -1)
+			return;
+		if (keys[victim] != null)
+			table.remove(keys[victim]);
+		frames[victim].clear();
+		frames[victim].put(page.duplicate());
+		frames[victim].flip();
+		keys[victim] = key;
+		table.put(key, victim);
+		pinCounts[victim] = 0;
+		referenced[victim] = true;
+	}
+
+	/**
+	 * Drop every page of a file. Must be called when the file is rewritten or replaced.
+	 * @param file
+	 * 		path of the file, in any spelling.
+	 */
+	public synchronized void invalidate(String file) {
+		String fileKey = fileKey(file);
+		for (int i = 0; i < keys.length; ++i) {
+			if (keys[i] != null && keys[i].file.equals(fileKey)) {
+				table.remove(keys[i]);
+				keys[i] = null;
+				pinCounts[i] = 0;
+				referenced[i] = false;
+			}
+		}
+	}
+
+	/*
+	 * Find a frame to replace with the clock algorithm. Free frames are taken first.
+	 * @return id of the frame, -1 if every frame is pinned.
+	 */
+	private int findVictim() {
+		for (int i = 0; i < 2 * frames.length; ++i) {
+			int frame = hand;
+			hand = (hand + 1) % frames.length;
+			if (keys[frame] == null)
+				return frame;
+			if (pinCounts[frame] > 0)
+				continue;
+			if (referenced[frame])
+				referenced[frame] = false;
+			else
+				return frame;
+		}
+		return -1;
+	}
+
+	/*
+	 * Read a page from file into a buffer.
+	 * @return number of bytes read, -1 if the page is beyond the end of file. The buffer is flipped.
+	 */
+	private int load(FileChannel FC, FileHeader header, int pageId, ByteBuffer buffer) throws IOException {
+		buffer.clear();
+		buffer.limit(header.pageSize);
+		long pos = header.position(pageId);
+		while (buffer.hasRemaining()) {			// Keep reading until the page is full or the file is over.
+			if (FC.read(buffer, pos + buffer.position()) <= 0)
+				break;
+		}
+		buffer.flip();
+		return buffer.limit() > 0 ? buffer.limit() : -1;
+	}
+
+	/*
+	 * Read-only view of a frame, so that users can't change the shared page.
+	 */
+	private ByteBuffer view(int frame) {
+		return frames[frame].asReadOnlyBuffer();
+	}
+
+	/**
+	 * Get number of frames of the pool.
+	 * @return number of frames.
+	 */
+	public int frameCount() { return frames.length; }
+
+	/**
+	 * Get number of page requests served from the pool.
+	 * @return number of hits.
+	 */
+	public synchronized long getHits() { return hits; }
+
+	/**
+	 * Get number of page requests that went to disk.
+	 * @return number of misses.
+	 */
+	public synchronized long getMisses() { return misses; }
+
+	/**
+	 * Get string representation of the counters of the pool.
+	 * @see java.lang.Object#toString()
+	 * @return
+	 * 		string representation of this pool.
+	 */
+	@Override
+	public synchronized String toString() {
+		return String.format("BufferPool[frames: %d, hits: %d, misses: %d]", frames.length, hits, misses);
+	}
+}
@@ -0,0 +1,587 @@
+package base;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * CompiledCondition
+ * A conjunction of conditions turned once, when an operator builds its schema, into a tree of small final classes
+ * that hold column positions already looked up. Testing a tuple then needs no HashMap lookup and no switch on the operator,
+ * and every class does one comparison, which keeps each test small enough for the JIT to inline.
+ * < and > on a constant become <= and >= with the constant moved by one, and all the bounds and IN ranges on one column
+ * are fused into a single range test, or a binary search in a KeyRanges if they leave more than one range.
+ * Conditions between two columns keep one class per operator, with > and >= turned around.
+ * A compiled condition can test a tuple, a record seen in place, or a pair of tuples of a join that would be concatenated.
+ * In the last case columns from split on are columns of the right tuple.
+ * A conjunction orders its parts by what it sees on one row in And.SAMPLE, see AdaptiveOrder, counting the columns
+ * a part reads as its cost, so a compiled condition is used by one thread.
+ *
+ * @author Enze Zhou ez242
+ */
+public abstract class CompiledCondition {
+
+	protected final int split;					// Number of columns of the left tuple of a pair. Integer.MAX_VALUE if not a join.
+	protected final int cost;					// Number of columns read by a test.
+
+	/*
+	 * Constructor.
+	 */
+	protected CompiledCondition(int split, int cost) {
+		this.split = split;
+		this.cost = cost;
+	}
+
+	/**
+	 * Test a tuple.
+	 * @param tp
+	 * 		the tuple, in the schema compiled with.
+	 * @return whether it satisfies every condition.
+	 */
+	public abstract boolean test(Tuple tp);
+
+	/**
+	 * Test a record seen in place.
+	 * @param view
+	 * 		the record, in the schema compiled with.
+	 * @return whether it satisfies every condition.
+	 */
+	public abstract boolean test(TupleView view);
+
+	/**
+	 * Test a pair of tuples of a join.
+	 * @param left
+	 * 		tuple of the left child.
+	 * @param right
+	 * 		tuple of the right child.
+	 * @return whether their concatenation satisfies every condition.
+	 */
+	public abstract boolean test(Tuple left, Tuple right);
+
+	/*
+	 * Get a column of the concatenation of a pair.
+	 */
+	protected final int at(Tuple left, Tuple right, int col) {
+		return (col < split ? left.values[col] : right.values[col - split]);
+	}
+
+	/**
+	 * Compile the conjunction of some conditions on the tuples of one operator.
+	 * @param conditions
+	 * 		the conditions, each name must be in schema.
+	 * @param schema
+	 * 		schema of the tuples tested.
+	 * @return the compiled conjunction, always true if there is no condition.
+	 */
+	public static CompiledCondition compile(List<Condition> conditions, HashMap<String, Integer> schema) {
+		return compile(conditions, schema, null);
+	}
+
+	/**
+	 * Compile the conjunction of some conditions on the pairs of tuples of a join.
+	 * @param conditions
+	 * 		the conditions, each name must be in one of the schemas.
+	 * @param leftSchema
+	 * 		schema of the left child.
+	 * @param rightSchema
+	 * 		schema of the right child, null if conditions are on the tuples of one operator.
+	 * @return the compiled conjunction, always true if there is no condition.
+	 */
+	public static CompiledCondition compile(List<Condition> conditions, HashMap<String, Integer> leftSchema, HashMap<String, Integer> rightSchema) {
+		int split = (rightSchema == null ? Integer.MAX_VALUE : leftSchema.size());
+		LinkedHashMap<Integer, KeyRanges> ranges = new LinkedHashMap<>();	// Values allowed for every column compared to constants.
+		ArrayList<CompiledCondition> parts = new ArrayList<>();
+		for (Condition cond : conditions) {
+			int l = column(cond.leftName, leftSchema, rightSchema, split);
+			int r = column(cond.rightName, leftSchema, rightSchema, split);
+			if (l < 0 && r < 0) {
+				if (!cond.holds(cond.left, cond.right))
+					return new Always(false, split);
+				continue;
+			}
+			if (l >= 0 && r >= 0) {
+				parts.add(columnColumn(l, cond.operator, r, split));
+				continue;
+			}
+			if (cond.operator == Condition.op.ne) {
+				parts.add(new ColNe(l, cond.right, split));
+				continue;
+			}
+			KeyRanges allowed = (cond.operator == Condition.op.in ? cond.ranges : KeyRanges.of(cond.operator, cond.right));
+			KeyRanges range = ranges.get(l);
+			ranges.put(l, range == null ? allowed : range.intersect(allowed));
+		}
+
+		// Ranges go first, they are the cheapest tests.
+		ArrayList<CompiledCondition> all = new ArrayList<>();
+		for (Integer col : ranges.keySet()) {
+			KeyRanges range = ranges.get(col);
+			if (range.isEmpty())
+				return new Always(false, split);
+			if (range.size() > 1) {
+				all.add(new ColIn(col, range, split));
+				continue;
+			}
+			int low = range.lows[0];
+			int high = range.highs[0];
+			if (low == high)
+				all.add(new ColEq(col, low, split));
+			else if (low == Integer.MIN_VALUE)
+				all.add(new ColLe(col, high, split));
+			else if (high == Integer.MAX_VALUE)
+				all.add(new ColGe(col, low, split));
+			else
+				all.add(new ColRange(col, low, high, split));
+		}
+		all.addAll(parts);
+		if (all.isEmpty())
+			return new Always(true, split);
+		if (all.size() == 1)
+			return all.get(0);
+		return new And(all.toArray(new CompiledCondition [all.size()]), split);
+	}
+
+	/*
+	 * Get the column of a name, counted in the concatenation of the two schemas. -1 if there's no name.
+	 */
+	private static int column(String name, HashMap<String, Integer> leftSchema, HashMap<String, Integer> rightSchema, int split) {
+		if (name == null)
+			return -1;
+		Integer id = leftSchema.get(name);
+		if (id != null || rightSchema == null)
+			return id;
+		return rightSchema.get(name) + split;
+	}
+
+	/*
+	 * Compile a condition between two columns.
+	 */
+	private static CompiledCondition columnColumn(int l, Condition.op operator, int r, int split) {
+		switch (operator) {
+		case l:
+			return new ColColLt(l, r, split);
+		case g:
+			return new ColColLt(r, l, split);
+		case le:
+			return new ColColLe(l, r, split);
+		case ge:
+			return new ColColLe(r, l, split);
+		case e:
+			return new ColColEq(l, r, split);
+		default:
+			return new ColColNe(l, r, split);
+		}
+	}
+
+	/*
+	 * Conjunction of other compiled conditions, tested in the order learned by an AdaptiveOrder.
+	 */
+	private static final class And extends CompiledCondition {
+		static final int SAMPLE = 16;				// One row in SAMPLE is recorded, for all the rows since the last one.
+
+		private final CompiledCondition [] parts;
+		private final AdaptiveOrder order;
+		private int untilSample = SAMPLE;			// Rows until the next recorded one.
+
+		And(CompiledCondition [] parts, int split) {
+			super(split, costOf(parts));
+			this.parts = parts;
+			order = new AdaptiveOrder(parts.length);
+		}
+
+		private static int costOf(CompiledCondition [] parts) {
+			int ret = 0;
+			for (CompiledCondition part : parts)
+				ret += part.cost;
+			return ret;
+		}
+
+		/*
+		 * Whether this row is recorded.
+		 */
+		private boolean sampled() {
+			if (--untilSample > 0)
+				return false;
+			untilSample = SAMPLE;
+			return true;
+		}
+
+		/*
+		 * Record the result of a part, and the end of the rows since the last sample if it failed.
+		 */
+		private boolean record(int id, boolean pass) {
+			order.record(id, 1, pass ? 1 : 0, parts[id].cost);
+			if (!pass)
+				order.endRows(SAMPLE);
+			return pass;
+		}
+
+		@Override
+		public boolean test(Tuple tp) {
+			if (!sampled()) {
+				for (int id : order.order())
+					if (!parts[id].test(tp))
+						return false;
+				return true;
+			}
+			for (int id : order.order())
+				if (!record(id, parts[id].test(tp)))
+					return false;
+			order.endRows(SAMPLE);
+			return true;
+		}
+
+		@Override
+		public boolean test(TupleView view) {
+			if (!sampled()) {
+				for (int id : order.order())
+					if (!parts[id].test(view))
+						return false;
+				return true;
+			}
+			for (int id : order.order())
+				if (!record(id, parts[id].test(view)))
+					return false;
+			order.endRows(SAMPLE);
+			return true;
+		}
+
+		@Override
+		public boolean test(Tuple left, Tuple right) {
+			if (!sampled()) {
+				for (int id : order.order())
+					if (!parts[id].test(left, right))
+						return false;
+				return true;
+			}
+			for (int id : order.order())
+				if (!record(id, parts[id].test(left, right)))
+					return false;
+			order.endRows(SAMPLE);
+			return true;
+		}
+	}
+
+	/*
+	 * Condition with the same result for every tuple.
+	 */
+	private static final class Always extends CompiledCondition {
+		private final boolean result;
+
+		Always(boolean result, int split) {
+			super(split, 0);
+			this.result = result;
+		}
+
+		@Override
+		public boolean test(Tuple tp) {
+			return result;
+		}
+
+		@Override
+		public boolean test(TupleView view) {
+			return result;
+		}
+
+		@Override
+		public boolean test(Tuple left, Tuple right) {
+			return result;
+		}
+	}
+
+	/*
+	 * col <= val.
+	 */
+	private static final class ColLe extends CompiledCondition {
+		private final int col;
+		private final int val;
+
+		ColLe(int col, int val, int split) {
+			super(split, 1);
+			this.col = col;
+			this.val = val;
+		}
+
+		@Override
+		public boolean test(Tuple tp) {
+			return tp.values[col] <= val;
+		}
+
+		@Override
+		public boolean test(TupleView view) {
+			return view.get(col) <= val;
+		}
+
+		@Override
+		public boolean test(Tuple left, Tuple right) {
+			return at(left, right, col) <= val;
+		}
+	}
+
+	/*
+	 * col >= val.
+	 */
+	private static final class ColGe extends CompiledCondition {
+		private final int col;
+		private final int val;
+
+		ColGe(int col, int val, int split) {
+			super(split, 1);
+			this.col = col;
+			this.val = val;
+		}
+
+		@Override
+		public boolean test(Tuple tp) {
+			return tp.values[col] >= val;
+		}
+
+		@Override
+		public boolean test(TupleView view) {
+			return view.get(col) >= val;
+		}
+
+		@Override
+		public boolean test(Tuple left, Tuple right) {
+			return at(left, right, col) >= val;
+		}
+	}
+
+	/*
+	 * col = val.
+	 */
+	private static final class ColEq extends CompiledCondition {
+		private final int col;
+		private final int val;
+
+		ColEq(int col, int val, int split) {
+			super(split, 1);
+			this.col = col;
+			this.val = val;
+		}
+
+		@Override
+		public boolean test(Tuple tp) {
+			return tp.values[col] == val;
+		}
+
+		@Override
+		public boolean test(TupleView view) {
+			return view.get(col) == val;
+		}
+
+		@Override
+		public boolean test(Tuple left, Tuple right) {
+			return at(left, right, col) == val;
+		}
+	}
+
+	/*
+	 * col <> val.
+	 */
+	private static final class ColNe extends CompiledCondition {
+		private final int col;
+		private final int val;
+
+		ColNe(int col, int val, int split) {
+			super(split, 1);
+			this.col = col;
+			this.val = val;
+		}
+
+		@Override
+		public boolean test(Tuple tp) {
+			return tp.values[col] != val;
+		}
+
+		@Override
+		public boolean test(TupleView view) {
+			return view.get(col) != val;
+		}
+
+		@Override
+		public boolean test(Tuple left, Tuple right) {
+			return at(left, right, col) != val;
+		}
+	}
+
+	/*
+	 * low <= col <= high, with one read of col.
+	 */
+	private static final class ColRange extends CompiledCondition {
+		private final int col;
+		private final int low;
+		private final int high;
+
+		ColRange(int col, int low, int high, int split) {
+			super(split, 1);
+			this.col = col;
+			this.low = low;
+			this.high = high;
+		}
+
+		@Override
+		public boolean test(Tuple tp) {
+			int v = tp.values[col];
+			return v >= low && v <= high;
+		}
+
+		@Override
+		public boolean test(TupleView view) {
+			int v = view.get(col);
+			return v >= low && v <= high;
+		}
+
+		@Override
+		public boolean test(Tuple left, Tuple right) {
+			int v = at(left, right, col);
+			return v >= low && v <= high;
+		}
+	}
+
+	/*
+	 * col in a set of more than one range, by binary search.
+	 */
+	private static final class ColIn extends CompiledCondition {
+		private final int col;
+		private final KeyRanges ranges;
+
+		ColIn(int col, KeyRanges ranges, int split) {
+			super(split, 1);
+			this.col = col;
+			this.ranges = ranges;
+		}
+
+		@Override
+		public boolean test(Tuple tp) {
+			return ranges.contains(tp.values[col]);
+		}
+
+		@Override
+		public boolean test(TupleView view) {
+			return ranges.contains(view.get(col));
+		}
+
+		@Override
+		public boolean test(Tuple left, Tuple right) {
+			return ranges.contains(at(left, right, col));
+		}
+	}
+
+	/*
+	 * col1 < col2.
+	 */
+	private static final class ColColLt extends CompiledCondition {
+		private final int col1;
+		private final int col2;
+
+		ColColLt(int col1, int col2, int split) {
+			super(split, 2);
+			this.col1 = col1;
+			this.col2 = col2;
+		}
+
+		@Override
+		public boolean test(Tuple tp) {
+			return tp.values[col1] < tp.values[col2];
+		}
+
+		@Override
+		public boolean test(TupleView view) {
+			return view.get(col1) < view.get(col2);
+		}
+
+		@Override
+		public boolean test(Tuple left, Tuple right) {
+			return at(left, right, col1) < at(left, right, col2);
+		}
+	}
+
+	/*
+	 * col1 <= col2.
+	 */
+	private static final class ColColLe extends CompiledCondition {
+		private final int col1;
+		private final int col2;
+
+		ColColLe(int col1, int col2, int split) {
+			super(split, 2);
+			this.col1 = col1;
+			this.col2 = col2;
+		}
+
+		@Override
+		public boolean test(Tuple tp) {
+			return tp.values[col1] <= tp.values[col2];
+		}
+
+		@Override
+		public boolean test(TupleView view) {
+			return view.get(col1) <= view.get(col2);
+		}
+
+		@Override
+		public boolean test(Tuple left, Tuple right) {
+			return at(left, right, col1) <= at(left, right, col2);
+		}
+	}
+
+	/*
+	 * col1 = col2.
+	 */
+	private static final class ColColEq extends CompiledCondition {
+		private final int col1;
+		private final int col2;
+
+		ColColEq(int col1, int col2, int split) {
+			super(split, 2);
+			this.col1 = col1;
+			this.col2 = col2;
+		}
+
+		@Override
+		public boolean test(Tuple tp) {
+			return tp.values[col1] == tp.values[col2];
+		}
+
+		@Override
+		public boolean test(TupleView view) {
+			return view.get(col1) == view.get(col2);
+		}
+
+		@Override
+		public boolean test(Tuple left, Tuple right) {
+			return at(left, right, col1) == at(left, right, col2);
+		}
+	}
+
+	/*
+	 * col1 <> col2.
+	 */
+	private static final class ColColNe extends CompiledCondition {
+		private final int col1;
+		private final int col2;
+
+		ColColNe(int col1, int col2, int split) {
+			super(split, 2);
+			this.col1 = col1;
+			this.col2 = col2;
+		}
+
+		@Override
+		public boolean test(Tuple tp) {
+			return tp.values[col1] != tp.values[col2];
+		}
+
+		@Override
+		public boolean test(TupleView view) {
+			return view.get(col1) != view.get(col2);
+		}
+
+		@Override
+		public boolean test(Tuple left, Tuple right) {
+			return at(left, right, col1) != at(left, right, col2);
+		}
+	}
+}
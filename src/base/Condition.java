@@ -4,20 +4,23 @@ import java.util.HashMap;
 /**
  * Condition
  * Class that represents a condition expression.
+ * Besides comparisons, a condition can be attr IN ranges, where ranges is a KeyRanges. It stands for a disjunction of
+ * comparisons of one attribute with constants, an IN list or a BETWEEN, and is always written with its attribute on the left.
  * 
  * @authors Enze Zhou ez242, Shuang Zhang sz468
  */
 public final class Condition {
 	
-	// Enumerate all the 6 different operators:
-	// less than, greater than, less or equal, greater or equal, equal, not equal
+	// Enumerate all the 7 different operators:
+	// less than, greater than, less or equal, greater or equal, equal, not equal, in a set of ranges
 	public enum op {
 		l("<"),
 		g(">"),
 		le("<="),
 		ge(">="),
 		e("="),
-		ne("<>");
+		ne("<>"),
+		in("IN");
 		
 		private final String opStr;			// String representation of an operator
 		
@@ -47,6 +50,7 @@ public final class Condition {
 	public String rightName = "";	// Name of the right part of this expression. If null, right part is an integer number indicated by right.
 	public int left = 0;			// Instant left number if leftName is null.
 	public int right = 0;			// Instant right number if rightName is null.
+	public KeyRanges ranges = null;	// Values of the left part that satisfy this condition if operator is in, null otherwise.
 	
 	/**
 	 * Constructor that build a condition from a string.
@@ -68,13 +72,13 @@ public final class Condition {
 		} else if (parts[1].equals("=")) {
 			operator = op.e;
 		}
-		if (Character.isDigit(parts[0].charAt(0))) {
+		if (isConstant(parts[0])) {
 			leftName = null;
 			left = Integer.valueOf(parts[0]);
 		} else {
 			leftName = parts[0];
 		}
-		if (Character.isDigit(parts[2].charAt(0))) {
+		if (isConstant(parts[2])) {
 			rightName = null;
 			right = Integer.valueOf(parts[2]);
 		} else {
@@ -86,6 +90,28 @@ public final class Condition {
 			flip();
 	}
 	
+	/*
+	 * Test whether a part of a condition string is a constant, which may be negative.
+	 */
+	private static boolean isConstant(String part) {
+		int first = (part.charAt(0) == '-' && part.length() > 1 ? 1 : 0);
+		return Character.isDigit(part.charAt(first));
+	}
+	
+	/**
+	 * Constructor that build a condition attr IN ranges.
+	 * @param attr
+	 * 		Name of the attribute.
+	 * @param ranges
+	 * 		Values of the attribute that satisfy the condition.
+	 */
+	public Condition(String attr, KeyRanges ranges) {
+		operator = op.in;
+		leftName = attr;
+		rightName = null;
+		this.ranges = ranges;
+	}
+	
 	/**
 	 * Test whether this condition is attr = attr.
 	 * @return true if it is, false otherwise.
@@ -105,7 +131,7 @@ public final class Condition {
 	 */
 	public boolean isUsable() {
 		// Condition 閮借flip杩囷紝鎵�浠ヤ竴瀹氫笉鏄� 宸al OP 鍙砤ttr ///////////////////
-		if (leftName == null || rightName != null || operator == op.ne) {
+		if (leftName == null || rightName != null || operator == op.ne || operator == op.in) {
 			return false;
 		}
 		return true;
@@ -122,33 +148,265 @@ public final class Condition {
 	 * @return boolean result whether the input tuple satisfies this condition.
 	 */
 	public boolean test(Tuple tp, HashMap<String, Integer> schema) {
-		int templeft = (leftName == null ? left : tp.data.get(schema.get(leftName)));
-		int tempright = (rightName == null ? right : tp.data.get(schema.get(rightName)));
+		if (operator == op.in)
+			return ranges.contains(tp.values[schema.get(leftName)]);
+		int templeft = (leftName == null ? left : tp.values[schema.get(leftName)]);
+		int tempright = (rightName == null ? right : tp.values[schema.get(rightName)]);
+		return compare(operator, templeft, tempright);
+	}
+	
+	/**
+	 * Test whether this condition holds for values of its two parts, found by the caller.
+	 * @param leftValue
+	 * 		Value of the left part.
+	 * @param rightValue
+	 * 		Value of the right part.
+	 * @return boolean result whether the condition holds.
+	 */
+	public boolean holds(int leftValue, int rightValue) {
+		return compare(operator, leftValue, rightValue);
+	}
+	
+	/**
+	 * Test whether this condition fails whatever the values of its attributes are, knowing the values each of them may have.
+	 * For two attributes only the smallest and the largest values are compared.
+	 * @param leftValues
+	 * 		Values the left attribute may have, not empty.
+	 * @param rightValues
+	 * 		Values the right attribute may have, not empty. Not used if the right part is a number.
+	 * @return true if it surely fails, false if it may hold.
+	 */
+	public boolean neverHolds(KeyRanges leftValues, KeyRanges rightValues) {
+		if (operator == op.in)
+			return leftValues.intersect(ranges).isEmpty();
+		if (rightName == null)
+			return leftValues.intersect(KeyRanges.of(operator, right)).isEmpty();
+		long leftLow = leftValues.lows[0];
+		long leftHigh = leftValues.highs[leftValues.size() - 1];
+		long rightLow = rightValues.lows[0];
+		long rightHigh = rightValues.highs[rightValues.size() - 1];
 		switch (operator) {
+		case e:
+			return leftHigh < rightLow || rightHigh < leftLow;
+		case ne:
+			return leftLow == leftHigh && rightLow == rightHigh && leftLow == rightLow;
 		case l:
-			return templeft < tempright;
+			return leftLow >= rightHigh;
+		case le:
+			return leftLow > rightHigh;
 		case g:
-			return templeft > tempright;
+			return leftHigh <= rightLow;
+		case ge:
+			return leftHigh < rightLow;
+		default:
+			return false;
+		}
+	}
+	
+	/**
+	 * Filter a batch with this condition. Column positions are resolved once for the whole batch
+	 * and the selection vector of the batch is shrunk in place to the rows that satisfy this condition.
+	 * @param batch
+	 * 		Batch that is being filtered.
+	 * @param schema
+	 * 		Schema of the batch.
+	 * @return number of rows left in the selection vector.
+	 */
+	public int filter(TupleBatch batch, HashMap<String, Integer> schema) {
+		return filter(batch, schema, null, null);
+	}
+
+	/**
+	 * Filter a batch with this condition, where names that are not in the schema of the batch are bound to
+	 * the columns of a single tuple. This is used by joins to test a block of tuples against one tuple.
+	 * @param batch
+	 * 		Batch that is being filtered.
+	 * @param schema
+	 * 		Schema of the batch.
+	 * @param bound
+	 * 		Tuple that provides the values of names not in schema. Can be null if there is no such name.
+	 * @param boundSchema
+	 * 		Schema of bound.
+	 * @return number of rows left in the selection vector.
+	 */
+	public int filter(TupleBatch batch, HashMap<String, Integer> schema, Tuple bound, HashMap<String, Integer> boundSchema) {
+		int [] leftCol = null;
+		int [] rightCol = null;
+		int leftVal = left;
+		int rightVal = right;
+		if (leftName != null) {
+			Integer id = schema.get(leftName);
+			if (id != null)
+				leftCol = batch.columns[id];
+			else
+				leftVal = bound.values[boundSchema.get(leftName)];
+		}
+		if (rightName != null) {
+			Integer id = schema.get(rightName);
+			if (id != null)
+				rightCol = batch.columns[id];
+			else
+				rightVal = bound.values[boundSchema.get(rightName)];
+		}
+
+		if (operator == op.in) {
+			if (leftCol == null) {
+				if (!ranges.contains(leftVal))
+					batch.selCount = 0;
+				return batch.selCount;
+			}
+			int k = 0;
+			for (int i = 0; i < batch.selCount; ++i)
+				if (ranges.contains(leftCol[batch.sel[i]]))
+					batch.sel[k++] = batch.sel[i];
+			batch.selCount = k;
+			return k;
+		}
+		if (leftCol == null && rightCol == null) {				// Same result for every row.
+			if (!compare(operator, leftVal, rightVal))
+				batch.selCount = 0;
+			return batch.selCount;
+		}
+		if (leftCol == null)									// Keep column on the left.
+			batch.selCount = filterColVal(batch.sel, batch.selCount, rightCol, mirror(operator), leftVal);
+		else if (rightCol == null)
+			batch.selCount = filterColVal(batch.sel, batch.selCount, leftCol, operator, rightVal);
+		else
+			batch.selCount = filterColCol(batch.sel, batch.selCount, leftCol, operator, rightCol);
+		return batch.selCount;
+	}
+
+	/*
+	 * Compare two values with an operator.
+	 */
+	private static boolean compare(op operator, int a, int b) {
+		switch (operator) {
+		case l:
+			return a < b;
+		case g:
+			return a > b;
 		case e:
-			return templeft == tempright;
+			return a == b;
 		case le:
-			return templeft <= tempright;
+			return a <= b;
 		case ge:
-			return templeft >= tempright;
+			return a >= b;
 		case ne:
-			return templeft != tempright;
+			return a != b;
 		default:
 			return false;
 		}
 	}
-	
+
+	/*
+	 * Get the operator that keeps the meaning when the two sides are swapped.
+	 */
+	private static op mirror(op operator) {
+		switch (operator) {
+		case l:
+			return op.g;
+		case g:
+			return op.l;
+		case le:
+			return op.ge;
+		case ge:
+			return op.le;
+		default:
+			return operator;
+		}
+	}
+
+	/*
+	 * Keep rows in sel where col OP val holds. One loop per operator so that nothing is dispatched per row.
+	 * @return number of rows kept.
+	 */
+	private static int filterColVal(int [] sel, int n, int [] col, op operator, int val) {
+		int k = 0;
+		switch (operator) {
+		case l:
+			for (int i = 0; i < n; ++i)
+				if (col[sel[i]] < val)
+					sel[k++] = sel[i];
+			break;
+		case g:
+			for (int i = 0; i < n; ++i)
+				if (col[sel[i]] > val)
+					sel[k++] = sel[i];
+			break;
+		case e:
+			for (int i = 0; i < n; ++i)
+				if (col[sel[i]] == val)
+					sel[k++] = sel[i];
+			break;
+		case le:
+			for (int i = 0; i < n; ++i)
+				if (col[sel[i]] <= val)
+					sel[k++] = sel[i];
+			break;
+		case ge:
+			for (int i = 0; i < n; ++i)
+				if (col[sel[i]] >= val)
+					sel[k++] = sel[i];
+			break;
+		case ne:
+			for (int i = 0; i < n; ++i)
+				if (col[sel[i]] != val)
+					sel[k++] = sel[i];
+			break;
+		default:
+			break;
+		}
+		return k;
+	}
+
+	/*
+	 * Keep rows in sel where col1 OP col2 holds.
+	 * @return number of rows kept.
+	 */
+	private static int filterColCol(int [] sel, int n, int [] col1, op operator, int [] col2) {
+		int k = 0;
+		switch (operator) {
+		case l:
+			for (int i = 0; i < n; ++i)
+				if (col1[sel[i]] < col2[sel[i]])
+					sel[k++] = sel[i];
+			break;
+		case g:
+			for (int i = 0; i < n; ++i)
+				if (col1[sel[i]] > col2[sel[i]])
+					sel[k++] = sel[i];
+			break;
+		case e:
+			for (int i = 0; i < n; ++i)
+				if (col1[sel[i]] == col2[sel[i]])
+					sel[k++] = sel[i];
+			break;
+		case le:
+			for (int i = 0; i < n; ++i)
+				if (col1[sel[i]] <= col2[sel[i]])
+					sel[k++] = sel[i];
+			break;
+		case ge:
+			for (int i = 0; i < n; ++i)
+				if (col1[sel[i]] >= col2[sel[i]])
+					sel[k++] = sel[i];
+			break;
+		case ne:
+			for (int i = 0; i < n; ++i)
+				if (col1[sel[i]] != col2[sel[i]])
+					sel[k++] = sel[i];
+			break;
+		default:
+			break;
+		}
+		return k;
+	}
+
 	/*
 	 * Method that print this condition.
 	 */
 	public void print() {
-		System.out.print(	(leftName == null ? String.valueOf(left) : leftName) + " " + 
-							operator.toString() + " " + 
-							(rightName == null ? String.valueOf(right) : rightName) + " : ");
+		System.out.print(toString() + " : ");
 	}
 	
 	/**
@@ -158,6 +416,8 @@ public final class Condition {
 	 */
 	@Override
 	public String toString() {
+		if (operator == op.in)
+			return leftName + " IN " + ranges.toString();
 		return 	(leftName == null ? String.valueOf(left) : leftName) + " " + 
 				operator.toString() + " " + 
 				(rightName == null ? String.valueOf(right) : rightName);
@@ -1,8 +1,15 @@
 package base;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
@@ -53,6 +60,7 @@ public final class DBCatalog {
 		public String name;				// Part name.
 		public Integer highValue;		// Largest value according to statistics.
 		public Integer lowValue;		// Smallest value according to statistics.
+		public BloomFilter bloom = null;	// Values of this attribute according to statistics, null if not available.
 		
 		/**
 		 * Constructor.
@@ -118,7 +126,10 @@ public final class DBCatalog {
 	
 	private static DBCatalog catalog = new DBCatalog();		// The only instance of this class.
 	
-	public int pageSize = 4096;								// page size of files.
+	public int pageSize = FileHeader.LEGACY_PAGE_SIZE;		// page size of new files, from the optional 4th line of config file.
+	public int dataLayout = FileHeader.ROW;					// page format of relation files, from the optional 5th line of config file.
+	public int scanThreads = Runtime.getRuntime().availableProcessors();	// threads of a parallel scan, from the optional 6th line of config file.
+	public int joinMemory = 1024;							// pages of memory a hash join may use for its build side, from the optional 7th line of config file.
 	public String inputPath = "";							// inputPath from cmd with a / at the end.
 	public String outputPath = "";							// outputPath from cmd with a / at the end.
 	public String tempPath = "";							// tempPath from cmd with a / at the end.
@@ -152,6 +163,58 @@ public final class DBCatalog {
 		this.outputPath = configLine.trim() + (configLine.contains("/")?"/":"\\");
 		configLine = configReader.readLine();
 		this.tempPath = configLine.trim() + (configLine.contains("/")?"/":"\\");
+		
+		// Optional page size of new files, in bytes.
+		configLine = configReader.readLine();
+		if (configLine != null && !configLine.trim().isEmpty()) {
+			int size = 0;			// Invalid unless the line is a number.
+			try {
+				size = Integer.valueOf(configLine.trim());
+			} catch (NumberFormatException e) {}
+			if (FileHeader.isValidPageSize(size))
+				this.pageSize = size;
+			else
+				System.err.println("Unsupported page size " + configLine.trim() + ", using " + this.pageSize);
+		}
+		
+		// Optional page format of relation files, row, pax or compressed.
+		configLine = configReader.readLine();
+		if (configLine != null && !configLine.trim().isEmpty()) {
+			if (configLine.trim().equalsIgnoreCase("pax"))
+				this.dataLayout = FileHeader.PAX;
+			else if (configLine.trim().equalsIgnoreCase("compressed"))
+				this.dataLayout = FileHeader.COMPRESSED;
+			else if (configLine.trim().equalsIgnoreCase("row"))
+				this.dataLayout = FileHeader.ROW;
+			else
+				System.err.println("Unsupported page format " + configLine.trim() + ", using row");
+		}
+		
+		// Optional number of threads a scan of a large relation uses, 1 to scan on one thread.
+		configLine = configReader.readLine();
+		if (configLine != null && !configLine.trim().isEmpty()) {
+			int threads = 0;			// Invalid unless the line is a number.
+			try {
+				threads = Integer.valueOf(configLine.trim());
+			} catch (NumberFormatException e) {}
+			if (threads >= 1)
+				this.scanThreads = threads;
+			else
+				System.err.println("Unsupported scan threads " + configLine.trim() + ", using " + this.scanThreads);
+		}
+		
+		// Optional number of pages of memory a hash join may use for the tuples of its build side.
+		configLine = configReader.readLine();
+		if (configLine != null && !configLine.trim().isEmpty()) {
+			int pages = 0;			// Invalid unless the line is a number.
+			try {
+				pages = Integer.valueOf(configLine.trim());
+			} catch (NumberFormatException e) {}
+			if (pages >= 1)
+				this.joinMemory = pages;
+			else
+				System.err.println("Unsupported join memory " + configLine.trim() + ", using " + this.joinMemory);
+		}
 		configReader.close();
 		
 		// gather statistics
@@ -174,6 +237,7 @@ public final class DBCatalog {
 			tables.put(columns[0], relation);
 		}
 		statReader.close();
+		readBloomFilters();
 		
 		// Read from index info file to get index setting.
 		append = (this.inputPath.contains("/") ? "db/index_info.txt" : "db\\index_info.txt");
@@ -187,15 +251,51 @@ public final class DBCatalog {
 		indexesReader.close();
 	}
 	
+	/*
+	 * Read Bloom filters of attributes from db/stat.bloom, if it exists.
+	 * It holds [relation name, number of attributes, filter of every attribute] for every relation.
+	 */
+	private void readBloomFilters() {
+		String append = (this.inputPath.contains("/") ? "db/stat.bloom" : "db\\stat.bloom");
+		File bloomFile = new File(this.inputPath + append);
+		if (!bloomFile.isFile())
+			return;
+		try (DataInputStream bloomIn = new DataInputStream(new BufferedInputStream(new FileInputStream(bloomFile)))) {
+			while (true) {
+				String name;
+				try {
+					name = bloomIn.readUTF();
+				} catch (EOFException e) {
+					break;
+				}
+				int count = bloomIn.readInt();
+				RelationInfo relation = tables.get(name);
+				for (int i = 0; i < count; ++i) {
+					BloomFilter bloom = BloomFilter.read(bloomIn);
+					if (relation != null && i < relation.attrs.size())
+						relation.attrs.get(i).bloom = bloom;
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
 	/*
 	 * Gather statistics about data and write stats to db/stat.txt
+	 * The zone map of every relation is built on the way and written next to its file,
+	 * and a Bloom filter of every attribute is written to db/stat.bloom.
+	 * Nothing is done if the statistics written before are still up to date, see statsUpToDate.
 	 */
 	public void gatherStats() {
+		if (statsUpToDate())
+			return;
 		try {
 			BufferedReader schemaReader = new BufferedReader(new FileReader(this.inputPath+"db/schema.txt"));
 			File statFile = new File(this.inputPath+"db/stat.txt");
 			statFile.createNewFile();
             BufferedWriter statFileWriter = new BufferedWriter(new FileWriter(statFile));
+            DataOutputStream bloomOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(this.inputPath+"db/stat.bloom")));
             
 			String line = null;
 			Tuple tempTuple;
@@ -203,6 +303,11 @@ public final class DBCatalog {
 				
 				String [] content = line.trim().split(" ");
 				TupleReader tempTR = new TupleReader(this.inputPath+"db/data/"+content[0]);
+				ZoneMap zones = new ZoneMap(content.length - 1);
+				BloomFilter [] blooms = new BloomFilter [content.length - 1];
+				long expected = new File(this.inputPath+"db/data/"+content[0]).length() / (4 * Math.max(1, blooms.length));	// Tuples if not compressed.
+				for (int i = 0; i < blooms.length; ++i)
+					blooms[i] = new BloomFilter(expected);
 				Map<String, ArrayList<Integer>> tempInfo = new HashMap<String, ArrayList<Integer>>();
 				for (int i = 1; i < content.length; ++i) {
 					tempInfo.put(content[i], new ArrayList<Integer>());
@@ -212,10 +317,12 @@ public final class DBCatalog {
 				int tempCount = 0;
 				while ((tempTuple = tempTR.getNextTuple()) != null) {
 					++tempCount;
+					zones.add(tempTR.currentPage(), tempTuple.values);
 					int tempInt = 0 ;
-					for (int j = 0; j < tempTuple.data.size(); ++j) {
+					for (int j = 0; j < tempTuple.arity; ++j) {
 						ArrayList<Integer> tempArr = tempInfo.get(content[j+1]);
-						tempInt = tempTuple.data.get(j);
+						tempInt = tempTuple.values[j];
+						blooms[j].add(tempInt);
 						if (tempInt < tempArr.get(0)) {
 							tempArr.set(0, tempInt);
 						}
@@ -231,18 +338,113 @@ public final class DBCatalog {
 					
 				}
 	
+				tempTR.close();
+				zones.write(this.inputPath+"db/data/"+content[0]);
+				bloomOut.writeUTF(content[0]);
+				bloomOut.writeInt(blooms.length);
+				for (BloomFilter bloom : blooms)
+					bloom.write(bloomOut);
 //				System.out.println(minMaxStr);
 				statFileWriter.write(content[0] + " " + String.valueOf(tempCount) + " " + minMaxStr + "\n" );
 				
 			}
 			schemaReader.close();
 			statFileWriter.close();
+			bloomOut.close();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 		
 	}
 	
+	/*
+	 * Test whether statistics written before still hold: db/stat.txt and db/stat.bloom are not older than schema
+	 * and any relation file, and every relation has a zone map that is up to date.
+	 */
+	private boolean statsUpToDate() {
+		File statFile = new File(this.inputPath+"db/stat.txt");
+		File bloomFile = new File(this.inputPath+"db/stat.bloom");
+		if (!statFile.isFile() || !bloomFile.isFile())
+			return false;
+		long written = Math.min(statFile.lastModified(), bloomFile.lastModified());
+		if (new File(this.inputPath+"db/schema.txt").lastModified() > written)
+			return false;
+		try (BufferedReader schemaReader = new BufferedReader(new FileReader(this.inputPath+"db/schema.txt"))) {
+			String line = null;
+			while ((line=schemaReader.readLine()) != null) {
+				String dataPath = this.inputPath+"db/data/"+line.trim().split(" ")[0];
+				if (new File(dataPath).lastModified() > written || ZoneMap.read(dataPath) == null)
+					return false;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+		return true;
+	}
+	
+	/*
+	 * Update statistics of a relation with records appended to it, and write them to db/stat.txt and db/stat.bloom.
+	 * Bloom filters keep their size, so they get more false positives as records are added, until statistics are gathered again.
+	 * @param
+	 * 		relationName: the relation.
+	 * 		added: records appended.
+	 */
+	public void updateStats(String relationName, Iterable<Tuple> added) throws IOException {
+		RelationInfo relation = tables.get(relationName);
+		for (Tuple tuple : added) {
+			++relation.tupleNum;
+			for (int i = 0; i < tuple.arity; ++i) {
+				AttrInfo attr = relation.attrs.get(i);
+				if (tuple.values[i] < attr.lowValue)		// An empty relation has low above high.
+					attr.lowValue = tuple.values[i];
+				if (tuple.values[i] > attr.highValue)
+					attr.highValue = tuple.values[i];
+				if (attr.bloom != null)
+					attr.bloom.add(tuple.values[i]);
+			}
+		}
+		writeStats();
+	}
+	
+	/*
+	 * Write statistics in memory to db/stat.txt and db/stat.bloom, relations in schema order.
+	 * If some attribute has no Bloom filter, db/stat.bloom is removed, because a filter missing values would drop tuples.
+	 */
+	private void writeStats() throws IOException {
+		Vector<String> names = new Vector<>();
+		try (BufferedReader schemaReader = new BufferedReader(new FileReader(this.inputPath+"db/schema.txt"))) {
+			String line = null;
+			while ((line=schemaReader.readLine()) != null)
+				names.add(line.trim().split(" ")[0]);
+		}
+		boolean blooms = true;
+		try (BufferedWriter statFileWriter = new BufferedWriter(new FileWriter(this.inputPath+"db/stat.txt"))) {
+			for (String name : names) {
+				RelationInfo relation = tables.get(name);
+				String minMaxStr = "";
+				for (AttrInfo attr : relation.attrs) {
+					minMaxStr += attr.name + "," + attr.lowValue + "," + attr.highValue + " ";
+					blooms &= (attr.bloom != null);
+				}
+				statFileWriter.write(name + " " + relation.tupleNum + " " + minMaxStr + "\n");
+			}
+		}
+		if (!blooms) {
+			new File(this.inputPath+"db/stat.bloom").delete();
+			return;
+		}
+		try (DataOutputStream bloomOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(this.inputPath+"db/stat.bloom")))) {
+			for (String name : names) {
+				RelationInfo relation = tables.get(name);
+				bloomOut.writeUTF(name);
+				bloomOut.writeInt(relation.attrs.size());
+				for (AttrInfo attr : relation.attrs)
+					attr.bloom.write(bloomOut);
+			}
+		}
+	}
+	
 	/*
 	 * Print catalog information.
 	 */
@@ -250,6 +452,10 @@ public final class DBCatalog {
 		System.out.println("inputPath:\t" + inputPath);
 		System.out.println("outputPath:\t" + outputPath);
 		System.out.println("tempPath:\t" + tempPath);
+		System.out.println("pageSize:\t" + pageSize);
+		System.out.println("dataLayout:\t" + FileHeader.of(pageSize, dataLayout));
+		System.out.println("scanThreads:\t" + scanThreads);
+		System.out.println("joinMemory:\t" + joinMemory);
 		
 		System.out.println("Relation info:");
 		Set<String> tableNames = tables.keySet();
@@ -5,6 +5,8 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.Map.Entry;
 
 import static java.nio.file.StandardCopyOption.*;
@@ -13,6 +15,7 @@ import logicalPlan.LogPlan;
 import net.sf.jsqlparser.parser.CCJSqlParser;
 import net.sf.jsqlparser.statement.Statement;
 import net.sf.jsqlparser.statement.select.Select;
+import physicalPlan.PhyOp;
 import physicalPlan.PhyPlan;
 import physicalPlan.PhyScanBfOp;
 import physicalPlan.PhySortExOp;
@@ -43,6 +46,169 @@ public final class DBPrPro2Main {
     	 f.delete();
 	}
 	
+	/*
+	 * Function that rewrites a relation file with the output of an operator, in the data page format in catalog.
+	 * Its zone map is recorded on the way.
+	 * 
+	 * @param
+	 * 		source: operator whose output is the new content of the relation.
+	 * 		path: path of the relation file.
+	 */
+	private static void rewriteData(PhyOp source, String path) throws IOException {
+		String tempFile = DBCatalog.getCatalog().tempPath + new File(path).getName() + "_rewrite";
+		TupleWriter TW = new TupleWriter(tempFile, true, FileHeader.forData());
+		TW.recordZones();
+		TupleBatch batch;
+		while ((batch = source.getNextBatch()) != null)
+			TW.setNextBatch(batch);
+		if (!TW.bufferEmpty())
+			TW.fillFlush();
+		TW.close();
+		Files.move(Paths.get(tempFile), Paths.get(path), REPLACE_EXISTING);
+		Files.move(Paths.get(ZoneMap.path(tempFile)), Paths.get(ZoneMap.path(path)), REPLACE_EXISTING);
+		BufferPool.getPool().invalidate(path);
+	}
+	
+	/*
+	 * Function that makes a relation ready for queries: its file in the page format in catalog, sorted on the key of
+	 * its clustered index if it has one, and all its indexes built. Nothing is done if the file is in that format
+	 * and every index is up to date, see BTreeIndex.isUpToDate, unless asked to.
+	 * 
+	 * @param
+	 * 		name: name of the relation.
+	 * 		relation: catalog information of the relation.
+	 * 		force: whether to do it even if indexes are up to date.
+	 */
+	private static void prepareRelation(String name, DBCatalog.RelationInfo relation, boolean force) throws IOException {
+		String append = (DBCatalog.getCatalog().inputPath.contains("/") ? "db/data/": "db\\data\\");
+		String dataPath = DBCatalog.getCatalog().inputPath + append + name;
+		boolean upToDate = !force && FileHeader.read(dataPath).layout == DBCatalog.getCatalog().dataLayout;
+		for (DBCatalog.IndexInfo indexInfo : relation.indexes)
+			upToDate &= BTreeIndex.isUpToDate(name, indexInfo.keyName, indexInfo.clustered == 1, indexInfo.order);
+		if (upToDate)
+			return;
+		
+		// Store relations in the page format asked for in config. Relations sorted for a clustered index are rewritten there anyway.
+		boolean sorted = false;
+		for (DBCatalog.IndexInfo indexInfo : relation.indexes)
+			sorted |= (indexInfo.clustered == 1);
+		if (!sorted && FileHeader.read(dataPath).layout != DBCatalog.getCatalog().dataLayout) {
+			PhyScanBfOp tempScan = new PhyScanBfOp();
+			tempScan.fileName = name;
+			tempScan.alias = name;
+			tempScan.buildSchema();
+			rewriteData(tempScan, dataPath);
+		}
+		
+		for (DBCatalog.IndexInfo indexInfo : relation.indexes) {
+			if (indexInfo.clustered == 1) {
+				PhyScanBfOp tempScan = new PhyScanBfOp();
+				tempScan.fileName = name;
+				tempScan.alias = name;
+				PhySortExOp tempSort = new PhySortExOp(10);
+				tempSort.child = tempScan;
+				tempSort.buildSchema();
+				tempSort.sortAttrs.add(name + "." + indexInfo.keyName);
+				
+				// Output human readable for debugging. Can be omitted.
+				tempSort.dumpReadable(new FileOutputStream(dataPath + "_humanreadable"));
+				if (FileHeader.forTemp().layout == DBCatalog.getCatalog().dataLayout) {
+					Files.move(Paths.get(tempSort.getResultPath()), Paths.get(dataPath), REPLACE_EXISTING);
+					BufferPool.getPool().invalidate(dataPath);
+					ZoneMap.build(dataPath, relation.attrs.size()).write(dataPath);
+				} else {											// Sorted result is in another format, so write it again.
+					tempSort.reset();
+					rewriteData(tempSort, dataPath);
+				}
+			}
+			
+			// Build index
+			new BTreeIndex(name, indexInfo.keyName, indexInfo.clustered == 1, indexInfo.order);
+			indexInfo.leafNum = -1;
+		}
+	}
+	
+	/*
+	 * Function that appends records to a relation at a cost that grows with the records, not the relation.
+	 * They go after the last page of its file, its statistics and zone map are updated, and their keys are merged
+	 * into its indexes in place. A clustered relation stays sorted if the records come after its largest key,
+	 * otherwise, or if a leaf of some index overflows, the relation is prepared again from scratch.
+	 * 
+	 * @param
+	 * 		name: name of the relation.
+	 * 		deltaPath: path of a file holding the records, in any page layout.
+	 */
+	public static void appendData(String name, String deltaPath) throws IOException {
+		DBCatalog.RelationInfo relation = DBCatalog.getCatalog().tables.get(name);
+		String append = (DBCatalog.getCatalog().inputPath.contains("/") ? "db/data/": "db\\data\\");
+		String dataPath = DBCatalog.getCatalog().inputPath + append + name;
+		
+		ArrayList<Tuple> added = new ArrayList<>();
+		TupleReader TR = new TupleReader(deltaPath);
+		Tuple tuple;
+		while ((tuple = TR.getNextTuple()) != null) {
+			if (tuple.arity != relation.attrs.size()) {
+				TR.close();
+				throw new IOException("Records of " + deltaPath + " do not have the attributes of " + name);
+			}
+			added.add(tuple);
+		}
+		TR.close();
+		if (added.isEmpty())
+			return;
+		
+		// Records of a clustered relation go in key order after the largest key, or the relation is sorted again.
+		boolean rebuild = false;
+		for (DBCatalog.IndexInfo indexInfo : relation.indexes) {
+			if (indexInfo.clustered == 1) {
+				int keyId = relation.findIdOfAttr(indexInfo.keyName);
+				added.sort(Comparator.comparingInt(t -> t.values[keyId]));
+				rebuild = (added.get(0).values[keyId] < relation.attrs.get(keyId).highValue);
+			}
+		}
+		
+		TupleWriter TW = TupleWriter.append(dataPath, true);
+		int firstPage = TW.pageId();
+		TW.recordZones();
+		for (Tuple t : added)
+			TW.setNextTuple(t);
+		if (!TW.bufferEmpty())
+			TW.fillFlush();
+		TW.close();
+		
+		// Merge keys and rids of new records into every index.
+		for (DBCatalog.IndexInfo indexInfo : relation.indexes) {
+			if (rebuild)
+				break;
+			ArrayList<Tuple> keyRids = new ArrayList<>();
+			TR = new TupleReader(dataPath, 0, null, firstPage, Integer.MAX_VALUE);
+			int keyId = relation.findIdOfAttr(indexInfo.keyName);
+			while ((tuple = TR.getNextKeyRid(keyId)) != null)
+				keyRids.add(tuple);
+			TR.close();
+			rebuild = !BTreeIndex.merge(name, indexInfo.keyName, keyRids);
+		}
+		if (rebuild)
+			prepareRelation(name, relation, true);
+		DBCatalog.getCatalog().updateStats(name, added);
+	}
+	
+	/*
+	 * Function that appends the records of every file in db/delta to the relation of the same name, and removes the file.
+	 */
+	private static void loadDeltas() throws IOException {
+		String append = (DBCatalog.getCatalog().inputPath.contains("/") ? "db/delta/": "db\\delta\\");
+		String [] list = new File(DBCatalog.getCatalog().inputPath + append).list();
+		if (list == null)
+			return;
+		for (String name : list) {
+			if (!DBCatalog.getCatalog().tables.containsKey(name))
+				continue;
+			appendData(name, DBCatalog.getCatalog().inputPath + append + name);
+			new File(DBCatalog.getCatalog().inputPath + append + name).delete();
+		}
+	}
+	
 	/*
 	 * Function that clears the temp file, which is called after every query.
 	 */
@@ -74,32 +240,11 @@ public final class DBPrPro2Main {
 		System.out.println();
 		
 			
-		// Build indexes. Clear previous indexes
-		String append = (DBCatalog.getCatalog().inputPath.contains("/") ? "/db/indexes/" : "\\db\\indexes\\");
-		clearFolder(DBCatalog.getCatalog().inputPath + append);
-		
+		// Build indexes that are not up to date, then add records waiting in db/delta.
 		try {
-			for (Entry<String, DBCatalog.RelationInfo> relation : DBCatalog.getCatalog().tables.entrySet()) {
-				for (DBCatalog.IndexInfo indexInfo : relation.getValue().indexes) {
-					if (indexInfo.clustered == 1) {
-						PhyScanBfOp tempScan = new PhyScanBfOp();
-						tempScan.fileName = relation.getKey();
-						tempScan.alias = relation.getKey();
-						PhySortExOp tempSort = new PhySortExOp(10);
-						tempSort.child = tempScan;
-						tempSort.buildSchema();
-						tempSort.sortAttrs.add(relation.getKey() + "." + indexInfo.keyName);
-						append = (DBCatalog.getCatalog().inputPath.contains("/") ? "db/data/": "db\\data\\");
-						
-						// Output human readable for debugging. Can be omitted.
-						tempSort.dumpReadable(new FileOutputStream(DBCatalog.getCatalog().inputPath + append + relation.getKey() + "_humanreadable"));
-						Files.move(Paths.get(tempSort.getResultPath()), Paths.get(DBCatalog.getCatalog().inputPath + append + relation.getKey()), REPLACE_EXISTING);
-					}
-					
-					// Build index
-					new BTreeIndex(relation.getKey(), indexInfo.keyName, indexInfo.clustered == 1, indexInfo.order);
-				}
-			}
+			for (Entry<String, DBCatalog.RelationInfo> relation : DBCatalog.getCatalog().tables.entrySet())
+				prepareRelation(relation.getKey(), relation.getValue(), false);
+			loadDeltas();
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
@@ -129,7 +274,7 @@ public final class DBPrPro2Main {
 					phyPlan.print(new FileOutputStream(DBCatalog.getCatalog().outputPath + "query" + (i-1) + "_physicalplan"));
 					
 					long startTime = System.currentTimeMillis();
-					phyPlan.root.dump(new FileOutputStream(DBCatalog.getCatalog().outputPath + "query" + (i-1)));
+					phyPlan.dump(new FileOutputStream(DBCatalog.getCatalog().outputPath + "query" + (i-1)));
 					long endTime = System.currentTimeMillis();
 					long runtime = endTime - startTime;
 					System.out.println("Run time of query " + (i-1) + ": " + runtime + "\n");
@@ -151,6 +296,9 @@ public final class DBPrPro2Main {
 		} catch (Exception e) {
 			System.err.println("Exception occurred with CCJSqlParser: " + e.toString());
 		}
+		
+		// Output how the buffer pool served all the queries.
+		System.out.println(BufferPool.getPool());
  
 	}
 }
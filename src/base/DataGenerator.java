@@ -34,7 +34,7 @@ public final class DataGenerator {
 				Tuple tp = new Tuple();
 				for (int j = 0; j < 6; ++j) {
 					Integer temp = rand.nextInt(1000);
-					tp.data.add(temp);
+					tp.add(temp);
 					dataOut.writeBytes((j == 0 ? temp.toString() : "," + temp.toString()));
 				}
 				TW.setNextTuple(tp);
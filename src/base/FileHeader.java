@@ -0,0 +1,215 @@
+package base;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * FileHeader
+ * Page layout of a data or index file, so that every file can be read with the page size and format it was written with.
+ * Files written in ROW format with the legacy page size of 4096 bytes have no header and page 0 starts at byte 0, as before.
+ * Other files start with a header block of HEADER_SIZE bytes holding MAGIC, the page size and the format,
+ * and page i starts at byte HEADER_SIZE + i * pageSize. The header block is 4 KB so that pages stay aligned to disk blocks.
+ * Page ids, and so the page part of rids, never count the header block.
+ *
+ * Every tuple page starts with the tuple size and the tuple count. In ROW format tuples follow one after another.
+ * In PAX format the rest of the page is cut into one minipage per column, each with room for capacity(arity) values,
+ * so that a column of a page is read without touching the others. A page holds the same number of tuples in both formats.
+ * Value (row, col) of a page is at columnOffset(arity, col) + row * rowStride(arity) in either format.
+ * In COMPRESSED format every column of a page is encoded on its own and a page holds as many tuples as fit, see PageCodec.
+ *
+ * @author Enze Zhou ez242
+ */
+public final class FileHeader {
+
+	public static final int MAGIC = 0x44425046;					// "DBPF", never a tuple size or a root address of an index.
+	public static final int LEGACY_PAGE_SIZE = 4096;			// Page size of files without header.
+	public static final int MIN_PAGE_SIZE = LEGACY_PAGE_SIZE;
+	public static final int MAX_PAGE_SIZE = 1 << 20;
+	public static final int HEADER_SIZE = 4096;					// Bytes before page 0 in a file with header.
+	public static final int ROW = 0;							// Tuples stored one after another.
+	public static final int PAX = 1;							// One minipage per column.
+	public static final int COMPRESSED = 2;						// One encoded column after another.
+
+	private static final String [] NAMES = { "ROW", "PAX", "COMPRESSED" };
+
+	public final int pageSize;									// Size of every page of the file.
+	public final int layout;									// ROW, PAX or COMPRESSED.
+	public final int offset;									// Position of page 0 in the file.
+
+	/*
+	 * Constructor is private, use of, forWriting, forData or read.
+	 */
+	private FileHeader(int pageSize, int layout) {
+		this.pageSize = pageSize;
+		this.layout = layout;
+		this.offset = (pageSize == LEGACY_PAGE_SIZE && layout == ROW ? 0 : HEADER_SIZE);
+	}
+
+	/**
+	 * Test whether a page size is supported: a power of 2 between MIN_PAGE_SIZE and MAX_PAGE_SIZE.
+	 * @param pageSize
+	 * 		page size in bytes.
+	 * @return true if it is supported.
+	 */
+	public static boolean isValidPageSize(int pageSize) {
+		return pageSize >= MIN_PAGE_SIZE && pageSize <= MAX_PAGE_SIZE && Integer.bitCount(pageSize) == 1;
+	}
+
+	/**
+	 * Get the layout of a ROW file with some page size.
+	 * @param pageSize
+	 * 		page size in bytes, must be valid.
+	 * @return the layout.
+	 */
+	public static FileHeader of(int pageSize) {
+		return of(pageSize, ROW);
+	}
+
+	/**
+	 * Get the layout of a file with some page size and format.
+	 * @param pageSize
+	 * 		page size in bytes, must be valid.
+	 * @param layout
+	 * 		ROW, PAX or COMPRESSED.
+	 * @return the layout.
+	 */
+	public static FileHeader of(int pageSize, int layout) {
+		if (!isValidPageSize(pageSize))
+			throw new IllegalArgumentException("Unsupported page size " + pageSize);
+		if (layout < ROW || layout > COMPRESSED)
+			throw new IllegalArgumentException("Unsupported page format " + layout);
+		return new FileHeader(pageSize, layout);
+	}
+
+	/**
+	 * Get the layout of a new intermediate or output file: ROW format with the page size in catalog.
+	 * @return the layout.
+	 */
+	public static FileHeader forWriting() {
+		return of(DBCatalog.getCatalog().pageSize);
+	}
+
+	/**
+	 * Get the layout of a new relation file under db/data: the page size and the data format in catalog.
+	 * @return the layout.
+	 */
+	public static FileHeader forData() {
+		return of(DBCatalog.getCatalog().pageSize, DBCatalog.getCatalog().dataLayout);
+	}
+
+	/**
+	 * Get the layout of a new temporary file that is read back whole, like a sort run.
+	 * It's compressed if relations are, otherwise the same as forWriting.
+	 * @return the layout.
+	 */
+	public static FileHeader forTemp() {
+		if (DBCatalog.getCatalog().dataLayout == COMPRESSED)
+			return of(DBCatalog.getCatalog().pageSize, COMPRESSED);
+		return forWriting();
+	}
+
+	/**
+	 * Read the layout of an existing file. The position of the channel is not changed.
+	 * @param FC
+	 * 		channel of the file.
+	 * @return the layout. Empty files and files without header have the legacy layout.
+	 */
+	public static FileHeader read(FileChannel FC) throws IOException {
+		ByteBuffer BB = ByteBuffer.allocate(12);
+		while (BB.hasRemaining()) {
+			if (FC.read(BB, BB.position()) <= 0)
+				break;
+		}
+		if (BB.position() < 12 || BB.getInt(0) != MAGIC)
+			return new FileHeader(LEGACY_PAGE_SIZE, ROW);
+		int pageSize = BB.getInt(4);
+		int layout = BB.getInt(8);
+		if (!isValidPageSize(pageSize) || layout < ROW || layout > COMPRESSED)
+			throw new IOException("Corrupted file header, page size " + pageSize + ", format " + layout);
+		return new FileHeader(pageSize, layout);
+	}
+
+	/**
+	 * Read the layout of an existing file.
+	 * @param path
+	 * 		path of the file.
+	 * @return the layout.
+	 */
+	public static FileHeader read(String path) throws IOException {
+		try (FileInputStream in = new FileInputStream(path)) {
+			return read(in.getChannel());
+		}
+	}
+
+	/**
+	 * Write the header block at the current position of a channel, which should be the beginning of a new file.
+	 * Nothing is written for the legacy layout.
+	 * @param FC
+	 * 		channel of the file.
+	 */
+	public void write(FileChannel FC) throws IOException {
+		if (offset == 0)
+			return;
+		ByteBuffer BB = ByteBuffer.allocate(offset);
+		BB.putInt(0, MAGIC);
+		BB.putInt(4, pageSize);
+		BB.putInt(8, layout);
+		while (BB.hasRemaining())
+			FC.write(BB);
+	}
+
+	/**
+	 * Get the position of a page in the file.
+	 * @param pageId
+	 * 		page id, 0 is the first page after the header.
+	 * @return position in bytes.
+	 */
+	public long position(int pageId) {
+		return offset + (long) pageId * pageSize;
+	}
+
+	/**
+	 * Get the number of tuples a ROW or PAX page can hold.
+	 * @param arity
+	 * 		number of columns of the tuples, at least 1.
+	 * @return number of tuples.
+	 */
+	public int capacity(int arity) {
+		return (pageSize - 8) / (4 * arity);
+	}
+
+	/**
+	 * Get the position in a page of the value of a column in the first tuple.
+	 * @param arity
+	 * 		number of columns of the tuples.
+	 * @param col
+	 * 		index of the column.
+	 * @return position in bytes from the start of the page.
+	 */
+	public int columnOffset(int arity, int col) {
+		return (layout == PAX ? 8 + 4 * col * capacity(arity) : 8 + 4 * col);
+	}
+
+	/**
+	 * Get the distance in bytes between the values of a column in two consecutive tuples of a page.
+	 * @param arity
+	 * 		number of columns of the tuples.
+	 * @return distance in bytes.
+	 */
+	public int rowStride(int arity) {
+		return (layout == PAX ? 4 : 4 * arity);
+	}
+
+	/**
+	 * Get string representation of this layout.
+	 * @see java.lang.Object#toString()
+	 * @return
+	 * 		string representation of this layout.
+	 */
+	@Override
+	public String toString() {
+		return String.format("FileHeader[pageSize: %d, layout: %s, offset: %d]", pageSize, NAMES[layout], offset);
+	}
+}
@@ -0,0 +1,244 @@
+package base;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * KeyRanges
+ * A set of int values kept as sorted, disjoint and not adjacent ranges [lows[i], highs[i]], both ends included.
+ * It's what a disjunction of comparisons of one attribute with constants, an IN list or a <> selects, so that a
+ * condition like A IN (1, 5, 9) OR A > 100 is tested by a binary search and an index scan can visit only those ranges.
+ * A set is never changed, operations build new ones.
+ *
+ * @author Enze Zhou ez242
+ */
+public final class KeyRanges {
+
+	public final int [] lows;			// Lower end of every range, ascending.
+	public final int [] highs;			// Upper end of every range.
+
+	/*
+	 * Constructor from ranges already sorted, disjoint and not adjacent.
+	 */
+	private KeyRanges(int [] lows, int [] highs) {
+		this.lows = lows;
+		this.highs = highs;
+	}
+
+	/**
+	 * Build a set of one range.
+	 * @param low
+	 * 		lower end, included. Ends are cut to int values.
+	 * @param high
+	 * 		upper end, included.
+	 * @return the set, empty if low > high.
+	 */
+	public static KeyRanges range(long low, long high) {
+		low = Math.max(low, Integer.MIN_VALUE);
+		high = Math.min(high, Integer.MAX_VALUE);
+		if (low > high)
+			return new KeyRanges(new int [0], new int [0]);
+		return new KeyRanges(new int [] {(int) low}, new int [] {(int) high});
+	}
+
+	/**
+	 * Build the set of every int value.
+	 * @return the set.
+	 */
+	public static KeyRanges all() {
+		return range(Integer.MIN_VALUE, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Build the set of values v such that v OP value holds.
+	 * @param operator
+	 * 		the operator.
+	 * @param value
+	 * 		the constant on the right.
+	 * @return the set.
+	 */
+	public static KeyRanges of(Condition.op operator, int value) {
+		switch (operator) {
+		case l:
+			return range(Integer.MIN_VALUE, (long) value - 1);
+		case le:
+			return range(Integer.MIN_VALUE, value);
+		case g:
+			return range((long) value + 1, Integer.MAX_VALUE);
+		case ge:
+			return range(value, Integer.MAX_VALUE);
+		case e:
+			return range(value, value);
+		case ne:
+			return range(value, value).complement();
+		default:
+			return all();
+		}
+	}
+
+	/**
+	 * Build the set of some values.
+	 * @param values
+	 * 		the values, in any order and maybe repeated.
+	 * @return the set.
+	 */
+	public static KeyRanges points(int [] values) {
+		int [] sorted = values.clone();
+		Arrays.sort(sorted);
+		ArrayList<long []> ranges = new ArrayList<>();
+		for (int v : sorted)
+			ranges.add(new long [] {v, v});
+		return normalize(ranges);
+	}
+
+	/*
+	 * Build a set from ranges sorted by lower end, merging the ones that overlap or touch.
+	 */
+	private static KeyRanges normalize(ArrayList<long []> ranges) {
+		ArrayList<long []> merged = new ArrayList<>();
+		for (long [] r : ranges) {
+			if (r[0] > r[1])
+				continue;
+			long [] last = (merged.isEmpty() ? null : merged.get(merged.size() - 1));
+			if (last != null && r[0] <= last[1] + 1)
+				last[1] = Math.max(last[1], r[1]);
+			else
+				merged.add(new long [] {r[0], r[1]});
+		}
+		int [] lows = new int [merged.size()];
+		int [] highs = new int [merged.size()];
+		for (int i = 0; i < lows.length; ++i) {
+			lows[i] = (int) merged.get(i)[0];
+			highs[i] = (int) merged.get(i)[1];
+		}
+		return new KeyRanges(lows, highs);
+	}
+
+	/**
+	 * Get the values in this set or another.
+	 * @param other
+	 * 		the other set.
+	 * @return the union.
+	 */
+	public KeyRanges union(KeyRanges other) {
+		ArrayList<long []> ranges = new ArrayList<>();
+		int i = 0;
+		int j = 0;
+		while (i < lows.length || j < other.lows.length) {
+			if (j == other.lows.length || (i < lows.length && lows[i] <= other.lows[j])) {
+				ranges.add(new long [] {lows[i], highs[i]});
+				++i;
+			} else {
+				ranges.add(new long [] {other.lows[j], other.highs[j]});
+				++j;
+			}
+		}
+		return normalize(ranges);
+	}
+
+	/**
+	 * Get the values in both this set and another.
+	 * @param other
+	 * 		the other set.
+	 * @return the intersection.
+	 */
+	public KeyRanges intersect(KeyRanges other) {
+		ArrayList<long []> ranges = new ArrayList<>();
+		int i = 0;
+		int j = 0;
+		while (i < lows.length && j < other.lows.length) {
+			long low = Math.max(lows[i], other.lows[j]);
+			long high = Math.min(highs[i], other.highs[j]);
+			if (low <= high)
+				ranges.add(new long [] {low, high});
+			if (highs[i] < other.highs[j])
+				++i;
+			else
+				++j;
+		}
+		return normalize(ranges);
+	}
+
+	/**
+	 * Get the int values not in this set.
+	 * @return the complement.
+	 */
+	public KeyRanges complement() {
+		ArrayList<long []> ranges = new ArrayList<>();
+		long next = Integer.MIN_VALUE;
+		for (int i = 0; i < lows.length; ++i) {
+			ranges.add(new long [] {next, (long) lows[i] - 1});
+			next = (long) highs[i] + 1;
+		}
+		ranges.add(new long [] {next, Integer.MAX_VALUE});
+		return normalize(ranges);
+	}
+
+	/**
+	 * Test whether a value is in this set, by binary search.
+	 * @param value
+	 * 		the value.
+	 * @return true if it is.
+	 */
+	public boolean contains(int value) {
+		int low = 0;
+		int high = lows.length - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (value < lows[mid])
+				high = mid - 1;
+			else if (value > highs[mid])
+				low = mid + 1;
+			else
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Get the number of ranges.
+	 * @return number of ranges.
+	 */
+	public int size() {
+		return lows.length;
+	}
+
+	/**
+	 * Test whether this set has no value.
+	 * @return true if it's empty.
+	 */
+	public boolean isEmpty() {
+		return lows.length == 0;
+	}
+
+	/**
+	 * Get the number of values in this set.
+	 * @return number of values.
+	 */
+	public long count() {
+		long ret = 0;
+		for (int i = 0; i < lows.length; ++i)
+			ret += (long) highs[i] - lows[i] + 1;
+		return ret;
+	}
+
+	/**
+	 * Get string representation of this set, as a list of ranges. A range of one value is written as that value.
+	 * @see java.lang.Object#toString()
+	 * @return string representation of this set.
+	 */
+	@Override
+	public String toString() {
+		StringBuilder ret = new StringBuilder("(");
+		for (int i = 0; i < lows.length; ++i) {
+			if (i > 0)
+				ret.append(", ");
+			if (lows[i] == highs[i])
+				ret.append(lows[i]);
+			else
+				ret.append('[').append(lows[i] == Integer.MIN_VALUE ? "null" : String.valueOf(lows[i])).append(", ")
+					.append(highs[i] == Integer.MAX_VALUE ? "null" : String.valueOf(highs[i])).append(']');
+		}
+		return ret.append(')').toString();
+	}
+}
@@ -0,0 +1,431 @@
+package base;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * PageCodec
+ * Encoding and decoding of pages in COMPRESSED format, see FileHeader.
+ * A compressed page is [tuple size, tuple count, (encoding, position) for every column, encoded columns...]
+ * where position is where the encoded column starts in the page. Every column of every page is encoded with whichever
+ * of these takes least space:
+ * 		RAW:	the values as they are.
+ * 		FOR:	frame of reference. [min, bit width] then value - min of every tuple, bit-packed.
+ * 		DELTA:	[first value, min delta, bit width] then delta - min delta between every two tuples, bit-packed.
+ * 				Good for sorted columns, like the key of a clustered relation.
+ * 		RLE:	run length. [number of runs] then (value, length) of every run. Good for columns with few distinct values.
+ * Bit-packed values are stored from the lowest bit of ints, and one extra int is kept at the end so that decoding can always read two ints.
+ * A page holds as many tuples as fit, at most pageSize / 2.
+ *
+ * @author Enze Zhou ez242
+ */
+public final class PageCodec {
+
+	public static final int RAW = 0;
+	public static final int FOR = 1;
+	public static final int DELTA = 2;
+	public static final int RLE = 3;
+
+	private static final int TOO_LARGE = Integer.MAX_VALUE;		// Size of an encoding that can't be used.
+
+	/*
+	 * Class is not to be instantiated.
+	 */
+	private PageCodec() {}
+
+	/**
+	 * Get the number of bytes before the first encoded column.
+	 * @param arity
+	 * 		number of columns.
+	 * @return size of page header and column directory.
+	 */
+	public static int headerSize(int arity) {
+		return 8 + 8 * arity;
+	}
+
+	/*
+	 * Get the number of bits needed to hold a non-negative value.
+	 */
+	private static int bitWidth(long range) {
+		return 64 - Long.numberOfLeadingZeros(range);
+	}
+
+	/*
+	 * Get the number of bytes of n bit-packed values of some width.
+	 */
+	private static int packedSize(int n, int width) {
+		if (width == 0 || n == 0)
+			return 0;
+		return 4 * (int) (((long) n * width + 31) / 32 + 1);
+	}
+
+	/**
+	 * Statistics of a column of a page being filled, enough to know the size of every encoding.
+	 */
+	private static final class ColumnStats {
+		int count = 0;
+		int min = 0, max = 0;						// For FOR.
+		int last = 0;								// Last value, for DELTA and RLE.
+		long minDelta = 0, maxDelta = 0;			// For DELTA.
+		int runs = 0;								// For RLE.
+
+		/*
+		 * Empty the statistics.
+		 */
+		void clear() {
+			count = 0;
+			runs = 0;
+		}
+
+		/*
+		 * Add a value at the end of the column.
+		 */
+		void add(int value) {
+			if (count == 0) {
+				min = max = value;
+				runs = 1;
+			} else {
+				long delta = (long) value - last;
+				if (count == 1) {
+					minDelta = maxDelta = delta;
+				} else {
+					minDelta = Math.min(minDelta, delta);
+					maxDelta = Math.max(maxDelta, delta);
+				}
+				min = Math.min(min, value);
+				max = Math.max(max, value);
+				if (value != last)
+					++runs;
+			}
+			last = value;
+			++count;
+		}
+
+		/*
+		 * Get the size in bytes of an encoding of this column, as if value was appended first.
+		 */
+		int size(int encoding, int value) {
+			int n = count + 1;
+			switch (encoding) {
+			case RAW:
+				return 4 * n;
+			case FOR:
+				if (count == 0)
+					return 8;
+				return 8 + packedSize(n, bitWidth((long) Math.max(max, value) - Math.min(min, value)));
+			case DELTA: {
+				if (count == 0)
+					return 12;
+				long delta = (long) value - last;
+				long lo = (count == 1 ? delta : Math.min(minDelta, delta));
+				long hi = (count == 1 ? delta : Math.max(maxDelta, delta));
+				if (lo < Integer.MIN_VALUE || lo > Integer.MAX_VALUE || bitWidth(hi - lo) > 32)
+					return TOO_LARGE;
+				return 12 + packedSize(n - 1, bitWidth(hi - lo));
+			}
+			case RLE:
+				return 4 + 8 * (count == 0 || value != last ? runs + 1 : runs);
+			default:
+				return TOO_LARGE;
+			}
+		}
+
+		/*
+		 * Get the size in bytes of an encoding of this column as it is.
+		 */
+		int size(int encoding) {
+			switch (encoding) {
+			case RAW:
+				return 4 * count;
+			case FOR:
+				return 8 + packedSize(count, bitWidth((long) max - min));
+			case DELTA:
+				if (count <= 1)
+					return 12;
+				if (minDelta < Integer.MIN_VALUE || minDelta > Integer.MAX_VALUE || bitWidth(maxDelta - minDelta) > 32)
+					return TOO_LARGE;
+				return 12 + packedSize(count - 1, bitWidth(maxDelta - minDelta));
+			case RLE:
+				return 4 + 8 * runs;
+			default:
+				return TOO_LARGE;
+			}
+		}
+
+		/*
+		 * Get the size of the best encoding, as if value was appended first.
+		 */
+		int bestSize(int value) {
+			int best = TOO_LARGE;
+			for (int encoding = RAW; encoding <= RLE; ++encoding)
+				best = Math.min(best, size(encoding, value));
+			return best;
+		}
+
+		/*
+		 * Get the best encoding of this column as it is.
+		 */
+		int bestEncoding() {
+			int best = RAW;
+			for (int encoding = FOR; encoding <= RLE; ++encoding)
+				if (size(encoding) < size(best))
+					best = encoding;
+			return best;
+		}
+	}
+
+	/**
+	 * Encoder
+	 * Collects tuples of a page column by column and writes the page once it's full.
+	 */
+	public static final class Encoder {
+		private final int arity;
+		private final int pageSize;
+		private final int maxRows;						// Most tuples in a page.
+		private final int [][] columns;					// Values of the tuples of the page being filled.
+		private final ColumnStats [] stats;
+		private int rows = 0;							// Number of tuples in the page being filled.
+
+		/*
+		 * Constructor.
+		 * @param arity
+		 * 		number of columns of the tuples.
+		 * @param pageSize
+		 * 		page size in bytes.
+		 */
+		public Encoder(int arity, int pageSize) {
+			this.arity = arity;
+			this.pageSize = pageSize;
+			maxRows = pageSize / 2;
+			columns = new int [arity][16];
+			stats = new ColumnStats [arity];
+			for (int i = 0; i < arity; ++i)
+				stats[i] = new ColumnStats();
+		}
+
+		/*
+		 * Get the number of tuples in the page being filled.
+		 * @return number of tuples.
+		 */
+		public int rows() {
+			return rows;
+		}
+
+		/*
+		 * Test whether a tuple can still be added to the page being filled.
+		 * @param values
+		 * 		columns of the tuple.
+		 * @return true if it fits.
+		 */
+		public boolean fits(int [] values) {
+			if (rows == maxRows)
+				return false;
+			long newSize = headerSize(arity);
+			for (int i = 0; i < arity; ++i)
+				newSize += stats[i].bestSize(values[i]);
+			return newSize <= pageSize;
+		}
+
+		/*
+		 * Add a tuple to the page being filled. fits must be checked first.
+		 * @param values
+		 * 		columns of the tuple.
+		 */
+		public void add(int [] values) {
+			if (arity > 0 && rows == columns[0].length) {
+				int capacity = Math.min(maxRows, columns[0].length * 2);
+				for (int i = 0; i < arity; ++i)
+					columns[i] = Arrays.copyOf(columns[i], capacity);
+			}
+			for (int i = 0; i < arity; ++i) {
+				columns[i][rows] = values[i];
+				stats[i].add(values[i]);
+			}
+			++rows;
+		}
+
+		/*
+		 * Write the page being filled to a buffer, and empty it.
+		 * @param page
+		 * 		buffer of pageSize bytes.
+		 */
+		public void writePage(ByteBuffer page) {
+			Arrays.fill(page.array(), (byte) 0);
+			page.putInt(0, arity);
+			page.putInt(4, rows);
+			int pos = headerSize(arity);
+			for (int i = 0; i < arity; ++i) {
+				int encoding = stats[i].bestEncoding();
+				page.putInt(8 + 8 * i, encoding);
+				page.putInt(12 + 8 * i, pos);
+				pos = encode(page, pos, columns[i], rows, encoding, stats[i]);
+			}
+			rows = 0;
+			for (ColumnStats s : stats)
+				s.clear();
+		}
+	}
+
+	/*
+	 * Write values[0..n) with an encoding.
+	 * @return position after the encoded column.
+	 */
+	private static int encode(ByteBuffer page, int pos, int [] values, int n, int encoding, ColumnStats stats) {
+		switch (encoding) {
+		case FOR: {
+			int width = bitWidth((long) stats.max - stats.min);
+			page.putInt(pos, stats.min);
+			page.putInt(pos + 4, width);
+			return pack(page, pos + 8, values, 0, n, stats.min, width);
+		}
+		case DELTA: {
+			page.putInt(pos, n > 0 ? values[0] : 0);
+			if (n <= 1) {
+				page.putInt(pos + 4, 0);
+				page.putInt(pos + 8, 0);
+				return pos + 12;
+			}
+			int width = bitWidth(stats.maxDelta - stats.minDelta);
+			page.putInt(pos + 4, (int) stats.minDelta);
+			page.putInt(pos + 8, width);
+			long [] deltas = new long [n - 1];
+			for (int i = 1; i < n; ++i)
+				deltas[i - 1] = (long) values[i] - values[i - 1] - stats.minDelta;
+			return pack(page, pos + 12, deltas, width);
+		}
+		case RLE: {
+			page.putInt(pos, stats.runs);
+			int p = pos + 4;
+			int i = 0;
+			while (i < n) {
+				int j = i + 1;
+				while (j < n && values[j] == values[i])
+					++j;
+				page.putInt(p, values[i]);
+				page.putInt(p + 4, j - i);
+				p += 8;
+				i = j;
+			}
+			return p;
+		}
+		default:
+			for (int i = 0; i < n; ++i)
+				page.putInt(pos + 4 * i, values[i]);
+			return pos + 4 * n;
+		}
+	}
+
+	/*
+	 * Bit-pack values[from..from+n) - base.
+	 * @return position after the packed values.
+	 */
+	private static int pack(ByteBuffer page, int pos, int [] values, int from, int n, int base, int width) {
+		long [] offsets = new long [n];
+		for (int i = 0; i < n; ++i)
+			offsets[i] = (long) values[from + i] - base;
+		return pack(page, pos, offsets, width);
+	}
+
+	/*
+	 * Bit-pack non-negative values that fit in width bits.
+	 * @return position after the packed values.
+	 */
+	private static int pack(ByteBuffer page, int pos, long [] values, int width) {
+		int size = packedSize(values.length, width);
+		if (size == 0)
+			return pos;
+		long buffer = 0;						// Bits not written yet, lowest first.
+		int bits = 0;							// Number of bits in buffer.
+		int p = pos;
+		for (long value : values) {
+			buffer |= value << bits;
+			bits += width;
+			if (bits >= 32) {
+				page.putInt(p, (int) buffer);
+				p += 4;
+				buffer >>>= 32;
+				bits -= 32;
+			}
+		}
+		if (bits > 0) {
+			page.putInt(p, (int) buffer);
+			p += 4;
+		}
+		return pos + size;						// The extra int is already 0.
+	}
+
+	/*
+	 * Unpack n values of some width starting at pos, adding base to each of them.
+	 */
+	private static void unpack(ByteBuffer page, int pos, int n, int width, long base, long [] out) {
+		if (width == 0) {
+			Arrays.fill(out, 0, n, base);
+			return;
+		}
+		long mask = (width == 64 ? -1L : (1L << width) - 1);
+		for (int i = 0; i < n; ++i) {
+			long bitPos = (long) i * width;
+			int word = pos + 4 * (int) (bitPos >>> 5);
+			long bits = (page.getInt(word) & 0xffffffffL) | ((long) page.getInt(word + 4) << 32);
+			out[i] = ((bits >>> (bitPos & 31)) & mask) + base;
+		}
+	}
+
+	/**
+	 * Decode a column of a compressed page.
+	 * @param page
+	 * 		the page.
+	 * @param col
+	 * 		index of the column.
+	 * @param out
+	 * 		array to hold the values, it's replaced by a larger one if it's too small. Can be null.
+	 * @return array holding the values of the column in its first tuple count elements.
+	 */
+	public static int [] decode(ByteBuffer page, int col, int [] out) {
+		int n = page.getInt(4);
+		if (out == null || out.length < n)
+			out = new int [Math.max(n, 16)];
+		int encoding = page.getInt(8 + 8 * col);
+		int pos = page.getInt(12 + 8 * col);
+		switch (encoding) {
+		case FOR: {
+			long [] values = new long [n];
+			unpack(page, pos + 8, n, page.getInt(pos + 4), page.getInt(pos), values);
+			for (int i = 0; i < n; ++i)
+				out[i] = (int) values[i];
+			break;
+		}
+		case DELTA: {
+			if (n == 0)
+				break;
+			int value = page.getInt(pos);
+			out[0] = value;
+			long [] deltas = new long [n - 1];
+			unpack(page, pos + 12, n - 1, page.getInt(pos + 8), page.getInt(pos + 4), deltas);
+			for (int i = 1; i < n; ++i) {
+				value += (int) deltas[i - 1];
+				out[i] = value;
+			}
+			break;
+		}
+		case RLE: {
+			int runs = page.getInt(pos);
+			int p = pos + 4;
+			int i = 0;
+			for (int r = 0; r < runs; ++r) {
+				int value = page.getInt(p);
+				int length = page.getInt(p + 4);
+				Arrays.fill(out, i, i + length, value);
+				i += length;
+				p += 8;
+			}
+			break;
+		}
+		default:
+			for (int i = 0; i < n; ++i)
+				out[i] = page.getInt(pos + 4 * i);
+			break;
+		}
+		return out;
+	}
+}
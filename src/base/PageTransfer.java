@@ -0,0 +1,170 @@
+package base;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * PageTransfer
+ * Copy of the records of a relation file to an output file page by page, for plans that output records as they are stored.
+ * Runs of whole pages go from one file to the other with FileChannel.transferTo, so they are never decoded, and not even
+ * copied into the JVM when the system can avoid it. Only pages that are cut, like the first and last pages of a key range,
+ * are read and written again, with their records moved to the start of the page and the rest zero filled as TupleWriter does.
+ * This only works when the relation file has the layout of output files, ROW with the page size in catalog, see FileHeader.forWriting.
+ *
+ * @author Enze Zhou ez242
+ */
+public final class PageTransfer {
+
+	private final FileInputStream inStream;
+	private final FileChannel in;					// Channel of the relation file.
+	private final FileChannel out;					// Channel of the output file.
+	private final String poolKey;					// Name of the relation file in buffer pool.
+	public final FileHeader header;					// Page layout of both files.
+	public final int pageCount;						// Number of pages of the relation file, a partial last page counts.
+	private final ByteBuffer page;					// Page read last.
+	private int pageId = -1;						// Id of the page in page, -1 if none.
+
+	/*
+	 * Constructor is private, use open.
+	 */
+	private PageTransfer(String path, FileInputStream inStream, FileHeader header, FileChannel out) throws IOException {
+		this.inStream = inStream;
+		in = inStream.getChannel();
+		this.out = out;
+		poolKey = BufferPool.fileKey(path);
+		this.header = header;
+		pageCount = (int) ((Math.max(0, in.size() - header.offset) + header.pageSize - 1) / header.pageSize);
+		page = ByteBuffer.allocate(header.pageSize);
+	}
+
+	/**
+	 * Open a relation file to copy its pages to an output file.
+	 * @param path
+	 * 		path of the relation file.
+	 * @param out
+	 * 		channel of the output file, positioned at its beginning.
+	 * @return the transfer, or null if the relation file is not in the layout of output files.
+	 */
+	public static PageTransfer open(String path, FileChannel out) throws IOException {
+		FileInputStream inStream = new FileInputStream(path);
+		FileHeader header = FileHeader.read(inStream.getChannel());
+		FileHeader target = FileHeader.forWriting();
+		if (header.layout != target.layout || header.pageSize != target.pageSize) {
+			inStream.close();
+			return null;
+		}
+		return new PageTransfer(path, inStream, header, out);
+	}
+
+	/**
+	 * Write the header block of the output file. Must be called before any page is copied.
+	 */
+	public void start() throws IOException {
+		header.write(out);
+	}
+
+	/*
+	 * Read a page of the relation file into page.
+	 */
+	private void load(int id) throws IOException {
+		if (pageId == id)
+			return;
+		int size = BufferPool.getPool().readPage(poolKey, header, id, in, page);
+		if (size <= 0)
+			throw new IOException("Page " + id + " beyond the end of " + poolKey);
+		page.clear();
+		for (int i = size; i < header.pageSize; ++i)		// A partial page reads as zero filled.
+			page.put(i, (byte) 0);
+		pageId = id;
+	}
+
+	/**
+	 * Get the number of records of a page.
+	 * @param id
+	 * 		id of the page.
+	 * @return number of records.
+	 */
+	public int tupleCount(int id) throws IOException {
+		load(id);
+		return page.getInt(4);
+	}
+
+	/**
+	 * Get a value of a record of a page.
+	 * @param id
+	 * 		id of the page.
+	 * @param row
+	 * 		id of the record in the page.
+	 * @param col
+	 * 		index of the column.
+	 * @return the value.
+	 */
+	public int value(int id, int row, int col) throws IOException {
+		load(id);
+		return page.getInt(8 + 4 * (row * page.getInt(0) + col));
+	}
+
+	/**
+	 * Copy whole pages to the output file as they are.
+	 * @param first
+	 * 		id of the first page.
+	 * @param end
+	 * 		id of the page after the last one.
+	 */
+	public void copyPages(int first, int end) throws IOException {
+		long position = header.position(first);
+		long last = header.position(end);
+		while (position < last) {
+			long moved = in.transferTo(position, last - position, out);
+			if (moved <= 0)
+				throw new IOException("Cannot copy pages of " + poolKey);
+			position += moved;
+		}
+	}
+
+	/**
+	 * Write a page to the output file holding some records of a page, nothing if there are none.
+	 * @param id
+	 * 		id of the page.
+	 * @param from
+	 * 		id of the first record.
+	 * @param to
+	 * 		id of the record after the last one.
+	 */
+	public void copyRows(int id, int from, int to) throws IOException {
+		if (from >= to)
+			return;
+		load(id);
+		int tupleBytes = 4 * page.getInt(0);
+		ByteBuffer dst = ByteBuffer.allocate(header.pageSize);
+		dst.putInt(page.getInt(0));
+		dst.putInt(to - from);
+		ByteBuffer rows = page.duplicate();
+		rows.limit(8 + to * tupleBytes);
+		rows.position(8 + from * tupleBytes);
+		dst.put(rows);
+		dst.clear();
+		while (dst.hasRemaining())
+			out.write(dst);
+	}
+
+	/**
+	 * Copy every record of the relation file. The last page is written again so that its end is zero filled
+	 * even if the file was cut short.
+	 */
+	public void copyAll() throws IOException {
+		if (pageCount == 0)
+			return;
+		copyPages(0, pageCount - 1);
+		copyRows(pageCount - 1, 0, tupleCount(pageCount - 1));
+	}
+
+	/**
+	 * Close the relation file. The output file is left open.
+	 */
+	public void close() throws IOException {
+		inStream.close();
+	}
+}
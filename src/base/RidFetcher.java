@@ -0,0 +1,134 @@
+package base;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * RidFetcher
+ * Random access to the records of a relation file by rid, as (page id, tuple id in the page), for unclustered index scans.
+ * Whole pages are copied from the BufferPool and the last CACHE_PAGES of them are kept, so records of a page used
+ * recently are decoded straight from the cached page without another lookup. Pages leave the cache least recently used first.
+ * Nothing stays pinned in the pool, so a fetcher that is not closed costs nothing to others.
+ * In COMPRESSED format every column of a cached page is decoded once, the first time it's asked for.
+ *
+ * @author Enze Zhou ez242
+ */
+public final class RidFetcher {
+
+	public static final int CACHE_PAGES = 8;		// Number of pages kept.
+
+	private final FileChannel FC;
+	private final String poolKey;					// Name of the file in buffer pool.
+	public final FileHeader header;					// Page layout of the file. Page ids of rids are in this layout.
+	private final int arity;						// Number of columns of the records.
+	private final int [] columnOffsets;				// Position of every column of the first record in a page.
+	private final int rowStride;					// Distance between two records of a column in a page.
+
+	// Cached pages, slot i holds page cachedIds[i], -1 if empty.
+	private final int [] cachedIds = new int [CACHE_PAGES];
+	private final ByteBuffer [] cachedPages = new ByteBuffer [CACHE_PAGES];
+	private final long [] lastUse = new long [CACHE_PAGES];
+	private final int [][][] decoded;				// Decoded columns of every cached page in COMPRESSED format, null otherwise.
+	private final boolean [][] isDecoded;			// Whether each column of each cached page is in decoded.
+	private long useCount = 0;
+	private int lastSlot = 0;						// Slot used last time, checked first.
+
+	/**
+	 * Constructor.
+	 * @param path
+	 * 		path of the relation file.
+	 * @param arity
+	 * 		number of columns of its records.
+	 */
+	@SuppressWarnings("resource")
+	public RidFetcher(String path, int arity) throws IOException {
+		FC = new FileInputStream(path).getChannel();
+		poolKey = BufferPool.fileKey(path);
+		header = FileHeader.read(FC);
+		this.arity = arity;
+		columnOffsets = new int [arity];
+		for (int i = 0; i < arity; ++i)
+			columnOffsets[i] = header.columnOffset(arity, i);
+		rowStride = header.rowStride(arity);
+		decoded = (header.layout == FileHeader.COMPRESSED ? new int [CACHE_PAGES][arity][] : null);
+		isDecoded = new boolean [CACHE_PAGES][arity];
+		for (int i = 0; i < CACHE_PAGES; ++i) {
+			cachedIds[i] = -1;
+			cachedPages[i] = ByteBuffer.allocate(header.pageSize);
+		}
+	}
+
+	/*
+	 * Get the cache slot of a page, taking it from buffer pool if it's not cached.
+	 * @return slot id, -1 if the page is beyond the end of file.
+	 */
+	private int slotOf(int pageId) throws IOException {
+		if (cachedIds[lastSlot] == pageId) {
+			lastUse[lastSlot] = ++useCount;
+			return lastSlot;
+		}
+		int victim = 0;
+		for (int i = 0; i < CACHE_PAGES; ++i) {
+			if (cachedIds[i] == pageId) {
+				lastUse[i] = ++useCount;
+				return lastSlot = i;
+			}
+			if (lastUse[i] < lastUse[victim])
+				victim = i;
+		}
+		if (BufferPool.getPool().readPage(poolKey, header, pageId, FC, cachedPages[victim]) <= 0) {
+			cachedIds[victim] = -1;
+			return -1;
+		}
+		cachedIds[victim] = pageId;
+		lastUse[victim] = ++useCount;
+		Arrays.fill(isDecoded[victim], false);
+		return lastSlot = victim;
+	}
+
+	/*
+	 * Get a column of a cached page in COMPRESSED format, decoding it if needed.
+	 */
+	private int [] column(int slot, int c) {
+		if (!isDecoded[slot][c]) {
+			decoded[slot][c] = PageCodec.decode(cachedPages[slot], c, decoded[slot][c]);
+			isDecoded[slot][c] = true;
+		}
+		return decoded[slot][c];
+	}
+
+	/**
+	 * Fetch a record by rid.
+	 * @param pageId
+	 * 		page id of the rid.
+	 * @param tupleId
+	 * 		id of the record in the page.
+	 * @return the record, or null if the page is beyond the end of file.
+	 */
+	public Tuple fetch(int pageId, int tupleId) throws IOException {
+		int slot = slotOf(pageId);
+		if (slot == -1)
+			return null;
+		Tuple ret = new Tuple(arity);
+		if (decoded != null) {
+			for (int c = 0; c < arity; ++c)
+				ret.values[c] = column(slot, c)[tupleId];
+		} else {
+			ByteBuffer page = cachedPages[slot];
+			int rowStart = tupleId * rowStride;
+			for (int c = 0; c < arity; ++c)
+				ret.values[c] = page.getInt(columnOffsets[c] + rowStart);
+		}
+		return ret;
+	}
+
+	/**
+	 * Close the file.
+	 */
+	public void close() throws IOException {
+		FC.close();
+	}
+}
@@ -1,43 +1,160 @@
 package base;
 
+import java.util.Arrays;
 import java.util.Vector;
 
 
 /*
  * Tuple
  * Class that represents a tuple.
- * 
+ * Columns are kept in a primitive int array so that reading and writing a column never boxes an Integer.
+ * The array may be longer than the tuple, only the first arity elements are valid.
+ *
  * @authors Enze Zhou ez242, Shuang Zhang sz468
  */
 public final class Tuple {
-	
-	public Vector<Integer> data = null;							// Integers in this Tuple.
-	
+
+	public int [] values = null;								// Integers in this Tuple.
+	public int arity = 0;										// Number of valid integers in values.
+
 	/*
 	 * Constructor that constructs a tuple with no data
 	 */
 	public Tuple() {
-		data = new Vector<Integer>();
+		values = new int [8];
+	}
+
+	/*
+	 * Constructor that constructs a tuple with arity columns, all of them 0.
+	 * @param arity
+	 * 		number of columns of this tuple.
+	 */
+	public Tuple(int arity) {
+		values = new int [arity];
+		this.arity = arity;
 	}
-	
+
+	/*
+	 * Constructor that wraps an existing array without copying it.
+	 * @param values
+	 * 		array holding the columns.
+	 * @param arity
+	 * 		number of valid columns in values.
+	 */
+	public Tuple(int [] values, int arity) {
+		this.values = values;
+		this.arity = arity;
+	}
+
 	/*
 	 * Constructor that fetches data from a tuple string read from a file.
 	 * @param str
 	 * 		String that build a tuple from
 	 */
 	public Tuple(String str) {
-		data = new Vector<Integer>();
 		String [] ints = str.trim().split(",");
+		values = new int [ints.length];
 		for (String inti : ints)
-			data.add(new Integer(inti));
+			values[arity++] = Integer.parseInt(inti);
+	}
+
+	/*
+	 * Get the number of columns of this tuple.
+	 * @return number of columns.
+	 */
+	public int size() {
+		return arity;
+	}
+
+	/*
+	 * Get a column of this tuple.
+	 * @param i
+	 * 		index of the column.
+	 * @return value of that column.
+	 */
+	public int get(int i) {
+		return values[i];
+	}
+
+	/*
+	 * Set a column of this tuple.
+	 * @param i
+	 * 		index of the column.
+	 * @param value
+	 * 		new value of that column.
+	 */
+	public void set(int i, int value) {
+		values[i] = value;
+	}
+
+	/*
+	 * Append a column at the end of this tuple, growing the array if needed.
+	 * @param value
+	 * 		value of the new column.
+	 */
+	public void add(int value) {
+		if (arity == values.length)
+			values = Arrays.copyOf(values, Math.max(8, arity * 2));
+		values[arity++] = value;
+	}
+
+	/*
+	 * Build a new tuple that is the concatenation of two tuples. Used by join operators.
+	 * @param left
+	 * 		columns that come first.
+	 * @param right
+	 * 		columns that come after.
+	 * @return the concatenated tuple.
+	 */
+	public static Tuple concat(Tuple left, Tuple right) {
+		Tuple res = new Tuple(left.arity + right.arity);
+		System.arraycopy(left.values, 0, res.values, 0, left.arity);
+		System.arraycopy(right.values, 0, res.values, left.arity, right.arity);
+		return res;
+	}
+
+	/*
+	 * Get a copy of this tuple that does not share its array.
+	 * @return the copy.
+	 */
+	public Tuple copy() {
+		return new Tuple(Arrays.copyOf(values, arity), arity);
+	}
+
+	/*
+	 * Test whether two tuples hold the same columns.
+	 * Not named equals on purpose: tuples are used as identity keys in some maps.
+	 * @param other
+	 * 		tuple being compared with.
+	 * @return true if every column is the same.
+	 */
+	public boolean sameValues(Tuple other) {
+		if (other == null || other.arity != arity)
+			return false;
+		for (int i = 0; i < arity; ++i)
+			if (values[i] != other.values[i])
+				return false;
+		return true;
 	}
-	
+
+	/*
+	 * Compatibility view of the columns in the old Vector form. It is a copy, so changing it does not change this tuple.
+	 * @return columns of this tuple as a Vector.
+	 */
+	@Deprecated
+	public Vector<Integer> data() {
+		Vector<Integer> res = new Vector<>(arity);
+		for (int i = 0; i < arity; ++i)
+			res.add(values[i]);
+		return res;
+	}
+
 	/*
 	 * Print this tuple.
 	 */
 	public void print() {
-		for (Integer inti : data)
-			System.out.print(inti + " ");
+		for (int i = 0; i < arity; ++i)
+			System.out.print(values[i] + " ");
 		System.out.println();
 	}
 }
@@ -0,0 +1,107 @@
+package base;
+
+
+/*
+ * TupleBatch
+ * Class that represents a batch of tuples stored column by column, used by the batch interface of physical operators.
+ * Rows are physically stored in columns[c][0..rowCount), and the rows that are still alive are listed in the selection
+ * vector sel[0..selCount). Filters only shrink the selection vector so that no column needs to be moved.
+ * A batch returned by an operator is reused by that operator, so it is valid only until the next call.
+ *
+ * @author Enze Zhou ez242
+ */
+public final class TupleBatch {
+
+	public static final int DEFAULT_CAPACITY = 1024;	// Default number of rows in a batch.
+
+	public int [][] columns = null;		// columns[c][r] is column c of row r.
+	public int arity = 0;				// Number of columns.
+	public int capacity = 0;			// Maximum number of rows.
+	public int rowCount = 0;			// Number of rows physically stored.
+	public int [] sel = null;			// Selection vector, rows that are still alive in ascending order.
+	public int selCount = 0;			// Number of valid elements in sel.
+
+	/*
+	 * Constructor that builds an empty batch.
+	 * @param arity
+	 * 		number of columns.
+	 * @param capacity
+	 * 		maximum number of rows.
+	 */
+	public TupleBatch(int arity, int capacity) {
+		this.arity = arity;
+		this.capacity = capacity;
+		columns = new int [arity][capacity];
+		sel = new int [capacity];
+	}
+
+	/*
+	 * Constructor of a batch that has no storage of its own. Its columns and selection vector are set
+	 * by the owner to point to the storage of another batch, for example in a projection.
+	 * @param arity
+	 * 		number of columns.
+	 */
+	public TupleBatch(int arity) {
+		this.arity = arity;
+		columns = new int [arity][];
+	}
+
+	/*
+	 * Empty this batch.
+	 */
+	public void clear() {
+		rowCount = 0;
+		selCount = 0;
+	}
+
+	/*
+	 * Test whether no more row can be appended.
+	 * @return true if the batch is full.
+	 */
+	public boolean isFull() {
+		return rowCount == capacity;
+	}
+
+	/*
+	 * Make every stored row alive again.
+	 */
+	public void selectAll() {
+		for (int i = 0; i < rowCount; ++i)
+			sel[i] = i;
+		selCount = rowCount;
+	}
+
+	/*
+	 * Append a row whose columns are going to be filled by caller. The row is alive.
+	 * @return physical index of the new row.
+	 */
+	public int appendRow() {
+		sel[selCount++] = rowCount;
+		return rowCount++;
+	}
+
+	/*
+	 * Append a tuple as a new alive row.
+	 * @param tp
+	 * 		tuple being appended, must have arity columns.
+	 */
+	public void addRow(Tuple tp) {
+		int row = appendRow();
+		for (int c = 0; c < arity; ++c)
+			columns[c][row] = tp.values[c];
+	}
+
+	/*
+	 * Materialize an alive row into a new tuple.
+	 * @param i
+	 * 		position in the selection vector.
+	 * @return the tuple.
+	 */
+	public Tuple getTuple(int i) {
+		int row = sel[i];
+		Tuple tp = new Tuple(arity);
+		for (int c = 0; c < arity; ++c)
+			tp.values[c] = columns[c][row];
+		return tp;
+	}
+}
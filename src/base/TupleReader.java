@@ -2,51 +2,329 @@ package base;
 
 /*
  * A level of abstration to help with reading records stored in files
+ * Pages are read through the shared BufferPool, so pages read recently by any reader are not read from disk again.
+ * In mapped mode the whole file is memory-mapped once when the reader is built, pages are views of the mapping
+ * and reset only moves back to the first page, so repeated scans are served from page cache without copies.
+ * In read-ahead mode the next pages are read asynchronously while the current one is consumed. Pages already in the
+ * buffer pool are copied from it when their read is issued, and pages read from file are put into it when consumed,
+ * so scans read again are served by the pool too.
+ * The page size and format of the file are read from its header, see FileHeader. Records can be read whole or
+ * only some of their columns, which in PAX format only touches the minipages of those columns.
+ * In COMPRESSED format a column of a page is decoded by PageCodec the first time it's asked for.
+ * A page filter, usually from a ZoneMap, makes the reader skip pages without reading them. The first page after
+ * opening, reset or jumpPages is always read.
+ * A reader can also be limited to a range of pages, as if the file held only those, so that parts of a file are read apart.
+ * Records can also be seen in place through a TupleView, whose columns are only read when they're asked for.
  * 
  * @author Weicheng Yu wy248
  */
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
 import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.function.IntPredicate;
 
 public final class TupleReader {
+	public static final int READ_AHEAD_PAGES = 8;	// Default number of pages in flight in read-ahead mode.
+	
 	private String fileName;
 	private FileChannel FC;
 	private ByteBuffer BB;
-	private int tupleIndex;
 	private int tupleSize;
 	private int tupleCounts;
 	private int tupleCurrentCounts;
 	private int tupleCurrentPages = -1;
+	private String poolKey;						// Name of the file in buffer pool.
+	private FileHeader header;					// Page layout of the file.
+	private int [] columnOffsets = null;		// Position of every column of the first record in a page, see FileHeader.
+	private int rowStride = 0;					// Distance between two records of a column in a page.
+	private int [] allColumns = null;			// Ids of all the columns, used when every column is asked for.
+	private int [][] decoded = null;			// Decoded columns of the current page in COMPRESSED format, null otherwise.
+	private boolean [] isDecoded = null;		// Whether each column of the current page is in decoded.
+	private int nextPage = 0;					// Id of the next page to read.
+	private MappedByteBuffer mapped = null;		// Mapping of the whole file in mapped mode, null otherwise.
+	private IntPredicate pageFilter = null;		// Pages to read, others are skipped. null to read all.
+	private int pageLimit = 0;					// Number of pages in the file, pages from here on are never skipped.
+	private int firstPage = 0;					// First page of the range read, where reading starts and restarts.
+	private int endPage = Integer.MAX_VALUE;	// Pages from here on are not read, as if the file ended there.
+	
+	// Things for read-ahead mode. The i-th read of a sequence goes to aheadBuffers[i % n].
+	private AsynchronousFileChannel AFC = null;	// Channel for asynchronous reads, null if not in read-ahead mode.
+	private ByteBuffer [] aheadBuffers = null;
+	private Future<Integer> [] aheadReads = null;
+	private int [] aheadPageIds = null;			// Id of the page read into each buffer.
+	private boolean [] aheadCached = null;		// Whether the page in each buffer was copied from the buffer pool.
+	private int aheadConsumed = 0;				// Number of pages of the current sequence consumed.
+	private int aheadIssued = 0;				// Number of reads of the current sequence issued.
+	private int aheadNext = 0;					// Id of the next page to issue a read for, before the page filter.
+	private TupleView view = null;				// View returned by nextView.
 	
-	@SuppressWarnings("resource")
 	public TupleReader(String filename) throws IOException {
+		this(filename, false, 0);
+	}
+	
+	/*
+	 * @param filename: file to read
+	 * @param map: whether to use mapped mode. Files that can not be mapped in one piece are read normally.
+	 */
+	public TupleReader(String filename, boolean map) throws IOException {
+		this(filename, map, 0);
+	}
+	
+	/*
+	 * @param filename: file to read
+	 * @param map: whether to use mapped mode. Files that can not be mapped in one piece are read normally.
+	 * @param readAhead: number of pages to keep in flight in read-ahead mode, 0 to turn it off. Ignored in mapped mode.
+	 */
+	public TupleReader(String filename, boolean map, int readAhead) throws IOException {
+		this(filename, map, readAhead, null);
+	}
+	
+	/*
+	 * @param filename: file to read
+	 * @param map: whether to use mapped mode. Files that can not be mapped in one piece are read normally.
+	 * @param readAhead: number of pages to keep in flight in read-ahead mode, 0 to turn it off. Ignored in mapped mode.
+	 * @param pageFilter: filter of the pages to read, see setPageFilter. null to read all the pages.
+	 */
+	public TupleReader(String filename, boolean map, int readAhead, IntPredicate pageFilter) throws IOException {
+		this(filename, map, readAhead, pageFilter, 0, Integer.MAX_VALUE);
+	}
+	
+	/*
+	 * @param filename: file to read
+	 * @param readAhead: number of pages to keep in flight in read-ahead mode, 0 to turn it off.
+	 * @param pageFilter: filter of the pages to read, see setPageFilter. null to read all the pages.
+	 * @param firstPage: id of the first page to read.
+	 * @param endPage: id of the page after the last one to read.
+	 */
+	public TupleReader(String filename, int readAhead, IntPredicate pageFilter, int firstPage, int endPage) throws IOException {
+		this(filename, false, readAhead, pageFilter, firstPage, endPage);
+	}
+	
+	@SuppressWarnings({ "resource", "unchecked", "rawtypes" })
+	private TupleReader(String filename, boolean map, int readAhead, IntPredicate pageFilter, int firstPage, int endPage) throws IOException {
 		fileName = filename;
+		this.firstPage = nextPage = firstPage;
+		this.endPage = endPage;
+		poolKey = BufferPool.fileKey(filename);
 		FC = new FileInputStream(filename).getChannel();
-		BB = ByteBuffer.allocate(4096); //hardcoded page size
-		readTupleInfo();
-		
-		tupleCurrentPages = 0;
+		header = FileHeader.read(FC);
+		setPageFilter(pageFilter);
+		if (map && FC.size() <= Integer.MAX_VALUE) {
+			mapped = FC.map(FileChannel.MapMode.READ_ONLY, 0, FC.size());
+		} else if (readAhead > 0) {
+			AFC = AsynchronousFileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+			aheadBuffers = new ByteBuffer [readAhead];
+			aheadReads = new Future [readAhead];
+			aheadPageIds = new int [readAhead];
+			aheadCached = new boolean [readAhead];
+			for (int i = 0; i < readAhead; ++i)
+				aheadBuffers[i] = ByteBuffer.allocate(header.pageSize);
+			startReadAhead(firstPage);
+		} else {
+			BB = ByteBuffer.allocate(header.pageSize);
+		}
+		readTupleInfo(false);
+	}
+	
+	/*
+	 * Set the pages to read. Pages the filter is false for are skipped, and in read-ahead mode never read.
+	 * In read-ahead mode reads already issued are not affected, so the filter is best given to the constructor.
+	 * @param filter: filter of page ids, null to read all the pages.
+	 */
+	public void setPageFilter(IntPredicate filter) throws IOException {
+		pageFilter = filter;
+		pageLimit = (int) ((FC.size() - header.offset + header.pageSize - 1) / header.pageSize);
+	}
+	
+	/*
+	 * Method that is used to get the first page from some page on that the page filter does not skip
+	 */
+	private int wantedPage(int pageId) {
+		while (pageFilter != null && pageId < pageLimit && pageId < endPage && !pageFilter.test(pageId))
+			++pageId;
+		return pageId;
+	}
+	
+	/*
+	 * Method that is used to get a page in mapped mode. BB becomes a view of that page.
+	 * @return size of the page, -1 if the file is over.
+	 */
+	private int mapPage(int pageId) {
+		long pos = header.position(pageId);
+		if (pos >= mapped.limit())
+			return -1;
+		ByteBuffer page = mapped.duplicate();
+		page.position((int) pos);
+		page.limit((int) Math.min(pos + header.pageSize, mapped.limit()));
+		BB = page.slice();
+		return BB.capacity();
+	}
+	
+	/*
+	 * Method that is used to (re)start asynchronous reads from a page in read-ahead mode.
+	 * Reads still in flight are waited for because their buffers are going to be reused.
+	 */
+	private void startReadAhead(int pageId) throws IOException {
+		for (int i = 0; i < aheadReads.length; ++i)
+			if (aheadReads[i] != null)
+				waitRead(i);
+		aheadConsumed = 0;
+		aheadIssued = 0;
+		aheadNext = pageId;
+		for (int i = 0; i < aheadReads.length; ++i)
+			issueRead();
+	}
+	
+	/*
+	 * Method that is used to issue an asynchronous read for the next page that is not skipped,
+	 * or to copy it from the buffer pool if it's there.
+	 */
+	private void issueRead() {
+		if (aheadIssued > 0)			// The first page of a sequence is always read.
+			aheadNext = wantedPage(aheadNext);
+		int slot = aheadIssued % aheadBuffers.length;
+		aheadBuffers[slot].clear();
+		aheadPageIds[slot] = aheadNext;
+		aheadCached[slot] = false;
+		if (aheadNext >= endPage) {		// Beyond the range, reads as the end of file.
+			aheadReads[slot] = CompletableFuture.completedFuture(-1);
+		} else {
+			int cached = BufferPool.getPool().readCached(poolKey, aheadNext, aheadBuffers[slot]);
+			aheadCached[slot] = (cached > 0);
+			if (aheadCached[slot])
+				aheadReads[slot] = CompletableFuture.completedFuture(cached);
+			else
+				aheadReads[slot] = AFC.read(aheadBuffers[slot], header.position(aheadNext));
+		}
+		++aheadNext;
+		++aheadIssued;
+	}
+	
+	/*
+	 * Method that is used to wait for the read in a slot.
+	 * @return number of bytes read, -1 if the page is beyond the end of file.
+	 */
+	private int waitRead(int slot) throws IOException {
+		try {
+			return aheadReads[slot].get();
+		} catch (InterruptedException | ExecutionException e) {
+			throw new IOException("Read-ahead failed for " + fileName, e);
+		}
+	}
+	
+	/*
+	 * Method that is used to get the next page in read-ahead mode. BB becomes the buffer of that page and nextPage its id,
+	 * and the buffer of the page before, which is no longer used, gets the read of a new page.
+	 * A page read from file is put into the buffer pool.
+	 * @return size of the page, -1 if the file is over.
+	 */
+	private int aheadPage() throws IOException, InterruptedException, ExecutionException {
+		int slot = aheadConsumed % aheadBuffers.length;
+		if (waitRead(slot) <= 0)
+			return -1;
+		int pageId = aheadPageIds[slot];
+		ByteBuffer page = aheadBuffers[slot];
+		if (!aheadCached[slot]) {
+			while (page.hasRemaining()) {		// Asynchronous reads may stop early, finish the page.
+				if (AFC.read(page, header.position(pageId) + page.position()).get() <= 0)
+					break;
+			}
+			page.flip();
+			BufferPool.getPool().put(poolKey, header, pageId, page);
+		}
+		BB = page;
+		nextPage = pageId;
+		if (aheadConsumed > 0)
+			issueRead();
+		++aheadConsumed;
+		return BB.limit();
+	}
+	
+	/*
+	 * Method that is used to load page nextPage into BB in whatever mode this reader is in.
+	 * @param filtered: whether to skip to the next page the page filter does not skip. In read-ahead mode reads already
+	 * 		issued decide which page comes next.
+	 * @return size of the page, -1 if the file is over.
+	 */
+	private int loadPage(boolean filtered) throws IOException {
+		int ret;
+		if (filtered && AFC == null)
+			nextPage = wantedPage(nextPage);
+		if (AFC == null && nextPage >= endPage) {
+			ret = -1;
+		} else if (mapped != null) {
+			ret = mapPage(nextPage);
+		} else if (AFC != null) {
+			try {
+				ret = aheadPage();
+			} catch (InterruptedException | ExecutionException e) {
+				throw new IOException("Read-ahead failed for " + fileName, e);
+			}
+		} else {
+			ret = BufferPool.getPool().readPage(poolKey, header, nextPage, FC, BB);
+		}
+		if (ret > 0)
+			tupleCurrentPages = nextPage++;
+		return ret;
 	}
 	
 	/*
 	 * Method that is used to read meta data
+	 * @param filtered: whether the page filter is used to find the page
 	 */
-	private int readTupleInfo() throws IOException {
+	private int readTupleInfo(boolean filtered) throws IOException {
 		//read tuple meta data
-		int ret = FC.read(BB);
-		BB.flip();
+		int ret = loadPage(filtered);
 		if (ret > 0){
-			tupleSize = BB.getInt(0);
-			tupleCounts = BB.getInt(4);
-			tupleIndex = 8;
-			tupleCurrentCounts = 0;
-			++tupleCurrentPages;
+			setTupleInfo();
 		}
 		return ret;
 	}
 	
+	/*
+	 * Method that is used to take meta data from the page just loaded, and the positions of columns in it
+	 */
+	private void setTupleInfo() {
+		tupleSize = BB.getInt(0);
+		tupleCounts = BB.getInt(4);
+		tupleCurrentCounts = 0;
+		if (columnOffsets == null || columnOffsets.length != tupleSize) {
+			columnOffsets = new int [tupleSize];
+			allColumns = new int [tupleSize];
+			for (int i = 0; i < tupleSize; ++i) {
+				columnOffsets[i] = header.columnOffset(tupleSize, i);
+				allColumns[i] = i;
+			}
+			rowStride = header.rowStride(tupleSize);
+			if (header.layout == FileHeader.COMPRESSED) {
+				decoded = new int [tupleSize][];
+				isDecoded = new boolean [tupleSize];
+			}
+		}
+		if (isDecoded != null)
+			Arrays.fill(isDecoded, false);
+	}
+	
+	/*
+	 * Method that is used to get a column of the current page in COMPRESSED format, decoding it if needed
+	 */
+	private int [] column(int c) {
+		if (!isDecoded[c]) {
+			decoded[c] = PageCodec.decode(BB, c, decoded[c]);
+			isDecoded[c] = true;
+		}
+		return decoded[c];
+	}
+	
 	/*
 	 * Jump some pages. This function is only called by index scan operator 
 	 * when it needs to jump to the first valid tuple in a clustered relation.
@@ -57,16 +335,14 @@ public final class TupleReader {
 	public void jumpPages(int pageCount) {
 		try {
 			int ret = 0;
-			for (int i = 0; i < pageCount; ++i) {
-				ret = FC.read(BB);
-				BB.flip();
+			if (pageCount > 0) {
+				nextPage = pageCount;
+				if (AFC != null)
+					startReadAhead(nextPage);
+				ret = loadPage(false);
 			}
-			tupleCurrentPages += pageCount;
 			if (ret > 0){
-				tupleSize = BB.getInt(0);
-				tupleCounts = BB.getInt(4);
-				tupleIndex = 8;
-				tupleCurrentCounts = 0;	
+				setTupleInfo();
 			}
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -85,22 +361,20 @@ public final class TupleReader {
 		// If a page has no tuple, return null directly 
 		if (tupleCounts == 0) return null;
 
-		Tuple ret = new Tuple();
-		if (tupleCurrentCounts < tupleCounts) {
-			ret.data.add(BB.getInt(tupleIndex + 4 * keyId));
-			tupleIndex += (tupleSize * 4);
-		} else {
+		if (tupleCurrentCounts >= tupleCounts) {
 			BB.clear();
-			if (readTupleInfo() <= 0){
+			if (readTupleInfo(true) <= 0){
 				return null;
 			}
-			
-			ret.data.add(BB.getInt(tupleIndex + 4 * keyId));
-			tupleIndex += (tupleSize * 4);
 		}
 		
-		ret.data.add(tupleCurrentPages);
-		ret.data.add(tupleCurrentCounts);
+		Tuple ret = new Tuple(3);
+		if (decoded != null)
+			ret.values[0] = column(keyId)[tupleCurrentCounts];
+		else
+			ret.values[0] = BB.getInt(columnOffsets[keyId] + tupleCurrentCounts * rowStride);
+		ret.values[1] = tupleCurrentPages;
+		ret.values[2] = tupleCurrentCounts;
 		
 		++tupleCurrentCounts;
 		return ret;
@@ -111,53 +385,173 @@ public final class TupleReader {
 	 * Method that is used to grab a record
 	 */
 	public Tuple getNextTuple() throws IOException{
+		return getNextTuple(null);
+	}
+	
+	/*
+	 * Method that is used to grab some columns of a record
+	 * @param columns: ids of the columns to grab in output order, null for all of them
+	 */
+	public Tuple getNextTuple(int [] columns) throws IOException{
+		return getNextTuple(columns, null);
+	}
+	
+	/*
+	 * Method that is used to grab some columns of a record into a tuple that is filled again and again
+	 * @param columns: ids of the columns to grab in output order, null for all of them
+	 * @param reuse: tuple to fill, whose array is replaced if it's too short. null to fill a new one
+	 * @return the tuple filled, null if the file is over
+	 */
+	public Tuple getNextTuple(int [] columns, Tuple reuse) throws IOException{
 
 		//if a page has no tuple, return null directly 
 		//previously calling getNextTuple() will return a tuple object with no data set. Now it returns null
 		if (tupleCounts == 0) return null;
 
 
-		Tuple ret = new Tuple();
-		if (tupleCurrentCounts < tupleCounts) {
-			for (int i = 0; i < tupleSize; ++i) {
-				ret.data.add(BB.getInt(tupleIndex));
-				tupleIndex += 4;
-			}
-		}
-		else{
+		if (tupleCurrentCounts >= tupleCounts) {
 			BB.clear();
-			if (readTupleInfo() <= 0){
+			if (readTupleInfo(true) <= 0){
 				return null;
 			}
-			for (int i = 0; i < tupleSize; ++i) {
-				ret.data.add(BB.getInt(tupleIndex));
-				tupleIndex += 4;
-			}		
+		}
+		if (columns == null)
+			columns = allColumns;
+		Tuple ret = reuse;
+		if (ret == null) {
+			ret = new Tuple(columns.length);
+		} else {
+			if (ret.values.length < columns.length)
+				ret.values = new int [columns.length];
+			ret.arity = columns.length;
+		}
+		int [] values = ret.values;
+		if (decoded != null) {
+			for (int i = 0; i < columns.length; ++i)
+				values[i] = column(columns[i])[tupleCurrentCounts];
+		} else {
+			int rowStart = tupleCurrentCounts * rowStride;
+			for (int i = 0; i < columns.length; ++i)
+				values[i] = BB.getInt(columnOffsets[columns[i]] + rowStart);
 		}
 		++tupleCurrentCounts;
 		return ret;
 
 	}
 	
+	/*
+	 * Method that is used to see the next record in place, without reading any of its columns yet.
+	 * @param columns: ids of the columns to see in view order, null for all of them
+	 * @return the view of this reader moved to the next record, valid until the next call to this reader. null if the file is over
+	 */
+	public TupleView nextView(int [] columns) throws IOException{
+		if (tupleCounts == 0) return null;
+		
+		if (tupleCurrentCounts >= tupleCounts) {
+			BB.clear();
+			if (readTupleInfo(true) <= 0){
+				return null;
+			}
+		}
+		if (view == null)
+			view = new TupleView(this);
+		view.columns = (columns == null ? allColumns : columns);
+		view.arity = view.columns.length;
+		view.row = tupleCurrentCounts++;
+		return view;
+	}
+	
+	/*
+	 * Method that is used to read a column of a record of the current page, for TupleView
+	 */
+	int valueAt(int c, int row) {
+		if (decoded != null)
+			return column(c)[row];
+		return BB.getInt(columnOffsets[c] + row * rowStride);
+	}
+	
+	/*
+	 * Method that is used to grab as many records as fit in a batch, decoded column by column.
+	 * The batch is cleared first and every row read is alive.
+	 * @param batch
+	 * 		batch to fill, must have as many columns as the records in this file.
+	 * @return number of records read. 0 if the file is over.
+	 */
+	public int readBatch(TupleBatch batch) throws IOException {
+		return readBatch(batch, null);
+	}
+	
+	/*
+	 * Method that is used to grab some columns of as many records as fit in a batch. Other columns are never decoded,
+	 * and in PAX format never even touched.
+	 * The batch is cleared first and every row read is alive.
+	 * @param batch
+	 * 		batch to fill, must have one column for every element of columns.
+	 * @param columns
+	 * 		ids of the columns to grab, column i of the batch gets column columns[i] of the file. null for all of them.
+	 * @return number of records read. 0 if the file is over.
+	 */
+	public int readBatch(TupleBatch batch, int [] columns) throws IOException {
+		batch.clear();
+		if (tupleCounts == 0) return 0;
+		
+		while (!batch.isFull()) {
+			if (tupleCurrentCounts >= tupleCounts) {
+				BB.clear();
+				if (readTupleInfo(true) <= 0)
+					break;
+			}
+			int [] cols = (columns == null ? allColumns : columns);
+			int rows = Math.min(tupleCounts - tupleCurrentCounts, batch.capacity - batch.rowCount);
+			for (int c = 0; c < cols.length; ++c) {
+				int [] col = batch.columns[c];
+				if (decoded != null) {
+					System.arraycopy(column(cols[c]), tupleCurrentCounts, col, batch.rowCount, rows);
+					continue;
+				}
+				int pos = columnOffsets[cols[c]] + tupleCurrentCounts * rowStride;
+				for (int r = batch.rowCount; r < batch.rowCount + rows; ++r) {
+					col[r] = BB.getInt(pos);
+					pos += rowStride;
+				}
+			}
+			tupleCurrentCounts += rows;
+			batch.rowCount += rows;
+		}
+		batch.selectAll();
+		return batch.rowCount;
+	}
+	
 	/*
 	 * Method that is used to close an open file
 	 */
 	public void close() throws IOException{
 		FC.close();
+		if (AFC != null) {
+			for (int i = 0; i < aheadReads.length; ++i)
+				if (aheadReads[i] != null)
+					waitRead(i);
+			AFC.close();
+		}
 	}
 	
 	
 	/*
-	 * Method that is used to reset tuple reader
+	 * Method that is used to reset tuple reader. The file stays open, and in mapped mode the mapping is kept.
 	 */
-	@SuppressWarnings("resource")
 	public void reset() throws IOException {
-		FC.close();
-		FC = new FileInputStream(fileName).getChannel();
-		BB.clear();
-		readTupleInfo();
-		
-		tupleCurrentPages = 0;
+		nextPage = firstPage;
+		if (AFC != null)
+			startReadAhead(firstPage);
+		readTupleInfo(false);
+	}
+	
+	/*
+	 * Get the id of the page of the record returned last.
+	 * @return page id.
+	 */
+	public int currentPage() {
+		return tupleCurrentPages;
 	}
 	
 	
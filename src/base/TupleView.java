@@ -0,0 +1,56 @@
+package base;
+
+/**
+ * TupleView
+ * A record of the page a TupleReader holds now, seen in place without being copied out of the page.
+ * A column is only read, or decoded in COMPRESSED format, when it's asked for, so a scan testing conditions on a view
+ * touches only the columns of the conditions for the records they reject. Records passing are copied to a tuple with fill.
+ * A reader has one view that moves from record to record, see TupleReader.nextView, so a view is only valid until
+ * the next call to the reader.
+ *
+ * @author Enze Zhou ez242
+ */
+public final class TupleView {
+
+	private final TupleReader reader;			// Reader holding the page.
+	int [] columns = null;						// Ids of the columns of the file seen, in view order.
+	int row = 0;								// Id of the record in the page.
+	public int arity = 0;						// Number of columns seen.
+
+	/*
+	 * Constructor, only called by TupleReader.
+	 */
+	TupleView(TupleReader reader) {
+		this.reader = reader;
+	}
+
+	/**
+	 * Get a column of this record.
+	 * @param i
+	 * 		index of the column in the view.
+	 * @return value of that column.
+	 */
+	public int get(int i) {
+		return reader.valueAt(columns[i], row);
+	}
+
+	/**
+	 * Copy every column of this record to a tuple.
+	 * @param reuse
+	 * 		tuple to fill, whose array is replaced if it's too short. null to fill a new one.
+	 * @return the tuple filled.
+	 */
+	public Tuple fill(Tuple reuse) {
+		Tuple ret = reuse;
+		if (ret == null) {
+			ret = new Tuple(arity);
+		} else {
+			if (ret.values.length < arity)
+				ret.values = new int [arity];
+			ret.arity = arity;
+		}
+		for (int i = 0; i < arity; ++i)
+			ret.values[i] = reader.valueAt(columns[i], row);
+		return ret;
+	}
+}
@@ -2,41 +2,190 @@ package base;
 
 /*
  * A level of abstration to help with writing records onto files
+ * In write-behind mode full pages are staged and written several at a time with one gather write
+ * on a background thread, so the producer does not wait for the disk. At most WRITE_BEHIND_DEPTH groups
+ * are queued, after that the producer waits for the oldest one. Errors of background writes are thrown
+ * by a later call that waits, at the latest by close.
+ * New files get the page size in catalog, and a header if it's not the legacy one, see FileHeader.
+ * Relation files can be written in PAX format by giving their layout, tuples are then scattered to column minipages.
+ * In COMPRESSED format tuples are collected by a PageCodec.Encoder, which writes the page when the next tuple does not fit.
+ * A writer of a relation file can record the ZoneMap of the file, which is written next to it by close.
+ * A writer made by append adds records after the last page of an existing file, in the layout of that file.
  * 
  * @author Weicheng Yu wy248
  */
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public final class TupleWriter {
-	//private String fileName;
+	public static final int WRITE_BEHIND_PAGES = 8;		// Number of pages written by one gather write.
+	public static final int WRITE_BEHIND_DEPTH = 2;		// Number of groups that can be queued.
+	
+	// Threads that do background writes. Daemon so that they never keep the program alive.
+	private static final ExecutorService writers = Executors.newCachedThreadPool(r -> {
+		Thread t = new Thread(r, "TupleWriter-write-behind");
+		t.setDaemon(true);
+		return t;
+	});
+	
+	private String fileName = null;			// Name of the file being written, null if written to a stream.
 	private FileChannel FC;
 	private ByteBuffer BB;
 	private int tupleIndex;
 	private int tupleSize;
 	private boolean sizeSet;
 	private int tupleCurrentCounts;
+	private FileHeader header;				// Page layout of the file being written.
+	private int [] paxOffsets = null;		// Start of the minipage of every column in PAX format, null in ROW format.
+	private PageCodec.Encoder encoder = null;	// Encoder of the page being filled in COMPRESSED format, null otherwise.
+	private int [] row = null;				// Row of a batch being added in COMPRESSED format.
+	private int pageId = 0;					// Id of the page being filled.
+	private ZoneMap zones = null;			// Zone map being recorded, null if not asked for.
+	private boolean appending = false;		// Whether records are added to an existing file.
+	private ZoneMap oldZones = null;		// Zone map of the file before records are added, null if it has none.
+	
+	// Things for write-behind mode.
+	private boolean writeBehind = false;
+	private ByteBuffer [] stage = null;										// Full pages not handed to background yet.
+	private int staged = 0;													// Number of pages in stage.
+	private ArrayDeque<CompletableFuture<Void>> inFlight = new ArrayDeque<>();	// Groups handed to background, oldest first.
+	private ConcurrentLinkedQueue<ByteBuffer> freePages = new ConcurrentLinkedQueue<>();	// Pages whose write is done, to be reused.
 	
-	@SuppressWarnings("resource")
 	public TupleWriter(String filename) throws IOException {
+		this(filename, false);
+	}
+	
+	/*
+	 * @param filename: file to write
+	 * @param writeBehind: whether to use write-behind mode
+	 */
+	public TupleWriter(String filename, boolean writeBehind) throws IOException {
+		this(filename, writeBehind, FileHeader.forWriting());
+	}
+	
+	/*
+	 * @param filename: file to write
+	 * @param writeBehind: whether to use write-behind mode
+	 * @param header: page layout of the file
+	 */
+	@SuppressWarnings("resource")
+	public TupleWriter(String filename, boolean writeBehind, FileHeader header) throws IOException {
 		sizeSet = false;
+		fileName = filename;
+		BufferPool.getPool().invalidate(filename);		// Pages and zone map of the old file are no longer valid.
+		ZoneMap.invalidate(filename);
 		FC = new FileOutputStream(filename).getChannel();
-		BB = ByteBuffer.allocate(4096);
+		init(writeBehind, header);
+	}
+	
+	/*
+	 * Constructor of a writer that adds to an existing file, see append.
+	 */
+	@SuppressWarnings("resource")
+	private TupleWriter(String filename, boolean writeBehind, FileHeader header, int firstPage, long padding) throws IOException {
+		sizeSet = false;
+		fileName = filename;
+		appending = true;
+		oldZones = ZoneMap.read(filename);				// Read before the file changes, or it's out of date.
+		FC = new FileOutputStream(filename, true).getChannel();
+		this.writeBehind = writeBehind;
+		if (writeBehind)
+			stage = new ByteBuffer [WRITE_BEHIND_PAGES];
+		this.header = header;
+		if (firstPage == 0 && padding == 0)
+			header.write(FC);
+		ByteBuffer zeros = ByteBuffer.allocate((int) padding);		// A partial last page is completed so that pages stay aligned.
+		while (zeros.hasRemaining())
+			FC.write(zeros);
+		pageId = firstPage;
+		BB = ByteBuffer.allocate(header.pageSize);
 		setTupleInfo();
-		BB.putInt(4, 0);				// An empty file.
+		BB.putInt(4, 0);
+	}
+	
+	/*
+	 * Open a file to add records after its last page, in the page layout of the file. Pages already in the file are not touched,
+	 * so new records start a new page even if the last one has room, and records keep their rids.
+	 * If the zone map is recorded, the one of the file gets the pages added, and it's built first if it's missing.
+	 * @param filename: file to add to. It's created with the layout of relation files if it does not exist or is empty.
+	 * @param writeBehind: whether to use write-behind mode
+	 * @return the writer.
+	 */
+	public static TupleWriter append(String filename, boolean writeBehind) throws IOException {
+		long length = new File(filename).length();
+		if (length == 0)
+			return new TupleWriter(filename, writeBehind, FileHeader.forData());
+		FileHeader header = FileHeader.read(filename);
+		long pages = (Math.max(0, length - header.offset) + header.pageSize - 1) / header.pageSize;
+		return new TupleWriter(filename, writeBehind, header, (int) pages, header.position((int) pages) - length);
+	}
+	
+	/*
+	 * Method that is used to get the id of the page the next record goes to, if it's not full.
+	 */
+	public int pageId() {
+		return pageId;
 	}
 	
 	public TupleWriter(OutputStream out) throws IOException {
+		this(out, false);
+	}
+	
+	/*
+	 * @param out: stream to write, must be a FileOutputStream
+	 * @param writeBehind: whether to use write-behind mode
+	 */
+	public TupleWriter(OutputStream out, boolean writeBehind) throws IOException {
+		this(out, writeBehind, FileHeader.forWriting());
+	}
+	
+	/*
+	 * @param out: stream to write, must be a FileOutputStream
+	 * @param writeBehind: whether to use write-behind mode
+	 * @param header: page layout of the file
+	 */
+	public TupleWriter(OutputStream out, boolean writeBehind, FileHeader header) throws IOException {
 		sizeSet = false;
 		FC = ((FileOutputStream)out).getChannel();
-		BB = ByteBuffer.allocate(4096);
+		init(writeBehind, header);
+	}
+	
+	/*
+	 * Method that is used to set up buffers
+	 */
+	private void init(boolean writeBehind, FileHeader header) throws IOException {
+		this.writeBehind = writeBehind;
+		if (writeBehind)
+			stage = new ByteBuffer [WRITE_BEHIND_PAGES];
+		this.header = header;
+		header.write(FC);
+		BB = ByteBuffer.allocate(header.pageSize);
 		setTupleInfo();
 		BB.putInt(4, 0);				// An empty file.
 	}
 	
+	/*
+	 * Method that is used to record the zone map of the file, to be written by close. Must be called before the first record
+	 * and only on a writer built with a file name.
+	 */
+	public void recordZones() {
+		if (fileName == null)
+			throw new IllegalStateException("Zone map needs the name of the file");
+		zones = new ZoneMap(0);
+	}
+	
 	/*
 	 * Method that is used to set meta data
 	 */
@@ -57,10 +206,26 @@ public final class TupleWriter {
 	 * @param size: size of a record
 	 * Method that is used to set meta data tuple size
 	 */
-	private void setTupleSize(int size) {
+	private void setTupleSize(int size) throws IOException {
 		sizeSet = true;
 		tupleSize = size;
 		BB.putInt(0, size);
+		if (zones != null && appending) {
+			zones = oldZones;
+			if (zones == null || zones.arity != size)
+				zones = ZoneMap.build(fileName, size);
+		} else if (zones != null) {
+			zones = new ZoneMap(size);
+		}
+		if (header.layout == FileHeader.COMPRESSED) {
+			encoder = new PageCodec.Encoder(size, header.pageSize);
+			row = new int [size];
+		}
+		if (header.layout == FileHeader.PAX && size > 0) {
+			paxOffsets = new int [size];
+			for (int i = 0; i < size; ++i)
+				paxOffsets[i] = header.columnOffset(size, i);
+		}
 	}
 	
 	/*
@@ -68,8 +233,16 @@ public final class TupleWriter {
 	 * Method that is used to prepare for adding tuples
 	 */
 	private void addTuple(Tuple toAdd) {
+		if (paxOffsets != null) {			// Same page fill as ROW format, values go to minipages.
+			int pos = 4 * tupleCurrentCounts;
+			for (int i = 0; i < tupleSize; ++i)
+				BB.putInt(paxOffsets[i] + pos, toAdd.values[i]);
+			tupleIndex += 4 * tupleSize;
+			BB.putInt(4, ++tupleCurrentCounts);
+			return;
+		}
 		for (int i = 0; i < tupleSize; ++i) {
-			BB.putInt(tupleIndex, toAdd.data.elementAt(i));
+			BB.putInt(tupleIndex, toAdd.values[i]);
 			tupleIndex += 4;
 		}
 		BB.putInt(4, ++tupleCurrentCounts);
@@ -81,55 +254,190 @@ public final class TupleWriter {
 	 */
 	public void setNextTuple(Tuple toAdd) throws IOException{
 		if (!sizeSet) {
-			setTupleSize(toAdd.data.size());
+			setTupleSize(toAdd.arity);
+		}
+		if (encoder != null) {
+			addEncoded(toAdd.values);
+			return;
 		}
 		
 	    if (tupleIndex + 4*tupleSize > BB.capacity()){
 	    	fillFlush();
-			BB.putInt(0, toAdd.data.size());
+			BB.putInt(0, toAdd.arity);
 		}
+		if (zones != null)
+			zones.add(pageId, toAdd.values);
 		addTuple(toAdd);
 	}
 	
+	/*
+	 * @param batch: a batch whose alive rows are to be added to the buffer
+	 * Method that is used to add all the alive rows of a batch, in the order of its selection vector
+	 */
+	public void setNextBatch(TupleBatch batch) throws IOException {
+		if (batch.selCount == 0)
+			return;
+		if (!sizeSet) {
+			setTupleSize(batch.arity);
+		}
+		
+		if (encoder != null) {
+			for (int i = 0; i < batch.selCount; ++i) {
+				for (int c = 0; c < tupleSize; ++c)
+					row[c] = batch.columns[c][batch.sel[i]];
+				addEncoded(row);
+			}
+			return;
+		}
+		
+		for (int i = 0; i < batch.selCount; ++i) {
+			if (tupleIndex + 4*tupleSize > BB.capacity()){
+				fillFlush();
+				BB.putInt(0, tupleSize);
+			}
+			int row = batch.sel[i];
+			if (zones != null) {
+				for (int c = 0; c < tupleSize; ++c)
+					zones.add(pageId, c, batch.columns[c][row]);
+			}
+			if (paxOffsets != null) {
+				int pos = 4 * tupleCurrentCounts;
+				for (int c = 0; c < tupleSize; ++c)
+					BB.putInt(paxOffsets[c] + pos, batch.columns[c][row]);
+				tupleIndex += 4 * tupleSize;
+			} else {
+				for (int c = 0; c < tupleSize; ++c) {
+					BB.putInt(tupleIndex, batch.columns[c][row]);
+					tupleIndex += 4;
+				}
+			}
+			BB.putInt(4, ++tupleCurrentCounts);
+		}
+	}
+	
+	/*
+	 * @param values: columns of a tuple to be added to the page being encoded
+	 * Method that is used to add a tuple in COMPRESSED format, writing the page first if the tuple does not fit
+	 */
+	private void addEncoded(int [] values) throws IOException {
+		if (encoder.rows() > 0 && !encoder.fits(values))
+			fillFlush();
+		if (zones != null)
+			zones.add(pageId, values);
+		encoder.add(values);
+		++tupleCurrentCounts;
+	}
+	
 	/*
 	 * Method that is used to truly clear a buffer by setting unused portion to be 0s
 	 */
 	private void fillZeros() {
-		for (int i = tupleIndex; i < BB.capacity(); ++i)
-			BB.put(i, (byte) 0);//fill with 0s
+		if (paxOffsets != null) {			// Unused end of every minipage, then the end of the page.
+			int used = 4 * tupleCurrentCounts;
+			int room = 4 * header.capacity(tupleSize);
+			for (int i = 0; i < tupleSize; ++i)
+				Arrays.fill(BB.array(), paxOffsets[i] + used, paxOffsets[i] + room, (byte) 0);
+			Arrays.fill(BB.array(), paxOffsets[0] + tupleSize * room, BB.capacity(), (byte) 0);
+			return;
+		}
+		Arrays.fill(BB.array(), tupleIndex, BB.capacity(), (byte) 0);//fill with 0s
 	}
 	
 	/*
 	 * Method that is used to flush the buffer to file and clear the buffer
 	 */
 	private void flush() throws IOException {
+		++pageId;
 		tupleIndex = 8;
 		tupleCurrentCounts = 0;
 		BB.clear();
+		if (writeBehind) {
+			stage[staged++] = BB;
+			if (staged == stage.length)
+				submitStage();
+			BB = freePages.poll();
+			if (BB == null)
+				BB = ByteBuffer.allocate(header.pageSize);
+			return;
+		}
 		FC.write(BB);
 		BB.clear();
 	}
 	
+	/*
+	 * Method that is used to hand staged pages to background as one gather write.
+	 * Writes of one file run one after another in the order they are submitted.
+	 */
+	private void submitStage() throws IOException {
+		if (staged == 0)
+			return;
+		while (inFlight.size() >= WRITE_BEHIND_DEPTH)
+			waitOldest();
+		
+		final ByteBuffer [] group = Arrays.copyOf(stage, staged);
+		staged = 0;
+		Runnable write = () -> {
+			try {
+				long remaining = (long) group.length * group[0].capacity();
+				while (remaining > 0)
+					remaining -= FC.write(group);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			for (ByteBuffer page : group)
+				freePages.offer(page);
+		};
+		CompletableFuture<Void> last = inFlight.peekLast();
+		inFlight.add(last == null ? CompletableFuture.runAsync(write, writers) : last.thenRunAsync(write, writers));
+	}
+	
+	/*
+	 * Method that is used to wait for the oldest group handed to background.
+	 */
+	private void waitOldest() throws IOException {
+		try {
+			inFlight.poll().join();
+		} catch (CompletionException e) {
+			throw new IOException("Write-behind failed", e.getCause());
+		}
+	}
+	
 	/*
 	 * Method that is used to fill unused portion of buffer with 0s and then flush the buffer to file
 	 */
 	public void fillFlush() throws IOException {
-		fillZeros();
+		if (encoder != null)
+			encoder.writePage(BB);
+		else
+			fillZeros();
 		flush();
 	}
 	
 	/*
-	 * Method that is used to close an open file
+	 * Method that is used to close an open file. In write-behind mode, staged pages are written and every write is waited for.
+	 * The zone map, if recorded, is written after the file is complete.
 	 */
 	public void close() throws IOException{
-		FC.close();
+		try {
+			if (writeBehind) {
+				submitStage();
+				while (!inFlight.isEmpty())
+					waitOldest();
+			}
+		} finally {
+			FC.close();
+		}
+		if (zones != null) {
+			zones.write(fileName);
+			zones = null;
+		}
 	}
 	
 	/*
 	 * Method that is used to reset tuple writer
 	 */
 	public void reset() throws IOException {
-		FC.close();
+		close();
 	}
 
 	
@@ -0,0 +1,278 @@
+package base;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.function.IntPredicate;
+
+/**
+ * ZoneMap
+ * Minimum and maximum of every column in every page of a relation file, so that a scan can skip the pages
+ * none of whose tuples can satisfy its conditions without reading them. It works on every column, indexed or not.
+ * The zone map of a file is kept in a sidecar file next to it, named by path, as
+ * [arity, page count, length of the data file, (min of every column, max of every column) of every page].
+ * A sidecar is only trusted while the data file has the length recorded and is not newer than the sidecar.
+ * Writers of a relation file either record a new zone map, see TupleWriter.recordZones, or remove the old one.
+ * A page without tuples has min larger than max, and can be skipped by any condition.
+ *
+ * @author Enze Zhou ez242
+ */
+public final class ZoneMap {
+
+	public final int arity;						// Number of columns of the file.
+	private int pageCount = 0;					// Number of pages known.
+	private int [] mins;						// Min of column c in page p is mins[p * arity + c].
+	private int [] maxs;						// Max of column c in page p is maxs[p * arity + c].
+
+	/**
+	 * Constructor of an empty zone map.
+	 * @param arity
+	 * 		number of columns of the file.
+	 */
+	public ZoneMap(int arity) {
+		this.arity = arity;
+		mins = new int [arity * 16];
+		maxs = new int [arity * 16];
+	}
+
+	/**
+	 * Get the path of the sidecar of a data file.
+	 * @param dataPath
+	 * 		path of the data file.
+	 * @return path of its zone map.
+	 */
+	public static String path(String dataPath) {
+		return dataPath + ".zones";
+	}
+
+	/**
+	 * Remove the zone map of a data file, if there is one. Called when the file is written again.
+	 * @param dataPath
+	 * 		path of the data file.
+	 */
+	public static void invalidate(String dataPath) {
+		new File(path(dataPath)).delete();
+	}
+
+	/*
+	 * Make room for pages up to pageId, pages not seen yet are empty.
+	 */
+	private void grow(int pageId) {
+		if (pageId < pageCount)
+			return;
+		if ((pageId + 1) * arity > mins.length) {
+			int size = Math.max(mins.length * 2, (pageId + 1) * arity);
+			mins = Arrays.copyOf(mins, size);
+			maxs = Arrays.copyOf(maxs, size);
+		}
+		Arrays.fill(mins, pageCount * arity, (pageId + 1) * arity, Integer.MAX_VALUE);
+		Arrays.fill(maxs, pageCount * arity, (pageId + 1) * arity, Integer.MIN_VALUE);
+		pageCount = pageId + 1;
+	}
+
+	/**
+	 * Record a value of a column in a page.
+	 * @param pageId
+	 * 		id of the page.
+	 * @param col
+	 * 		index of the column.
+	 * @param value
+	 * 		the value.
+	 */
+	public void add(int pageId, int col, int value) {
+		grow(pageId);
+		int pos = pageId * arity + col;
+		if (value < mins[pos])
+			mins[pos] = value;
+		if (value > maxs[pos])
+			maxs[pos] = value;
+	}
+
+	/**
+	 * Record a tuple in a page.
+	 * @param pageId
+	 * 		id of the page.
+	 * @param values
+	 * 		values of the tuple, one for every column.
+	 */
+	public void add(int pageId, int [] values) {
+		grow(pageId);
+		int pos = pageId * arity;
+		for (int c = 0; c < arity; ++c, ++pos) {
+			if (values[c] < mins[pos])
+				mins[pos] = values[c];
+			if (values[c] > maxs[pos])
+				maxs[pos] = values[c];
+		}
+	}
+
+	/**
+	 * Get the number of pages known.
+	 * @return number of pages.
+	 */
+	public int pages() {
+		return pageCount;
+	}
+
+	/**
+	 * Test whether a page may hold a tuple whose every column c is in [low[c], high[c]].
+	 * Pages beyond the ones known may hold anything.
+	 * @param pageId
+	 * 		id of the page.
+	 * @param low
+	 * 		lower bound of every column.
+	 * @param high
+	 * 		upper bound of every column.
+	 * @return false if no tuple of the page is in the bounds.
+	 */
+	public boolean mayMatch(int pageId, long [] low, long [] high) {
+		if (pageId >= pageCount)
+			return true;
+		int pos = pageId * arity;
+		for (int c = 0; c < arity; ++c, ++pos) {
+			if (low[c] > maxs[pos] || high[c] < mins[pos])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Build a filter of the pages that may hold tuples satisfying some conditions. Only conditions comparing a column
+	 * of the relation to a constant with <, <=, >, >= or =, and IN ranges by their lowest and highest values, are used,
+	 * the others never skip a page.
+	 * @param conditions
+	 * 		conditions of a scan, with column names in form alias.attr.
+	 * @param alias
+	 * 		alias of the relation in the scan.
+	 * @param relation
+	 * 		catalog information of the relation.
+	 * @return a filter that is false for pages to skip, or null if no condition can skip a page.
+	 */
+	public IntPredicate pageFilter(Collection<Condition> conditions, String alias, DBCatalog.RelationInfo relation) {
+		long [] low = null;
+		long [] high = null;
+		for (Condition cond : conditions) {
+			if (cond.leftName == null || cond.rightName != null || cond.operator == Condition.op.ne
+					|| !cond.leftName.startsWith(alias + "."))
+				continue;
+			int col = relation.findIdOfAttr(cond.leftName.substring(alias.length() + 1));
+			if (col < 0 || col >= arity)
+				continue;
+			if (low == null) {
+				low = new long [arity];
+				high = new long [arity];
+				Arrays.fill(low, Long.MIN_VALUE);
+				Arrays.fill(high, Long.MAX_VALUE);
+			}
+			switch (cond.operator) {
+			case l:
+				high[col] = Math.min(high[col], (long) cond.right - 1);
+				break;
+			case le:
+				high[col] = Math.min(high[col], cond.right);
+				break;
+			case g:
+				low[col] = Math.max(low[col], (long) cond.right + 1);
+				break;
+			case ge:
+				low[col] = Math.max(low[col], cond.right);
+				break;
+			case e:
+				low[col] = Math.max(low[col], cond.right);
+				high[col] = Math.min(high[col], cond.right);
+				break;
+			case in:
+				if (cond.ranges.isEmpty()) {
+					low[col] = 1;
+					high[col] = 0;
+				} else {
+					low[col] = Math.max(low[col], cond.ranges.lows[0]);
+					high[col] = Math.min(high[col], cond.ranges.highs[cond.ranges.size() - 1]);
+				}
+				break;
+			default:
+				break;
+			}
+		}
+		if (low == null)
+			return null;
+		final long [] lowF = low;
+		final long [] highF = high;
+		return pageId -> mayMatch(pageId, lowF, highF);
+	}
+
+	/**
+	 * Write this zone map as the sidecar of a data file. The data file should be complete.
+	 * @param dataPath
+	 * 		path of the data file.
+	 */
+	public void write(String dataPath) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path(dataPath))))) {
+			out.writeInt(arity);
+			out.writeInt(pageCount);
+			out.writeLong(new File(dataPath).length());
+			for (int p = 0; p < pageCount; ++p) {
+				for (int c = 0; c < arity; ++c)
+					out.writeInt(mins[p * arity + c]);
+				for (int c = 0; c < arity; ++c)
+					out.writeInt(maxs[p * arity + c]);
+			}
+		}
+	}
+
+	/**
+	 * Read the zone map of a data file.
+	 * @param dataPath
+	 * 		path of the data file.
+	 * @return the zone map, or null if there is none or it's out of date.
+	 */
+	public static ZoneMap read(String dataPath) {
+		File data = new File(dataPath);
+		File sidecar = new File(path(dataPath));
+		if (!sidecar.isFile() || sidecar.lastModified() < data.lastModified())
+			return null;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(sidecar)))) {
+			ZoneMap ret = new ZoneMap(in.readInt());
+			int pages = in.readInt();
+			if (in.readLong() != data.length())
+				return null;
+			if (pages > 0)
+				ret.grow(pages - 1);
+			for (int p = 0; p < pages; ++p) {
+				for (int c = 0; c < ret.arity; ++c)
+					ret.mins[p * ret.arity + c] = in.readInt();
+				for (int c = 0; c < ret.arity; ++c)
+					ret.maxs[p * ret.arity + c] = in.readInt();
+			}
+			return ret;
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
+
+	/**
+	 * Build the zone map of a data file by reading all of it.
+	 * @param dataPath
+	 * 		path of the data file.
+	 * @param arity
+	 * 		number of columns of the file.
+	 * @return the zone map.
+	 */
+	public static ZoneMap build(String dataPath, int arity) throws IOException {
+		ZoneMap ret = new ZoneMap(arity);
+		TupleReader TR = new TupleReader(dataPath);
+		Tuple tuple;
+		while ((tuple = TR.getNextTuple()) != null)
+			ret.add(TR.currentPage(), tuple.values);
+		TR.close();
+		return ret;
+	}
+}
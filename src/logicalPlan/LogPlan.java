@@ -7,11 +7,30 @@ import java.util.Vector;
 
 import base.Condition;
 import base.Condition.op;
+import base.KeyRanges;
 
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
+import net.sf.jsqlparser.expression.BinaryExpression;
+import net.sf.jsqlparser.expression.Expression;
+import net.sf.jsqlparser.expression.InverseExpression;
+import net.sf.jsqlparser.expression.LongValue;
+import net.sf.jsqlparser.expression.Parenthesis;
+import net.sf.jsqlparser.expression.operators.conditional.AndExpression;
+import net.sf.jsqlparser.expression.operators.conditional.OrExpression;
+import net.sf.jsqlparser.expression.operators.relational.Between;
+import net.sf.jsqlparser.expression.operators.relational.EqualsTo;
+import net.sf.jsqlparser.expression.operators.relational.ExpressionList;
+import net.sf.jsqlparser.expression.operators.relational.GreaterThan;
+import net.sf.jsqlparser.expression.operators.relational.GreaterThanEquals;
+import net.sf.jsqlparser.expression.operators.relational.InExpression;
+import net.sf.jsqlparser.expression.operators.relational.MinorThan;
+import net.sf.jsqlparser.expression.operators.relational.MinorThanEquals;
+import net.sf.jsqlparser.expression.operators.relational.NotEqualsTo;
+import net.sf.jsqlparser.schema.Column;
 import net.sf.jsqlparser.schema.Table;
 import net.sf.jsqlparser.statement.select.FromItemVisitor;
 import net.sf.jsqlparser.statement.select.Join;
@@ -25,6 +44,11 @@ import net.sf.jsqlparser.statement.select.Union;
 /**
  * Logical Plan class
  * This class is also a visitor to sql queries, so as to build a logical plan.
+ * WHERE clause is a conjunction. Besides comparisons, a part of it can be an OR, IN list or BETWEEN of comparisons of one attribute
+ * with constants. Such a part selects a set of ranges of the attribute, see KeyRanges. A single range is a bound like the others,
+ * several ranges are kept in the union of the attribute and become an IN condition of every attribute of the union.
+ * Any other part that is not a plain comparison is rejected as an unsupported predicate.
+ * A query whose conditions contradict each other, like A > 100 AND A < 50 or A = B AND A < B, is marked empty.
  * 
  * @authors Enze Zhou ez242, Shuang Zhang sz468
  */
@@ -59,6 +83,7 @@ public final class LogPlan implements SelectVisitor, FromItemVisitor {
 	public Vector<String> orderAttrs = null;					// Order by attributes, in full name. null means there is no order by operator.
 	public Vector<String> projAttrs = null;						// Projection attributes, in full name. null means select all.
 	public boolean hasDist = false;								// Whether there is a distinct operator.
+	public boolean empty = false;								// Whether conditions contradict each other, so that the query selects nothing.
 	
 	public String query = "";									// Original query.
 
@@ -76,6 +101,7 @@ public final class LogPlan implements SelectVisitor, FromItemVisitor {
 		// attributes in this union
 		public Vector<String> attrs = new Vector<String>(); // 鎸囧悜杩欎釜cluster灏辫〃绀烘槸杩欎釜cluster鐨刟ttr鍟︼紵///////////////////
 		public HighLowCondition condts = null;				// bound of all the attributes in this union
+		public KeyRanges ranges = null;						// values all the attributes in this union are in, null if only bounded by condts
 		
 	}
 	
@@ -126,6 +152,10 @@ public final class LogPlan implements SelectVisitor, FromItemVisitor {
 		}
 		c1.condts.lowValue = c1.condts.lowValue > c2.condts.lowValue ? c1.condts.lowValue : c2.condts.lowValue;
 		c1.condts.highValue = c1.condts.highValue < c2.condts.highValue ? c1.condts.highValue : c2.condts.highValue;
+		if (c1.ranges == null)
+			c1.ranges = c2.ranges;
+		else if (c2.ranges != null)
+			c1.ranges = c1.ranges.intersect(c2.ranges);
 		
 		union_find.values().remove(c2);
 	}
@@ -154,6 +184,167 @@ public final class LogPlan implements SelectVisitor, FromItemVisitor {
 		
 	}	
 	
+	/**
+	 * Method to restrict the given union to a set of ranges: its bound becomes the smallest one holding them,
+	 * and if there is more than one range they are kept too.
+	 * @param c is the cluster being restricted.
+	 * @param ranges are the values it's restricted to.
+	 */
+	private void setRanges(Cluster c, KeyRanges ranges) {
+		if (c.condts == null) {
+			c.condts = new HighLowCondition();
+		}
+		if (ranges.isEmpty()) {				// Nothing selected, a bound no value satisfies.
+			c.condts.lowValue = Integer.MAX_VALUE;
+			c.condts.highValue = Integer.MIN_VALUE;
+			return;
+		}
+		c.condts.lowValue = Math.max(c.condts.lowValue, ranges.lows[0]);
+		c.condts.highValue = Math.min(c.condts.highValue, ranges.highs[ranges.size() - 1]);
+		if (ranges.size() > 1)
+			c.ranges = (c.ranges == null ? ranges : c.ranges.intersect(ranges));
+	}
+	
+	/*
+	 * Get the values an attribute may have according to its union, every int value if it has none.
+	 */
+	private KeyRanges valuesOf(String attr) {
+		Cluster c = union_find.get(attr);
+		if (c == null || c.condts == null)
+			return (c == null || c.ranges == null ? KeyRanges.all() : c.ranges);
+		KeyRanges ret = KeyRanges.range(c.condts.lowValue, c.condts.highValue);
+		return (c.ranges == null ? ret : ret.intersect(c.ranges));
+	}
+	
+	/**
+	 * This function tests whether conditions contradict each other: a union has no value left, a condition with a constant
+	 * excludes all the values of its attribute, or a condition of two attributes fails for every pair of their values,
+	 * either because they are in the same union or because their ranges don't overlap as it requires.
+	 * Must be called after every condition is added to unions and scans.
+	 * @return true if no tuple can satisfy all of them.
+	 */
+	private boolean contradicts() {
+		for (Cluster c : union_find.values())
+			if (valuesOf(c.attrs.get(0)).isEmpty())
+				return true;
+		
+		ArrayList<Condition> residual = new ArrayList<>(joinConditions);
+		for (Scan scan : joinChildren)
+			residual.addAll(scan.otherConditions);
+		for (Condition cond : residual) {
+			if (cond.leftName == null)
+				continue;
+			if (cond.rightName != null && (cond.leftName.equals(cond.rightName)
+					|| (union_find.get(cond.leftName) != null && union_find.get(cond.leftName) == union_find.get(cond.rightName)))) {
+				if (cond.operator == op.l || cond.operator == op.g || cond.operator == op.ne)		// Both sides are always equal.
+					return true;
+				continue;
+			}
+			if (cond.neverHolds(valuesOf(cond.leftName), (cond.rightName == null ? null : valuesOf(cond.rightName))))
+				return true;
+		}
+		return false;
+	}
+	
+	/*
+	 * Add the parts of a conjunction to a list, going into ANDs and parentheses around them.
+	 */
+	private static void conjuncts(Expression expr, ArrayList<Expression> parts) {
+		if (expr instanceof AndExpression && !((AndExpression) expr).isNot()) {
+			conjuncts(((AndExpression) expr).getLeftExpression(), parts);
+			conjuncts(((AndExpression) expr).getRightExpression(), parts);
+		} else if (expr instanceof Parenthesis && !((Parenthesis) expr).isNot()
+				&& ((Parenthesis) expr).getExpression() instanceof AndExpression) {
+			conjuncts(((Parenthesis) expr).getExpression(), parts);
+		} else {
+			parts.add(expr);
+		}
+	}
+	
+	/*
+	 * Test whether an expression is a plain comparison, handled by Condition.
+	 */
+	private static boolean isComparison(Expression expr) {
+		return (expr instanceof EqualsTo || expr instanceof NotEqualsTo || expr instanceof GreaterThan
+				|| expr instanceof GreaterThanEquals || expr instanceof MinorThan || expr instanceof MinorThanEquals)
+				&& !((BinaryExpression) expr).isNot();
+	}
+	
+	/*
+	 * This class represents the set of values of one attribute a part of WHERE clause selects.
+	 */
+	private static final class AttrRanges {
+		final String attr;			// Full name.
+		final KeyRanges ranges;
+		
+		AttrRanges(String attr, KeyRanges ranges) {
+			this.attr = attr;
+			this.ranges = ranges;
+		}
+	}
+	
+	/*
+	 * Get the value of an integer constant, maybe negative or in parentheses.
+	 * @return the value, or null if the expression is not such a constant.
+	 */
+	private static Long constantOf(Expression expr) {
+		if (expr instanceof LongValue)
+			return ((LongValue) expr).getValue();
+		if (expr instanceof InverseExpression) {
+			Long value = constantOf(((InverseExpression) expr).getExpression());
+			return (value == null ? null : -value);
+		}
+		if (expr instanceof Parenthesis && !((Parenthesis) expr).isNot())
+			return constantOf(((Parenthesis) expr).getExpression());
+		return null;
+	}
+	
+	/*
+	 * Find the attribute and the set of its values an expression selects, if it's a comparison of one attribute with a constant,
+	 * an IN list or BETWEEN of constants, or an AND, OR or parenthesis of such expressions on the same attribute.
+	 * @return the attribute and its values, or null if it's not such an expression.
+	 */
+	private static AttrRanges rangesOf(Expression expr) {
+		if (isComparison(expr)) {
+			Condition cond = new Condition(expr.toString());
+			if (cond.leftName == null || cond.rightName != null)
+				return null;
+			return new AttrRanges(cond.leftName, KeyRanges.of(cond.operator, cond.right));
+		}
+		if (expr instanceof Parenthesis && !((Parenthesis) expr).isNot())
+			return rangesOf(((Parenthesis) expr).getExpression());
+		if ((expr instanceof OrExpression || expr instanceof AndExpression) && !((BinaryExpression) expr).isNot()) {
+			AttrRanges left = rangesOf(((BinaryExpression) expr).getLeftExpression());
+			AttrRanges right = rangesOf(((BinaryExpression) expr).getRightExpression());
+			if (left == null || right == null || !left.attr.equals(right.attr))
+				return null;
+			return new AttrRanges(left.attr, expr instanceof OrExpression ? left.ranges.union(right.ranges) : left.ranges.intersect(right.ranges));
+		}
+		if (expr instanceof InExpression && ((InExpression) expr).getLeftExpression() instanceof Column
+				&& ((InExpression) expr).getItemsList() instanceof ExpressionList) {
+			InExpression in = (InExpression) expr;
+			List<?> items = ((ExpressionList) in.getItemsList()).getExpressions();
+			int [] values = new int [items.size()];
+			for (int i = 0; i < values.length; ++i) {
+				Long value = constantOf((Expression) items.get(i));
+				if (value == null)
+					return null;
+				values[i] = (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, value));
+			}
+			KeyRanges ranges = KeyRanges.points(values);
+			return new AttrRanges(in.getLeftExpression().toString(), in.isNot() ? ranges.complement() : ranges);
+		}
+		if (expr instanceof Between && ((Between) expr).getLeftExpression() instanceof Column
+				&& constantOf(((Between) expr).getBetweenExpressionStart()) != null
+				&& constantOf(((Between) expr).getBetweenExpressionEnd()) != null) {
+			Between between = (Between) expr;
+			KeyRanges ranges = KeyRanges.range(constantOf(between.getBetweenExpressionStart()),
+												constantOf(between.getBetweenExpressionEnd()));
+			return new AttrRanges(between.getLeftExpression().toString(), between.isNot() ? ranges.complement() : ranges);
+		}
+		return null;
+	}
+	
 	/**
 	 * Constructor of this class.
 	 * Copy original query and use visitor pattern to build plan.
@@ -246,10 +437,17 @@ public final class LogPlan implements SelectVisitor, FromItemVisitor {
 		// Build up Union Find, then update Scan objects
 		// Note that we won't have such condition as val OP val this time.
 		if (plainSelect.getWhere() != null) {
-			String [] whereClauses;
-			whereClauses = plainSelect.getWhere().toString().split("AND");
-			for (int i = 0; i < whereClauses.length; ++i) {
-				Condition crrt = new Condition(whereClauses[i]);
+			ArrayList<Expression> whereClauses = new ArrayList<>();
+			conjuncts(plainSelect.getWhere(), whereClauses);
+			for (Expression clause : whereClauses) {
+				if (!isComparison(clause)) {			// Set of ranges of one attribute.
+					AttrRanges ranges = rangesOf(clause);
+					if (ranges == null)
+						throw new IllegalArgumentException("Unsupported predicate " + clause);
+					setRanges(this.find(ranges.attr), ranges.ranges);
+					continue;
+				}
+				Condition crrt = new Condition(clause.toString());
 				
 				if (crrt.isEquality()) { // isEquality: union
 					Cluster c1 = this.find(crrt.leftName);
@@ -274,6 +472,8 @@ public final class LogPlan implements SelectVisitor, FromItemVisitor {
 			for(String attr: union_find.keySet()) {
 				String alias = attr.split("\\.")[0];
 				aliasMap.get(alias).conditions.put(attr, union_find.get(attr).condts);
+				if (union_find.get(attr).ranges != null)
+					aliasMap.get(alias).otherConditions.add(new Condition(attr, union_find.get(attr).ranges));
 			}
 			
 			// Add equality conditions implied by unions.
@@ -297,6 +497,8 @@ public final class LogPlan implements SelectVisitor, FromItemVisitor {
 					}
 				}
 			}
+			
+			empty = contradicts();
 		}
 	}
 
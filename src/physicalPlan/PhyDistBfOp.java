@@ -1,7 +1,6 @@
 package physicalPlan;
 import java.util.Comparator;
 import java.util.PriorityQueue;
-import java.util.Vector;
 
 import base.Tuple;
 
@@ -13,7 +12,7 @@ import base.Tuple;
 public final class PhyDistBfOp extends PhyDistOp {
 	
 	private PriorityQueue<Tuple> heap;   		// Buffer to store all child tuples.
-	private Vector<Integer> lastTupleData;		// Recording last tuple to compare with current one.
+	private Tuple lastTuple;					// Recording last tuple to compare with current one.
 	
 	
 	/*
@@ -21,15 +20,14 @@ public final class PhyDistBfOp extends PhyDistOp {
 	 * @override from super class Operator
 	 * @return next tuple in the output of this node.
 	 */
-	@SuppressWarnings("unchecked")
 	@Override
 	public Tuple getNextTuple() {
 		//hasOrderby = false; //disallow check
 		if (hasOrderby) {
 			Tuple T;
 			while ((T=child.getNextTuple()) != null) {
-				if ((lastTupleData == null) || (!lastTupleData.equals(T.data))){		
-					lastTupleData = (Vector<Integer>) T.data.clone();
+				if ((lastTuple == null) || (!lastTuple.sameValues(T))){		
+					lastTuple = T.copy();
 					return T;
 				}
 			}
@@ -54,7 +52,7 @@ public final class PhyDistBfOp extends PhyDistOp {
 	public void reset() {
 		child.reset();
 		if (hasOrderby)
-			lastTupleData = null;
+			lastTuple = null;
 		heap = null;
 	}
 
@@ -96,8 +94,8 @@ public final class PhyDistBfOp extends PhyDistOp {
 		 * 		an integer value determining the result of comparison.
 		 */
 		public int compare(Tuple t1, Tuple t2) {
-			for (int j = 0; j < t1.data.size(); ++j) {
-				int ret = t1.data.get(j).compareTo(t2.data.get(j));
+			for (int j = 0; j < t1.arity; ++j) {
+				int ret = Integer.compare(t1.values[j], t2.values[j]);
 				if (ret != 0) return ret;
 			}
 			return 0;
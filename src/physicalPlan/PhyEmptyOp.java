@@ -0,0 +1,51 @@
+package physicalPlan;
+import java.util.Vector;
+
+import base.Tuple;
+
+/*
+ * Empty physical operator
+ * Operator standing for the joins and scans of a query proved to select nothing when it's planned, see PhyPlanOptimizer.empty.
+ * It has no child and outputs nothing, so no relation file or index is opened and nothing is sorted or joined.
+ *
+ * @author Enze Zhou ez242
+ */
+public final class PhyEmptyOp extends PhyOp {
+
+	public Vector<String> aliases = new Vector<>();		// Aliases of the relations whose joins and scans this operator stands for.
+
+	/*
+	 * Method that returns next tuple in the output of this node, which is always the end.
+	 * @override from super class PhyOp
+	 * @return null.
+	 */
+	@Override
+	public Tuple getNextTuple() {
+		return null;
+	}
+
+	/*
+	 * Method that reset output of this node to the beginning. Nothing to do.
+	 * @override from super class PhyOp
+	 */
+	@Override
+	public void reset() {}
+
+	/*
+	 * Method that builds output schema of this node. Schema is given by the builder of the plan, as that of the joins it stands for.
+	 * @override from super class PhyOp
+	 */
+	@Override
+	public void buildSchema() {}
+
+	/*
+	 * Get string representation of this operator.
+	 * @see java.lang.Object#toString()
+	 * @return
+	 * 		string representation of this operator.
+	 */
+	@Override
+	public String toString() {
+		return String.format("Empty%s", aliases.toString());
+	}
+}
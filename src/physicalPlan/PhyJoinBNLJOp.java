@@ -4,7 +4,9 @@ import java.util.LinkedList;
 import java.util.List;
 
 import base.Condition;
+import base.DBCatalog;
 import base.Tuple;
+import base.TupleBatch;
 
 /**
  * Brute force implementation of join operator
@@ -29,6 +31,14 @@ public final class PhyJoinBNLJOp extends PhyJoinOp {
 	
 	private Tuple rightTuple = null;	// The right tuple now. This need to be an element of class
 										// because it should keep between different calls to getNextTuple().
+	
+	// Things used by getNextBatch. The outer block is kept column by column so that conditions can filter it as a whole against one inner tuple.
+	private TupleBatch blockBatch = null;		// Outer block.
+	private TupleBatch childBatch = null;		// Last batch got from child, may not be fully copied to the block.
+	private int childPos = 0;					// Next position in the selection vector of childBatch to copy.
+	private Tuple batchRight = null;			// The inner tuple now.
+	private int emitPos = 0;					// Next position in the selection vector of blockBatch to output with batchRight.
+	private TupleBatch outBatch = null;			// Batch returned by getNextBatch.
 
 	/**
 	 * Constructor for BNLJ
@@ -69,7 +79,7 @@ public final class PhyJoinBNLJOp extends PhyJoinOp {
 	 * compute number of tuples that can be put in a block
 	 */
 	private void computeNumberOfTuplesPerBlock() {
-		tuplesPerBlock = (int)Math.floor((double)bufferSizeInPages * 4096 / (4 * attrCounts));
+		tuplesPerBlock = (int)Math.floor((double)bufferSizeInPages * DBCatalog.getCatalog().pageSize / (4 * attrCounts));
 	}
 	
 	/**
@@ -108,43 +118,117 @@ public final class PhyJoinBNLJOp extends PhyJoinOp {
 		if (!blockStarted) {		//check whether first time using tupleBlock
 			blockStarted = true;  
 			fillTupleBlock();
-			rightTuple = rChild.getNextTuple();
+			rightTuple = rChild.getNextReusedTuple();
 			
 		}
 		while (tupleBlock.size() > 0) {
 			while (rightTuple != null) {
 				while (innerIndex < tupleBlock.size()) {
-					Tuple join = new Tuple();
 					Tuple leftTuple = tupleBlock.get(innerIndex++);
-					for (int i: leftTuple.data) {
-						join.data.add(i);
-					}
-					for (int k: rightTuple.data) {
-						join.data.add(k);
-					}
-					
-					for(int i = 0; i < conditions.size(); i++) {
-						Condition c = conditions.get(i);
-						if(!c.test(join, schema)) {
-							break;
-						}
-						
-						if(i == conditions.size() - 1) {
-							return join;
-						}
-					}
+					if (pairFilter.test(leftTuple, rightTuple))
+						return Tuple.concat(leftTuple, rightTuple);
 				}
 				innerIndex = 0;
-				rightTuple = rChild.getNextTuple();
+				rightTuple = rChild.getNextReusedTuple();
 			}
 			fillTupleBlock();
 			if (tupleBlock.size() == 0) return null;
 			rChild.reset();
-			rightTuple = rChild.getNextTuple();
+			rightTuple = rChild.getNextReusedTuple();
 		}
 		return null;
 	}
 
+	/**
+	 * First clear blockBatch and then fill it from the batches of child until either block is full or child is over.
+	 */
+	private void fillBlockBatch() {
+		if (blockBatch != null)
+			blockBatch.clear();
+		
+		while (blockBatch == null || !blockBatch.isFull()) {
+			if (childBatch == null || childPos >= childBatch.selCount) {
+				childBatch = child.getNextBatch();
+				childPos = 0;
+				if (childBatch == null)
+					return;
+			}
+			if (blockBatch == null)
+				blockBatch = new TupleBatch(childBatch.arity, Math.max(tuplesPerBlock, 1));
+			
+			while (childPos < childBatch.selCount && !blockBatch.isFull()) {
+				int from = childBatch.sel[childPos++];
+				int to = blockBatch.appendRow();
+				for (int c = 0; c < blockBatch.arity; ++c)
+					blockBatch.columns[c][to] = childBatch.columns[c][from];
+			}
+		}
+	}
+	
+	/**
+	 * Filter the whole outer block against batchRight. Rows left in the selection vector of blockBatch are the matches.
+	 */
+	private void matchRight() {
+		emitPos = 0;
+		if (batchRight == null)
+			return;
+		if (outBatch == null)
+			outBatch = new TupleBatch(blockBatch.arity + batchRight.arity, TupleBatch.DEFAULT_CAPACITY);
+		
+		blockBatch.selectAll();
+		for (Condition c : conditions) {
+			if (c.filter(blockBatch, child.schema, batchRight, rChild.schema) == 0)
+				break;
+		}
+	}
+	
+	/**
+	 * Method that returns next batch in the output of this node.
+	 * For every inner tuple, conditions are evaluated column by column over the whole outer block,
+	 * and only the matching pairs are written to the output batch.
+	 * @override from super class PhyOp
+	 * @return next batch with at least one alive row, or null if the output is over.
+	 */
+	@Override
+	public TupleBatch getNextBatch() {
+		if (!blockStarted) {
+			blockStarted = true;
+			fillBlockBatch();
+			if (blockBatch == null)
+				return null;
+			batchRight = (blockBatch.rowCount > 0 ? rChild.getNextReusedTuple() : null);
+			matchRight();
+		}
+		if (outBatch == null)			// Either side is empty.
+			return null;
+		outBatch.clear();
+		
+		int leftArity = blockBatch.arity;
+		while (blockBatch.rowCount > 0) {
+			while (batchRight != null) {
+				while (emitPos < blockBatch.selCount) {
+					if (outBatch.isFull())
+						return outBatch;
+					int from = blockBatch.sel[emitPos++];
+					int to = outBatch.appendRow();
+					for (int c = 0; c < leftArity; ++c)
+						outBatch.columns[c][to] = blockBatch.columns[c][from];
+					for (int c = 0; c < batchRight.arity; ++c)
+						outBatch.columns[leftArity + c][to] = batchRight.values[c];
+				}
+				batchRight = rChild.getNextReusedTuple();
+				matchRight();
+			}
+			fillBlockBatch();
+			if (blockBatch.rowCount == 0)
+				break;
+			rChild.reset();
+			batchRight = rChild.getNextReusedTuple();
+			matchRight();
+		}
+		return outBatch.selCount > 0 ? outBatch : null;
+	}
+
 	/**
 	 * Method that resets output of this node to the beginning.
 	 * @override from super class Operator
@@ -153,6 +237,12 @@ public final class PhyJoinBNLJOp extends PhyJoinOp {
 	public void reset() {
 		blockStarted = false;	//reset some of the bookkeeping variables and reopen tupleReader
 		resetBlock();
+		if (blockBatch != null)
+			blockBatch.clear();
+		childBatch = null;
+		childPos = 0;
+		batchRight = null;
+		emitPos = 0;
 		
 		child.reset();
 		rChild.reset();
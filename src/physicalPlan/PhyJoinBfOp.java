@@ -35,27 +35,10 @@ public final class PhyJoinBfOp extends PhyJoinOp {
 		// if left meets null, it means nothing can be found.
 		while(left != null) {
 			Tuple right;
-			while((right = rChild.getNextTuple()) != null) {				
-				// concatenate left & right
-				Tuple join = new Tuple();
-				for(int i: left.data) {
-					join.data.add(i);
-				}
-				for(int j: right.data) {
-					join.data.add(j);
-				}
-				
-				// conditions always exist.
-				for(int i = 0; i < conditions.size(); i++) {
-					Condition c = conditions.get(i);
-					if(!c.test(join, schema)) {
-						break;
-					}
-					
-					if(i == conditions.size() - 1) {
-						return join;
-					}
-				}
+			while((right = rChild.getNextReusedTuple()) != null) {		// Only read to build join.
+				// An empty condition list accepts every pair. Only pairs that match are concatenated.
+				if (pairFilter.test(left, right))
+					return Tuple.concat(left, right);
 				
 			}
 			// reset inner child. Only when this time will need to get next left child.
@@ -0,0 +1,461 @@
+package physicalPlan;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Vector;
+
+import base.CompiledCondition;
+import base.Condition;
+import base.DBCatalog;
+import base.FileHeader;
+import base.Tuple;
+import base.TupleReader;
+import base.TupleWriter;
+
+/**
+ * This class is the hybrid hash join operator, for joins with at least one equality condition.
+ * All the tuples of the build side, the smaller one, are read first into a hash table on the columns of the equality conditions.
+ * Then the other side is streamed through it once, and every tuple is paired with the build tuples of the same key.
+ * The table is open addressing on int arrays: a slot holds the first build tuple of a key, and the build tuples of the same key
+ * are linked in insertion order, so a probe compares keys once per distinct key it meets, not once per build tuple.
+ * Other conditions are compiled on the columns of the children and tested on the pairs found.
+ * Output is left columns followed by right columns whichever side is built, like the other joins.
+ *
+ * Build tuples are split into FANOUT partitions by their hash. When they don't fit in DBCatalog.joinMemory pages, the largest
+ * partition in memory is spilled to a file in tempPath, and so are later build tuples of it. Probe tuples of a spilled partition
+ * are spilled to a file of their own instead of being probed. When the probe side is over, every pair of spilled files is
+ * joined the same way, with another hash seed so that the partition is split differently, and may be spilled again.
+ * A partition of a key repeated too much to be split is held in memory after MAX_DEPTH passes whatever its size.
+ * If the build side fits, nothing is written and this is a join in memory.
+ *
+ * @author Enze Zhou ez242
+ */
+public final class PhyJoinHashOp extends PhyJoinOp {
+
+	static final int FANOUT = 16;				// Number of partitions of a pass, a power of two. Also used by optimizer.
+	private static final int MAX_DEPTH = 6;		// Number of passes a build tuple may be spilled in.
+	private static int count = 0;				// Distinguishes temp files of different operators.
+
+	public boolean buildLeft = false;			// Whether the left child is the build side. Otherwise the right child is.
+
+	private int [] buildKeys = null;			// Columns of the build side in the equality conditions. Built by buildSchema.
+	private int [] probeKeys = null;			// Columns of the probe side in the same conditions, in the same order.
+	private CompiledCondition residualFilter = null;	// Conditions whose operator is not =, compiled on the columns of the children.
+
+	private Tuple [] rows = null;				// Tuples of the build side in memory, in reading order.
+	private int [] rowHashes = null;			// Hash of the key of every row.
+	private int [] nextRows = null;				// Next row of the same key, -1 for the last one.
+	private int rowCount = 0;					// Number of rows.
+	private int [] heads = null;				// First row of the key in every slot, -1 if the slot is free.
+	private int [] tails = null;				// Last row of the key in every slot.
+	private int mask = 0;						// Number of slots - 1, slots are a power of two.
+
+	private boolean built = false;				// Whether the table of the first pass is built.
+	private boolean over = false;				// Whether the output is over.
+	private Tuple probe = null;					// Probe tuple being paired.
+	private int match = -1;						// Next build row to pair with probe, -1 if none.
+	private Tuple matched = null;				// Build row of the pair found last.
+	private Tuple reused = null;				// Tuple returned by getNextReusedTuple.
+	private Tuple reusedProbe = null;			// Tuple filled by probeReader.
+
+	private final String filePrefix;			// Path of temp files without their id.
+	private int fileCount = 0;					// Number of temp files so far, used as their id.
+	private int budget = 0;						// Number of build tuples that fit in memory, known at the first one.
+	private int depth = 0;						// Number of passes before the current one, also its hash seed.
+	private boolean spilledAny = false;			// Whether anything was spilled since the first pass started.
+	private TupleReader buildReader = null;		// Build side of the current pass if it's a spilled one, null for the child.
+	private TupleReader probeReader = null;		// Probe side of the current pass if it's a spilled one, null for the child.
+	private String probePath = null;			// File of probeReader.
+	private Spill [] spills = new Spill [FANOUT];		// Spilled partitions of the current pass, null if in memory.
+	private ArrayDeque<Spill> pending = new ArrayDeque<>();	// Spilled partitions of finished passes, to be joined.
+
+	/*
+	 * A partition spilled to two files, one per side.
+	 */
+	private final class Spill {
+		final String buildPath;
+		final String probePath;
+		final int depth;						// Number of passes before the one joining it.
+		TupleWriter buildWriter;
+		TupleWriter probeWriter = null;			// Opened at the first probe tuple.
+		int buildCount = 0;
+
+		Spill(int depth) throws IOException {
+			this.depth = depth;
+			buildPath = filePrefix + (fileCount++);
+			probePath = filePrefix + (fileCount++);
+			buildWriter = new TupleWriter(buildPath, false, FileHeader.forTemp());
+		}
+
+		/*
+		 * Close the writers. Returns whether both sides have tuples, otherwise files are deleted.
+		 */
+		boolean finish() throws IOException {
+			closeWriter(buildWriter);
+			closeWriter(probeWriter);
+			if (buildCount > 0 && probeWriter != null)
+				return true;
+			delete();
+			return false;
+		}
+
+		void delete() {
+			new File(buildPath).delete();
+			new File(probePath).delete();
+		}
+	}
+
+	/*
+	 * Constructor of this operator
+	 */
+	public PhyJoinHashOp() {
+		super();
+		filePrefix = DBCatalog.getCatalog().tempPath + "HJtemp" + (count++) + "_";
+	}
+
+	/**
+	 * Method that builds output schema of this node, and resolves key columns and conditions that are not equality.
+	 * @override from super class PhyJoinOp
+	 */
+	@Override
+	public void buildSchema() {
+		super.buildSchema();
+
+		ArrayList<Integer> leftKeys = new ArrayList<>();
+		ArrayList<Integer> rightKeys = new ArrayList<>();
+		Vector<Condition> residual = new Vector<>();
+		for (Condition cond : conditions) {
+			if (cond.operator == Condition.op.e && cond.leftName != null && cond.rightName != null
+					&& child.schema.containsKey(cond.leftName) && rChild.schema.containsKey(cond.rightName)) {
+				leftKeys.add(child.schema.get(cond.leftName));
+				rightKeys.add(rChild.schema.get(cond.rightName));
+			} else {
+				residual.add(cond);
+			}
+		}
+		int [] left = new int [leftKeys.size()];
+		int [] right = new int [rightKeys.size()];
+		for (int i = 0; i < left.length; ++i) {
+			left[i] = leftKeys.get(i);
+			right[i] = rightKeys.get(i);
+		}
+		buildKeys = (buildLeft ? left : right);
+		probeKeys = (buildLeft ? right : left);
+		residualFilter = CompiledCondition.compile(residual, child.schema, rChild.schema);
+	}
+
+	/*
+	 * Hash of some columns of a tuple in the current pass. Bits are mixed after the seed so that every pass splits differently.
+	 */
+	private int hash(Tuple tp, int [] keys) {
+		int h = 0;
+		for (int key : keys)
+			h = h * 31 + tp.values[key];
+		h ^= depth * 0x9E3779B9;
+		h ^= h >>> 16;
+		h *= 0x85EBCA6B;
+		h ^= h >>> 13;
+		h *= 0xC2B2AE35;
+		return h ^ (h >>> 16);
+	}
+
+	/*
+	 * Partition of a hash. High bits are used, low ones choose the slot.
+	 */
+	private static int partition(int h) {
+		return h >>> (32 - Integer.numberOfTrailingZeros(FANOUT));
+	}
+
+	/*
+	 * Test whether some columns of two tuples are the same.
+	 */
+	private static boolean sameKeys(Tuple a, int [] aKeys, Tuple b, int [] bKeys) {
+		for (int i = 0; i < aKeys.length; ++i)
+			if (a.values[aKeys[i]] != b.values[bKeys[i]])
+				return false;
+		return true;
+	}
+
+	/*
+	 * Find the slot of the key of a tuple: the one holding its rows, or the free one it would go to.
+	 */
+	private int findSlot(Tuple tp, int [] keys, int h) {
+		int slot = h & mask;
+		while (heads[slot] != -1) {
+			int head = heads[slot];
+			if (rowHashes[head] == h && sameKeys(rows[head], buildKeys, tp, keys))
+				return slot;
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	/*
+	 * Flush and close a writer of a temp file, if it's open.
+	 */
+	private static void closeWriter(TupleWriter TW) throws IOException {
+		if (TW == null)
+			return;
+		if (!TW.bufferEmpty())
+			TW.fillFlush();
+		TW.close();
+	}
+
+	/*
+	 * Get the next tuple of the build side of the current pass.
+	 */
+	private Tuple nextBuild() throws IOException {
+		if (buildReader != null)
+			return buildReader.getNextTuple();
+		return (buildLeft ? child : rChild).getNextTuple();
+	}
+
+	/*
+	 * Get the next tuple of the probe side of the current pass, only valid until the next call.
+	 */
+	private Tuple nextProbe() throws IOException {
+		if (probeReader != null)
+			return (reusedProbe = probeReader.getNextTuple(null, reusedProbe));
+		return (buildLeft ? rChild : child).getNextReusedTuple();
+	}
+
+	/*
+	 * Read the whole build side of the current pass, spill the partitions that don't fit, and build the hash table on the others.
+	 */
+	private void build() throws IOException {
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		ArrayList<Tuple> [] parts = new ArrayList [FANOUT];
+		for (int p = 0; p < FANOUT; ++p) {
+			parts[p] = new ArrayList<>();
+			spills[p] = null;
+		}
+		int inMemory = 0;
+		Tuple tp;
+		while ((tp = nextBuild()) != null) {
+			if (budget == 0)
+				budget = (int) Math.max(1, Math.min(Integer.MAX_VALUE,
+						(long) DBCatalog.getCatalog().joinMemory * DBCatalog.getCatalog().pageSize / (4 * Math.max(tp.arity, 1))));
+			int p = partition(hash(tp, buildKeys));
+			if (spills[p] != null) {
+				spills[p].buildWriter.setNextTuple(tp);
+				++spills[p].buildCount;
+				continue;
+			}
+			parts[p].add(tp);
+			if (++inMemory <= budget || depth >= MAX_DEPTH)
+				continue;
+
+			// Memory is full, spill the largest partition in memory.
+			int largest = p;
+			for (int q = 0; q < FANOUT; ++q)
+				if (parts[q].size() > parts[largest].size())
+					largest = q;
+			spills[largest] = new Spill(depth + 1);
+			for (Tuple spilled : parts[largest])
+				spills[largest].buildWriter.setNextTuple(spilled);
+			spills[largest].buildCount = parts[largest].size();
+			inMemory -= parts[largest].size();
+			parts[largest] = new ArrayList<>();
+			spilledAny = true;
+		}
+
+		rows = new Tuple [Math.max(inMemory, 1)];
+		rowCount = 0;
+		for (int p = 0; p < FANOUT; ++p)
+			for (Tuple kept : parts[p])
+				rows[rowCount++] = kept;
+
+		// At most half of the slots are used.
+		int slots = Integer.highestOneBit(Math.max(rowCount, 1) * 2 - 1) * 2;
+		heads = new int [slots];
+		tails = new int [slots];
+		Arrays.fill(heads, -1);
+		mask = slots - 1;
+		rowHashes = new int [rowCount];
+		nextRows = new int [rowCount];
+		for (int i = 0; i < rowCount; ++i) {
+			int h = hash(rows[i], buildKeys);
+			rowHashes[i] = h;
+			nextRows[i] = -1;
+			int slot = findSlot(rows[i], buildKeys, h);
+			if (heads[slot] == -1)
+				heads[slot] = i;
+			else
+				nextRows[tails[slot]] = i;
+			tails[slot] = i;
+		}
+	}
+
+	/*
+	 * End the current pass: keep its spilled partitions for later passes and delete its files.
+	 * Then start the next pass on a spilled partition, reading its build file into memory.
+	 * @return false if there is no more pass.
+	 */
+	private boolean nextPass() throws IOException {
+		for (int p = 0; p < FANOUT; ++p) {
+			if (spills[p] != null && spills[p].finish())
+				pending.push(spills[p]);
+			spills[p] = null;
+		}
+		if (probeReader != null) {
+			probeReader.close();
+			probeReader = null;
+			new File(probePath).delete();
+		}
+
+		if (pending.isEmpty())
+			return false;
+		Spill next = pending.pop();
+		depth = next.depth;
+		buildReader = new TupleReader(next.buildPath);
+		build();
+		buildReader.close();
+		buildReader = null;
+		new File(next.buildPath).delete();
+		probePath = next.probePath;
+		probeReader = new TupleReader(probePath);
+		return true;
+	}
+
+	/*
+	 * Move to the next pair of a probe tuple and a build row that satisfies all the conditions.
+	 * @return true if found, then probe and matched are the pair, false if the output is over.
+	 */
+	private boolean nextPair() {
+		if (over)
+			return false;
+		try {
+			if (!built) {
+				built = true;
+				build();
+			}
+			while (true) {
+				while (match == -1) {
+					probe = nextProbe();
+					if (probe == null) {
+						if (nextPass())
+							continue;
+						over = true;
+						return false;
+					}
+					int h = hash(probe, probeKeys);
+					Spill spill = spills[partition(h)];
+					if (spill != null) {				// Its build tuples are on disk, join it later.
+						if (spill.probeWriter == null)
+							spill.probeWriter = new TupleWriter(spill.probePath, false, FileHeader.forTemp());
+						spill.probeWriter.setNextTuple(probe);
+						continue;
+					}
+					if (rowCount > 0)
+						match = heads[findSlot(probe, probeKeys, h)];
+				}
+				Tuple row = rows[match];
+				match = nextRows[match];
+				if (buildLeft ? residualFilter.test(row, probe) : residualFilter.test(probe, row)) {
+					matched = row;
+					return true;
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		over = true;
+		return false;
+	}
+
+	/**
+	 * Method that returns next tuple in the output of this node.
+	 * @override from super class Operator
+	 * @return next tuple in the output of this node.
+	 */
+	@Override
+	public Tuple getNextTuple() {
+		if (!nextPair())
+			return null;
+		return (buildLeft ? Tuple.concat(matched, probe) : Tuple.concat(probe, matched));
+	}
+
+	/**
+	 * Method that returns next tuple in the output of this node, in a tuple filled again by the next call.
+	 * @override from super class PhyOp
+	 * @return next tuple in the output of this node.
+	 */
+	@Override
+	public Tuple getNextReusedTuple() {
+		if (!nextPair())
+			return null;
+		Tuple left = (buildLeft ? matched : probe);
+		Tuple right = (buildLeft ? probe : matched);
+		if (reused == null || reused.values.length < left.arity + right.arity)
+			reused = new Tuple(left.arity + right.arity);
+		reused.arity = left.arity + right.arity;
+		System.arraycopy(left.values, 0, reused.values, 0, left.arity);
+		System.arraycopy(right.values, 0, reused.values, left.arity, right.arity);
+		return reused;
+	}
+
+	/**
+	 * Method that resets output of this node to the beginning. If nothing was spilled, the hash table is kept and
+	 * only the probe side is read again. Otherwise temp files are deleted and everything is done again.
+	 * @override from super class Operator
+	 */
+	@Override
+	public void reset() {
+		probe = null;
+		matched = null;
+		match = -1;
+		over = false;
+		if (!spilledAny) {
+			(buildLeft ? rChild : child).reset();
+			return;
+		}
+
+		try {
+			if (buildReader != null)
+				buildReader.close();
+			if (probeReader != null)
+				probeReader.close();
+			for (int p = 0; p < FANOUT; ++p) {
+				if (spills[p] != null) {
+					closeWriter(spills[p].buildWriter);
+					closeWriter(spills[p].probeWriter);
+					spills[p].delete();
+				}
+				spills[p] = null;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		if (probePath != null)
+			new File(probePath).delete();
+		for (Spill spill : pending)
+			spill.delete();
+		pending.clear();
+		buildReader = null;
+		probeReader = null;
+		probePath = null;
+		depth = 0;
+		spilledAny = false;
+		built = false;
+		rows = null;
+		child.reset();
+		rChild.reset();
+	}
+
+	/**
+	 * Get string representation of this operator.
+	 * @override from superclass PhyJoinOp
+	 * @see java.lang.Object#toString()
+	 * @return
+	 * 		string representation of this operator.
+	 */
+	@Override
+	public String toString() {
+		ArrayList<String> conditionsStrings = new ArrayList<>();
+		for (Condition cond : conditions)
+			conditionsStrings.add(cond.toString());
+		return String.format("HashJoin[%s]", String.join(" AND ", conditionsStrings));
+	}
+}
@@ -1,13 +1,18 @@
 package physicalPlan;
 
+import base.CompiledCondition;
+
 /**
  * Base class of join physical operator
+ * Join conditions are compiled on the columns of the two children when the schema is built, see CompiledCondition,
+ * so that a pair of tuples is tested before being concatenated and only pairs that match are.
  * 
  * @author Enze Zhou ez242
  */
 public abstract class PhyJoinOp extends PhyCondOp {
 	
 	public PhyOp rChild = null;		// Right child of this join operator is always a scan operator.
+	protected CompiledCondition pairFilter = null;		// conditions compiled on the columns of the children. Built by buildSchema.
 	
 	/**
 	 * Method that builds output schema of this node.
@@ -28,6 +33,7 @@ public abstract class PhyJoinOp extends PhyCondOp {
 		for (String name : rChild.schema.keySet()) {
 			schema.put(name, rChild.schema.get(name) + add);
 		}
+		pairFilter = CompiledCondition.compile(conditions, child.schema, rChild.schema);
 	}
 	
 	/**
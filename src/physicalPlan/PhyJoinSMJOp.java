@@ -5,8 +5,10 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Vector;
 
+import base.CompiledCondition;
 import base.Condition;
 import base.DBCatalog;
+import base.FileHeader;
 import base.Tuple;
 import base.TupleReader;
 import base.TupleWriter;
@@ -32,6 +34,7 @@ public final class PhyJoinSMJOp extends PhyJoinOp{
 	private boolean init = true;		// Whether it's the first getNextTuple operation. This is needed to do some initialization.
 	
 	public Vector<Condition> extraConditions = new Vector<>();		// Conditions whose operator is not =
+	private CompiledCondition extraFilter = null;					// extraConditions compiled on the columns of the children.
 	
 	/*
 	 * Constructor of this operator
@@ -42,40 +45,43 @@ public final class PhyJoinSMJOp extends PhyJoinOp{
 		++count;
 	}
 	
+	/**
+	 * Method that builds output schema of this node, and compiles extra conditions like the others.
+	 * @override from super class PhyJoinOp
+	 */
+	@Override
+	public void buildSchema() {
+		super.buildSchema();
+		extraFilter = CompiledCondition.compile(extraConditions, child.schema, rChild.schema);
+	}
+	
 	/**
 	 * Method that returns next tuple in the output of this operator.
-	 * Call innerGetNextTuple to get tuples that satisfy equality conditions
+	 * Call innerNextMatch to get pairs that satisfy equality conditions
 	 * until find one that also satisfies other conditions.
-	 * In one word: use this wrapper to test extra conditions.
+	 * In one word: use this wrapper to test extra conditions. Only the pair returned is concatenated.
 	 * @see physicalPlan.PhyOp#getNextTuple()
 	 * @return
 	 * 		next tuple in output of this operator.
 	 */
 	@Override
 	public Tuple getNextTuple() {
-		Tuple res;
-		while ((res = innerGetNextTuple()) != null) {
-			boolean statisfy = true;
-			for (Condition cond : extraConditions)
-				if (!cond.test(res, schema)) {
-					statisfy = false;
-					break;
-				}
-			if (statisfy)
-				return res;
+		while (innerNextMatch()) {
+			if (extraFilter.test(outer, inner))
+				return Tuple.concat(outer, inner);
 		}
 		return null;
 	}
 	
 
 	/*
-	 * Method that returns next tuple that satisfies equality conditions.
-	 * @return next tuple that satisfies equality conditions.
+	 * Method that moves outer and inner to the next pair that satisfies equality conditions.
+	 * @return true if there is one, false if the output is over.
 	 */
-	public Tuple innerGetNextTuple() {
+	private boolean innerNextMatch() {
 		
 		if (over)
-			return null;
+			return false;
 		
 		if (init) {
 			init = false;
@@ -84,7 +90,7 @@ public final class PhyJoinSMJOp extends PhyJoinOp{
 			
 			if (inner == null || outer == null) {
 				over = true;
-				return null;
+				return false;
 			}
 			
 		} else {	// TR is valid except when initialization.
@@ -96,7 +102,7 @@ public final class PhyJoinSMJOp extends PhyJoinOp{
 					outer = child.getNextTuple();
 					if (outer == null) {
 						over = true;
-						return null;
+						return false;
 					}
 					TR.reset();
 					inner = TR.getNextTuple();
@@ -109,20 +115,13 @@ public final class PhyJoinSMJOp extends PhyJoinOp{
 			
 			// Here both inner and outer will be available because every buffer file will have at least one tuple in it.
 			if (compareOI(outer, inner) == 0) {
-				Tuple join = new Tuple();
-				for(int i: outer.data) {
-					join.data.add(i);
-				}
-				for(int j: inner.data) {
-					join.data.add(j);
-				}
-				return join;
+				return true;
 			}
 			
 			// If the program get here, there is the current group is exhausted. We start looking for next match.
 			if (savedInner == null) {
 				over = true;
-				return null;
+				return false;
 			}
 			inner = savedInner;
 		}
@@ -132,24 +131,19 @@ public final class PhyJoinSMJOp extends PhyJoinOp{
 			
 			if (cmp == 0) {						// If find a match.
 				refreshFile();					// Refresh the buffer file for new group.
-				Tuple join = new Tuple();
-				for(int i: outer.data)
-					join.data.add(i);
-				for(int j: inner.data)
-					join.data.add(j);
-				return join;
+				return true;
 				
 			} else if (cmp > 0) {				// If not matching, go on to find next.
 				inner = rChild.getNextTuple();
 				if (inner == null) {
 					over = true;
-					return null;
+					return false;
 				}
 			} else {
 				outer = child.getNextTuple();
 				if (outer == null) {
 					over = true;
-					return null;
+					return false;
 				}
 			}
 		}
@@ -169,7 +163,7 @@ public final class PhyJoinSMJOp extends PhyJoinOp{
 				file.delete();
 			
 			// Save all the tuples in the new matching group to file.
-			TupleWriter TW = new TupleWriter(filePath);
+			TupleWriter TW = new TupleWriter(filePath, true, FileHeader.forTemp());
 			TW.setNextTuple(inner);
 			Tuple temp = rChild.getNextTuple();
 			while (temp != null && compareII(temp, inner) == 0) {
@@ -234,8 +228,8 @@ public final class PhyJoinSMJOp extends PhyJoinOp{
 	 */
 	private int compareOI(Tuple outer, Tuple inner) {
 		for (Condition cond : conditions) {
-			int ou = outer.data.get(child.schema.get(cond.leftName));
-			int in = inner.data.get(rChild.schema.get(cond.rightName));
+			int ou = outer.values[child.schema.get(cond.leftName)];
+			int in = inner.values[rChild.schema.get(cond.rightName)];
 			if (ou != in)
 				return ou < in ? -1 : 1;
 		}
@@ -251,8 +245,8 @@ public final class PhyJoinSMJOp extends PhyJoinOp{
 	 */
 	private int compareII(Tuple inner1, Tuple inner2) {
 		for (Condition cond : conditions) {
-			int in1 = inner1.data.get(rChild.schema.get(cond.rightName));
-			int in2 = inner2.data.get(rChild.schema.get(cond.rightName));
+			int in1 = inner1.values[rChild.schema.get(cond.rightName)];
+			int in2 = inner2.values[rChild.schema.get(cond.rightName)];
 			if (in1 != in2)
 				return in1 < in2 ? -1 : 1;
 		}
@@ -5,7 +5,9 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.util.HashMap;
 
+import base.FileHeader;
 import base.Tuple;
+import base.TupleBatch;
 
 /*
  * Base class for all the physical operators
@@ -20,12 +22,45 @@ public abstract class PhyOp {
 	public HashMap<String, Integer> schema = new HashMap<>();	// Schema of the output of this node. A dictionary whose
 																// key is the column name and value is the index of this column.
 	
+	private TupleBatch rowBatch = null;							// Batch filled by the default getNextBatch.
+	
 	/*
-	 * Method that return next tuple in the output of this node.
+	 * Method that return next tuple in the output of this node. The tuple belongs to the caller, who may keep it.
 	 * @return next tuple in the output of this node.
 	 */
 	public abstract Tuple getNextTuple();
 	
+	/*
+	 * Method that return next tuple in the output of this node, in a tuple this node may fill again later. It's only valid
+	 * until the next call of any method of this node, so a consumer that keeps tuples, like a sort or the block of BNLJ,
+	 * uses getNextTuple instead or copies it. Consumers that use every tuple at once and forget it use this one,
+	 * so that a pipeline of operators that reuse their tuples allocates nothing for each row.
+	 * This default implementation returns a new tuple from getNextTuple, operators that can reuse one override it.
+	 * @return next tuple in the output of this node.
+	 */
+	public Tuple getNextReusedTuple() {
+		return getNextTuple();
+	}
+	
+	/*
+	 * Method that return next batch of tuples in the output of this node. The batch belongs to this node and is
+	 * only valid until the next call. Between two resets, a consumer should use either this method or getNextTuple, not both.
+	 * This default implementation collects tuples from getNextReusedTuple, operators that can do better override it.
+	 * @return next batch with at least one alive row, or null if the output is over.
+	 */
+	public TupleBatch getNextBatch() {
+		Tuple temp = getNextReusedTuple();
+		if (temp == null)
+			return null;
+		if (rowBatch == null || rowBatch.arity != temp.arity)
+			rowBatch = new TupleBatch(temp.arity, TupleBatch.DEFAULT_CAPACITY);
+		rowBatch.clear();
+		rowBatch.addRow(temp);
+		while (!rowBatch.isFull() && (temp = getNextReusedTuple()) != null)
+			rowBatch.addRow(temp);
+		return rowBatch;
+	}
+	
 	/*
 	 * Method that reset output of this node to the beginning.
 	 */
@@ -38,11 +73,14 @@ public abstract class PhyOp {
 	 */
 	public final void dumpReadable(OutputStream out) throws IOException {
 		DataOutputStream dataOut = new DataOutputStream((out == null ? System.out : out));
-		Tuple temp;
-		while ((temp = this.getNextTuple()) != null) {
-			for (int i = 0; i < temp.data.size(); ++i)
-				dataOut.writeBytes((i == 0 ? temp.data.get(i).toString() : "," + temp.data.get(i)));
-			dataOut.write('\n');
+		TupleBatch batch;
+		while ((batch = this.getNextBatch()) != null) {
+			for (int j = 0; j < batch.selCount; ++j) {
+				int row = batch.sel[j];
+				for (int i = 0; i < batch.arity; ++i)
+					dataOut.writeBytes((i == 0 ? String.valueOf(batch.columns[i][row]) : "," + batch.columns[i][row]));
+				dataOut.write('\n');
+			}
 		}
 		dataOut.close();
 	}
@@ -53,10 +91,21 @@ public abstract class PhyOp {
 	 * 		The stream to be dump to.
 	 */
 	public final void dump(OutputStream out) throws IOException {
-		TupleWriter TW = new TupleWriter(out);
-		Tuple temp;
-		while ((temp = this.getNextTuple()) != null) {
-			TW.setNextTuple(temp);
+		dump(out, FileHeader.forWriting());
+	}
+	
+	/*
+	 * Method that dump all the output of this node to a stream in binary form with some page layout.
+	 * @param out
+	 * 		The stream to be dump to.
+	 * @param header
+	 * 		Page layout of the output.
+	 */
+	public final void dump(OutputStream out, FileHeader header) throws IOException {
+		TupleWriter TW = new TupleWriter(out, true, header);
+		TupleBatch batch;
+		while ((batch = this.getNextBatch()) != null) {
+			TW.setNextBatch(batch);
 		}
 		if (!TW.bufferEmpty())
 			TW.fillFlush();
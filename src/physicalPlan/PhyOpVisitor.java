@@ -22,6 +22,13 @@ public interface PhyOpVisitor {
 	 */
 	void visit(PhyDistOp PhyDistOp);
 	
+	/*
+	 * Method that is used to visit an empty physical operator.
+	 * @param phyEmptyOp
+	 * 		Empty physical operator that is being visited.
+	 */
+	void visit(PhyEmptyOp PhyEmptyOp);
+	
 	/*
 	 * Method that is used to visit a join physical operator.
 	 * @param phyJoinOp
@@ -1,8 +1,11 @@
 package physicalPlan;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map.Entry;
+import java.util.Vector;
 
 import base.Condition;
 import base.DBCatalog;
@@ -22,7 +25,9 @@ public final class PhyPlan implements PhyOpVisitor {
 	public PhyOp root = null;					// Root node of this physical plan.
 	
 	private final int joinBuffer = 10;			// Config buffer size of BNLJ, set to constant as instructed.
-	private final int sortBuffer = 10;			// Config buffer size of external sort, set to constant as instructed.
+	static final int sortBuffer = 10;			// Config buffer size of external sort, set to constant as instructed. Also used by optimizer.
+	private HashSet<String> referenced = null;	// Full names of all the attributes the query uses, null if it selects everything.
+	private PhyScanOp passThrough = null;		// The only scan, if the query outputs all of its output as it is.
 	
 	
 	/**
@@ -46,12 +51,35 @@ public final class PhyPlan implements PhyOpVisitor {
 		PhyOp dataRoot;
 		
 		optimize = new PhyPlanOptimizer(logPlan);
+		findReferenced();
+		
+		// Proved to select nothing. Output of joins is empty, so no scan, join, sort or distinct operator is built.
+		if (optimize.empty) {
+			PhyEmptyOp emptyOp = new PhyEmptyOp();
+			int count = 0;
+			for (LogPlan.Scan scan : logPlan.joinChildren) {
+				emptyOp.aliases.add(scan.alias);
+				for (DBCatalog.AttrInfo attrInfo : DBCatalog.getCatalog().tables.get(scan.fileName).attrs)
+					emptyOp.schema.put(scan.alias + '.' + attrInfo.name, count++);
+			}
+			PhyProjOp projOp = new PhyProjBfOp();
+			projOp.selectAll = (logPlan.projAttrs == null);
+			if (!projOp.selectAll)
+				projOp.projAttrs = logPlan.projAttrs;
+			projOp.child = emptyOp;
+			projOp.buildSchema();
+			root = projOp;
+			return;
+		}
 		
 		// Only one scan, no join.
 		if (optimize.finalJoinOrder == null) {
 			LogPlan.Scan scan = logPlan.joinChildren.get(0);
 			PhyPlanOptimizer.ScanInfo scanInfo = optimize.finalScanPlan.get(scan.alias);
-			dataRoot = buildOptimizedScan(scan, scanInfo);
+			PhyScanOp scanOp = buildOptimizedScan(scan, scanInfo);
+			if (logPlan.projAttrs == null && logPlan.orderAttrs == null && !logPlan.hasDist)
+				passThrough = scanOp;
+			dataRoot = scanOp;
 		} else {	// Joins
 			
 			// Left most scan.
@@ -72,6 +100,8 @@ public final class PhyPlan implements PhyOpVisitor {
 					join = new PhyJoinBNLJOp(joinBuffer, 	DBCatalog.getCatalog().tables.get(rightTree.fileName).attrs.size(),
 															DBCatalog.getCatalog().inputPath + append + rightTree.fileName);
 					join.conditions = optimize.finalJoinCond.get(i);
+					if (rightTree instanceof PhyScanBfOp)				// Inner is scanned once per outer block.
+						((PhyScanBfOp)rightTree).rescanned = true;
 					join.child = leftTree;
 					join.rChild = rightTree;
 					leftTree = join;
@@ -99,6 +129,14 @@ public final class PhyPlan implements PhyOpVisitor {
 					join.rChild = rSort;
 					leftTree = join;
 					break;
+				case 3:			// Hash join
+					join = new PhyJoinHashOp();
+					((PhyJoinHashOp)join).buildLeft = optimize.finalBuildLeft.get(i);
+					join.conditions = optimize.finalJoinCond.get(i);
+					join.child = leftTree;
+					join.rChild = rightTree;
+					leftTree = join;
+					break;
 				default:
 					break;
 				}
@@ -149,6 +187,21 @@ public final class PhyPlan implements PhyOpVisitor {
 		}
 	}
 	
+	/**
+	 * This function dumps the output of this plan to a file in binary form. If the plan outputs a scan of one relation as it is,
+	 * and the scan is a run of records of the relation file as they are stored, pages are copied from the relation file
+	 * instead of decoding and encoding every tuple.
+	 * @param
+	 * 		out: stream of the file, closed at the end.
+	 */
+	public void dump(FileOutputStream out) throws IOException {
+		if (passThrough != null && passThrough.transferTo(out.getChannel())) {
+			out.close();
+			return;
+		}
+		root.dump(out);
+	}
+	
 	/**
 	 * This function builds scan operator according to optimization information.
 	 * @param
@@ -169,14 +222,100 @@ public final class PhyPlan implements PhyOpVisitor {
 					scanOp.conditions.add(new Condition(entry.getKey() + " >= " + entry.getValue().lowValue));
 			}
 			scanOp.conditions.addAll(scan.otherConditions);
+			scanOp.columns = referencedColumns(scan);
+			addBloomProbes(scan, scanOp);
 			return scanOp;
 		} else {											// Index scan.
 			PhyScanIndexOp scanOp = new PhyScanIndexOp(scan.fileName, scan.alias, scanInfo.keyName);
+			scanOp.sortedRids = scanInfo.sortedRids;
 			scanOp.initialize(scan);
+			addBloomProbes(scan, scanOp);
 			return scanOp;
 		}
 	}
 	
+	/**
+	 * This function gives a scan the Bloom filters of the attributes its attributes are joined with by equality,
+	 * found in the unions of the logical plan.
+	 * @param
+	 * 		scan: information about this scan in logical plan.
+	 * 		scanOp: scan operator built for it.
+	 */
+	private void addBloomProbes(LogPlan.Scan scan, PhyScanOp scanOp) {
+		for (DBCatalog.AttrInfo attrInfo : DBCatalog.getCatalog().tables.get(scan.fileName).attrs) {
+			String attr = scan.alias + '.' + attrInfo.name;
+			LogPlan.Cluster cluster = logPlan.union_find.get(attr);
+			if (cluster == null)
+				continue;
+			for (String other : cluster.attrs) {
+				String otherAlias = other.substring(0, other.indexOf('.'));
+				if (otherAlias.equals(scan.alias))
+					continue;
+				String otherFile = logPlan.aliasMap.get(otherAlias).fileName;
+				DBCatalog.AttrInfo otherInfo = DBCatalog.getCatalog().tables.get(otherFile).findAttr(other.substring(other.indexOf('.') + 1));
+				if (otherInfo != null && otherInfo.bloom != null)
+					scanOp.probes.add(new PhyScanOp.BloomProbe(attr, otherInfo.bloom));
+			}
+		}
+	}
+	
+	/*
+	 * This function collects the attributes used anywhere in the query, so that full scans read only those columns.
+	 */
+	private void findReferenced() {
+		if (logPlan.projAttrs == null)			// Every column is output.
+			return;
+		referenced = new HashSet<>(logPlan.projAttrs);
+		if (logPlan.orderAttrs != null)
+			referenced.addAll(logPlan.orderAttrs);
+		for (Condition cond : logPlan.joinConditions)
+			addReferenced(cond);
+		if (optimize.finalJoinCond != null)
+			for (Vector<Condition> conds : optimize.finalJoinCond)
+				for (Condition cond : conds)
+					addReferenced(cond);
+		for (LogPlan.Scan scan : logPlan.joinChildren) {
+			referenced.addAll(scan.conditions.keySet());
+			for (Condition cond : scan.otherConditions)
+				addReferenced(cond);
+		}
+	}
+	
+	/*
+	 * Add the attributes of a condition to referenced.
+	 */
+	private void addReferenced(Condition cond) {
+		if (cond.leftName != null)
+			referenced.add(cond.leftName);
+		if (cond.rightName != null)
+			referenced.add(cond.rightName);
+	}
+	
+	/*
+	 * This function finds the columns a full scan needs to read.
+	 * @param
+	 * 		scan: information about this scan in logical plan.
+	 * @return
+	 * 		ids of the columns in ascending order, null if every column is needed.
+	 */
+	private int [] referencedColumns(LogPlan.Scan scan) {
+		if (referenced == null)
+			return null;
+		DBCatalog.RelationInfo relationInfo = DBCatalog.getCatalog().tables.get(scan.fileName);
+		Vector<Integer> ids = new Vector<>();
+		for (int i = 0; i < relationInfo.attrs.size(); ++i)
+			if (referenced.contains(scan.alias + '.' + relationInfo.attrs.get(i).name))
+				ids.add(i);
+		if (ids.size() == relationInfo.attrs.size())
+			return null;
+		if (ids.isEmpty())						// Still need the number of tuples, e.g. for a cross product.
+			ids.add(0);
+		int [] columns = new int [ids.size()];
+		for (int i = 0; i < columns.length; ++i)
+			columns[i] = ids.get(i);
+		return columns;
+	}
+	
 	// These elements are used to print this physical plan.
 	String printString = null;	// If not null, this is the output of this plan.
 	byte [] layers = null;		// Used to generate "---" faster.
@@ -235,6 +374,8 @@ public final class PhyPlan implements PhyOpVisitor {
 			visit((PhyJoinOp) phyOp);
 		else if (phyOp instanceof PhyScanOp)
 			visit((PhyScanOp) phyOp);
+		else if (phyOp instanceof PhyEmptyOp)
+			visit((PhyEmptyOp) phyOp);
 	}
 
 	/**
@@ -251,6 +392,18 @@ public final class PhyPlan implements PhyOpVisitor {
 		--layer;
 	}
 
+	/**
+	 * Use visitor pattern to build string representation.
+	 * @override from PhyOpVisitor interface
+	 * @param phyEmptyOp
+	 * 		Empty operator that is being visited.
+	 */
+	@Override
+	public void visit(PhyEmptyOp PhyEmptyOp) {
+		printString += new String(layers, 0, layer);
+		printString += (PhyEmptyOp.toString() + '\n');
+	}
+
 	/**
 	 * Use visitor pattern to build string representation.
 	 * @override from PhyOpVisitor interface
@@ -1,14 +1,19 @@
 package physicalPlan;
 
+import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Vector;
 
+import base.BufferPool;
 import base.Condition;
 import base.DBCatalog;
+import base.FileHeader;
+import base.KeyRanges;
 import logicalPlan.LogPlan;
 
 
@@ -28,6 +33,7 @@ public class PhyPlanOptimizer {
 		public String fileName;
 		public Integer type;			// 0: full scan. 1: index scan.
 		public String keyName;			// if index scan, key name is here. part name.
+		public boolean sortedRids;		// if unclustered index scan, whether rids are sorted by page before fetching tuples.
 		
 		/**
 		 * Constructor of a ScanInfo object.
@@ -61,8 +67,14 @@ public class PhyPlanOptimizer {
 	
 	
 	public Vector<Integer> finalJoinOrder = null;					// If null: only one relation.
-	public Vector<Integer> finalJoinType = null;					// 1: BNLJ. 2: SMJ. If null: only one relation.
+	public Vector<Integer> finalJoinType = null;					// 1: BNLJ. 2: SMJ. 3: hash join. If null: only one relation.
+	public Vector<Boolean> finalBuildLeft = null;					// For every hash join, whether its left child is the build side.
+	private Vector<Double> joinSizes = null;						// Estimated size of the join of the first i + 1 relations in finalJoinOrder.
+	private Vector<Double> scanSizes = null;						// Estimated output size of every scan, in the order of logPlan.joinChildren.
 	public Vector<Vector<Condition>> finalJoinCond = null;			// Conditions distributed to each join operator.
+	public boolean empty = false;									// Whether the query is proved to select nothing. If so, nothing is planned.
+	
+	private static final int BLOOM_POINTS = 64;						// Largest number of values of a union tested one by one against Bloom filters.
 	
 	
 	/**
@@ -73,6 +85,10 @@ public class PhyPlanOptimizer {
 	public PhyPlanOptimizer(LogPlan logPlan) {
 		this.logPlan = logPlan;
 		
+		empty = (logPlan.empty || provedEmpty());
+		if (empty)
+			return;
+		
 		planScanType();
 		
 		if (logPlan.joinChildren.size() > 1) {
@@ -81,6 +97,80 @@ public class PhyPlanOptimizer {
 		}
 	}
 
+	/*
+	 * This function tests whether statistics prove the query selects nothing: a relation is empty, the values a union
+	 * may have are outside the range of one of its attributes, which for a union of join keys means their ranges don't overlap,
+	 * or a condition fails for all the values its attributes may have. If a union is left with a few values,
+	 * they are tested against the Bloom filters of its attributes too.
+	 */
+	private boolean provedEmpty() {
+		for (LogPlan.Scan scan : logPlan.joinChildren)
+			if (DBCatalog.getCatalog().tables.get(scan.fileName).tupleNum == 0)
+				return true;
+		
+		// Values every attribute in a union may have.
+		HashMap<String, KeyRanges> attrValues = new HashMap<>();
+		HashSet<LogPlan.Cluster> seen = new HashSet<>();
+		for (LogPlan.Cluster clu : logPlan.union_find.values()) {
+			if (!seen.add(clu))
+				continue;
+			KeyRanges values = (clu.condts == null ? KeyRanges.all() : KeyRanges.range(clu.condts.lowValue, clu.condts.highValue));
+			if (clu.ranges != null)
+				values = values.intersect(clu.ranges);
+			for (String attr : clu.attrs)
+				values = values.intersect(statValues(attr));
+			if (values.isEmpty())
+				return true;
+			if (values.count() <= BLOOM_POINTS && !anyInBlooms(values, clu.attrs))
+				return true;
+			for (String attr : clu.attrs)
+				attrValues.put(attr, values);
+		}
+		
+		// Conditions not in unions.
+		Vector<Condition> residual = new Vector<>(logPlan.joinConditions);
+		for (LogPlan.Scan scan : logPlan.joinChildren)
+			residual.addAll(scan.otherConditions);
+		for (Condition cond : residual) {
+			if (cond.leftName == null)
+				continue;
+			KeyRanges left = attrValues.getOrDefault(cond.leftName, statValues(cond.leftName));
+			KeyRanges right = (cond.rightName == null ? null : attrValues.getOrDefault(cond.rightName, statValues(cond.rightName)));
+			if (cond.neverHolds(left, right))
+				return true;
+		}
+		return false;
+	}
+	
+	/*
+	 * This function gets the values an attribute has according to statistics, from the smallest to the largest.
+	 */
+	private KeyRanges statValues(String attr) {
+		LogPlan.Scan scan = logPlan.aliasMap.get(attr.split("\\.")[0]);
+		DBCatalog.AttrInfo attrInfo = DBCatalog.getCatalog().tables.get(scan.fileName).findAttr(attr.substring(attr.indexOf('.') + 1));
+		return KeyRanges.range(attrInfo.lowValue, attrInfo.highValue);
+	}
+	
+	/*
+	 * This function tests whether some of a few values may be in the Bloom filters of all the attributes of a union that have one.
+	 */
+	private boolean anyInBlooms(KeyRanges values, Vector<String> attrs) {
+		for (int i = 0; i < values.size(); ++i) {
+			for (long v = values.lows[i]; v <= values.highs[i]; ++v) {
+				boolean found = true;
+				for (String attr : attrs) {
+					LogPlan.Scan scan = logPlan.aliasMap.get(attr.split("\\.")[0]);
+					DBCatalog.AttrInfo attrInfo = DBCatalog.getCatalog().tables.get(scan.fileName).findAttr(attr.substring(attr.indexOf('.') + 1));
+					if (attrInfo.bloom != null && !attrInfo.bloom.mightContain((int) v))
+						found = false;
+				}
+				if (found)
+					return true;
+			}
+		}
+		return false;
+	}
+	
 	/*
 	 * This function plans scan type of every scan.
 	 */
@@ -89,11 +179,19 @@ public class PhyPlanOptimizer {
 		
 		for (LogPlan.Scan scan : logPlan.joinChildren) {
 			DBCatalog.RelationInfo relationInfo = DBCatalog.getCatalog().tables.get(scan.fileName);
-			Integer totalPage = (int) Math.ceil(relationInfo.tupleNum * relationInfo.attrs.size() * 4.0 / DBCatalog.getCatalog().pageSize);
+			int pageSize = DBCatalog.getCatalog().pageSize;
+			try {
+				String append = DBCatalog.getCatalog().inputPath.contains("/") ? "db/data/" : "db\\data\\";
+				pageSize = FileHeader.read(DBCatalog.getCatalog().inputPath + append + scan.fileName).pageSize;
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			Integer totalPage = (int) Math.ceil(relationInfo.tupleNum * relationInfo.attrs.size() * 4.0 / pageSize);
 			
 			Integer type = 0;				// Basic case: full scan.
 			String keyName = null;
 			Integer minCost = totalPage;
+			boolean sortedRids = false;		// Whether the best unclustered index scan sorts rids.
 			
 			// See if using an index could be better.
 			for (DBCatalog.IndexInfo index : relationInfo.indexes) {
@@ -104,15 +202,24 @@ public class PhyPlanOptimizer {
 				if (cond == null || (cond.highValue == Integer.MAX_VALUE && cond.lowValue == Integer.MIN_VALUE))
 					continue;
 				
-				double red = 1.0 * (Math.min(attr.highValue, cond.highValue) - Math.max(attr.lowValue, cond.lowValue) + 1) / (attr.highValue - attr.lowValue + 1);
+				double red = 1.0 * keptValues(scan, scan.alias + '.' + index.keyName, attr, cond) / (attr.highValue - attr.lowValue + 1);
+				int rangeNum = keyRangeNum(scan, scan.alias + '.' + index.keyName);
 				Integer cost;
+				boolean sorted = false;
 				
 				if (index.clustered == 1) {
-					cost = (int) (Math.ceil(totalPage * red) + 3);
+					cost = (int) (Math.ceil(totalPage * red) + 3 * rangeNum);		// Index is descended for every key range.
 					
 //					System.out.println(String.format("1 red: %f, totalPage: %d, Cost: %d", red, totalPage, cost));
 				} else {
-					cost = (int) (3 + Math.ceil(relationInfo.tupleNum * red));
+					// In key order every match is a page fetch. With rids sorted by page every data page holding a match is read once,
+					// but all the rids are collected and sorted first, counted like a sort of two-column tuples.
+					// Expected number of distinct pages holding n matches out of totalPage pages is totalPage * (1 - (1 - 1 / totalPage) ^ n).
+					double matches = relationInfo.tupleNum * red;
+					double pages = (totalPage == 0 ? 0 : totalPage * (1 - Math.pow(1 - 1.0 / totalPage, matches)));
+					double sortedCost = Math.min(pages, matches) + sortCost(pages(matches, 2));
+					sorted = (sortedCost < matches);
+					cost = (int) (3 * rangeNum + Math.ceil(Math.min(sortedCost, matches)));
 					
 					// Add leaves read to cost. If leaf count not available in DBCatalog, get it.
 					if (index.leafNum == -1) {
@@ -122,10 +229,10 @@ public class PhyPlanOptimizer {
 						try {
 							RandomAccessFile indexFile = new RandomAccessFile(indexPath, "r");
 							FileChannel indexFC = indexFile.getChannel();
-							ByteBuffer BB = ByteBuffer.allocate(DBCatalog.getCatalog().pageSize);
+							FileHeader indexHeader = FileHeader.read(indexFC);
+							ByteBuffer BB = ByteBuffer.allocate(indexHeader.pageSize);
 							
-							indexFC.read(BB);
-							BB.flip();
+							BufferPool.getPool().readPage(BufferPool.fileKey(indexPath), indexHeader, 0, indexFC, BB);
 							index.leafNum = BB.getInt(4);
 							
 							indexFC.close();
@@ -143,14 +250,39 @@ public class PhyPlanOptimizer {
 					type = 1;
 					keyName = index.keyName;
 					minCost = cost;
+					sortedRids = sorted;
 				}
 			}
 			
 			// Record this plan for scan.
-			finalScanPlan.put(scan.alias, new ScanInfo(scan.fileName, type, keyName));
+			ScanInfo scanInfo = new ScanInfo(scan.fileName, type, keyName);
+			scanInfo.sortedRids = sortedRids;
+			finalScanPlan.put(scan.alias, scanInfo);
 		}
 	}
 	
+	/*
+	 * This function counts the values of an attribute a scan keeps, within its high-low bound and the IN conditions on it.
+	 */
+	private static long keptValues(LogPlan.Scan scan, String attr, DBCatalog.AttrInfo attrInfo, LogPlan.HighLowCondition bound) {
+		KeyRanges kept = KeyRanges.range(Math.max(attrInfo.lowValue, bound.lowValue), Math.min(attrInfo.highValue, bound.highValue));
+		for (Condition cond : scan.otherConditions)
+			if (cond.operator == Condition.op.in && attr.equals(cond.leftName))
+				kept = kept.intersect(cond.ranges);
+		return kept.count();
+	}
+	
+	/*
+	 * This function counts the key ranges an index scan on an attribute visits, one unless IN conditions split its bound.
+	 */
+	private static int keyRangeNum(LogPlan.Scan scan, String attr) {
+		int ret = 1;
+		for (Condition cond : scan.otherConditions)
+			if (cond.operator == Condition.op.in && attr.equals(cond.leftName))
+				ret = Math.max(ret, cond.ranges.size());
+		return ret;
+	}
+	
 	/*
 	 * In this project, a set of relations in the plan is represented by a 01 string, s[i] == 1 means logPlan.joinChildren[i] is in this plan.
 	 * This class is used to iterate from small subsets to big ones.
@@ -280,8 +412,12 @@ public class PhyPlanOptimizer {
 				
 				// If there is restriction on this attribute, it's vValue and estimated output size will shrink.
 				if (condition != null) {
-					vValue = Math.min(attrInfo.highValue, condition.highValue) - Math.max(attrInfo.lowValue, condition.lowValue) + 1;
+					vValue = (int) keptValues(scan, scan.alias + '.' + attrInfo.name, attrInfo, condition);
 					tempSize *= (vValue * 1.0 / (attrInfo.highValue - attrInfo.lowValue + 1));
+					
+					// A single value that Bloom filter says is absent selects nothing.
+					if (condition.lowValue.equals(condition.highValue) && attrInfo.bloom != null && !attrInfo.bloom.mightContain(condition.lowValue))
+						tempSize = 0;
 				}
 				
 				plan.vValueDict.put(scan.alias + '.' + attrInfo.name, vValue);
@@ -409,18 +545,75 @@ public class PhyPlanOptimizer {
 		// In the last iteration, leftPlan will be the plan for whole set.
 		finalJoinOrder = leftPlan.joinOrder;
 		
+		// Sizes of its left deep sub-plans are those of the best plans of their sets, which they are.
+		joinSizes = new Vector<>();
+		relationSetArray = new char [logPlan.joinChildren.size()];
+		Arrays.fill(relationSetArray, '0');
+		for (Integer rela : finalJoinOrder) {
+			relationSetArray[rela] = '1';
+			joinSizes.add(planMap.get(new String(relationSetArray)).size);
+		}
+		scanSizes = new Vector<>();
+		for (int i = 0; i < logPlan.joinChildren.size(); ++i)
+			scanSizes.add(planMap.get(myUniSetStringGenerator.getUniSetString(i)).size);
+		
 //		mySetStringGenerator.reset();
 //		String key;
 //		while ((key = mySetStringGenerator.getNextString()) != null)
 //			System.out.println(String.format("%s partial join plan: %s", key, planMap.get(key)));
 	}
 	
+	/*
+	 * This function estimates the number of pages some tuples take.
+	 */
+	private static double pages(double tupleNum, int arity) {
+		return Math.ceil(tupleNum * arity * 4.0 / DBCatalog.getCatalog().pageSize);
+	}
+	
+	/*
+	 * This function estimates the I/O cost in pages of an external sort of some pages with the buffer of PhyPlan.
+	 * Every pass reads and writes everything: one to build runs of sortBuffer pages, then merges of sortBuffer - 1 runs.
+	 */
+	private static double sortCost(double pages) {
+		int buffer = PhyPlan.sortBuffer;
+		if (pages <= buffer)
+			return 2 * pages;
+		double runs = Math.ceil(pages / buffer);
+		return 2 * pages * (1 + Math.ceil(Math.log(runs) / Math.log(buffer - 1)));
+	}
+	
+	/*
+	 * This function estimates the I/O cost in pages of SMJ: sorting both children, then reading both sorted outputs once.
+	 */
+	private static double sortMergeJoinCost(double leftPages, double rightPages) {
+		return sortCost(leftPages) + sortCost(rightPages) + leftPages + rightPages;
+	}
+	
+	/*
+	 * This function estimates the I/O cost in pages of a hybrid hash join: reading both children once, plus writing and
+	 * reading again the share of both that is spilled because the build side, the smaller one, does not fit in DBCatalog.joinMemory.
+	 * A spilled partition that still does not fit is spilled again, once more for every FANOUT times the memory it needs.
+	 */
+	private static double hashJoinCost(double leftPages, double rightPages) {
+		double total = leftPages + rightPages;
+		double build = Math.min(leftPages, rightPages);
+		int memory = DBCatalog.getCatalog().joinMemory;
+		if (build <= memory)
+			return total;
+		double spilled = 1.0 - memory / build;
+		int passes = 1;
+		for (double part = build / PhyJoinHashOp.FANOUT; part > memory; part /= PhyJoinHashOp.FANOUT)
+			++passes;
+		return total + 2 * total * spilled + 2 * total * (passes - 1);
+	}
+	
 	/*
 	 * This function plans join type of every join and get join conditions by the way.
 	 */
 	private void planJoinType() {
 		finalJoinCond = new Vector<>();
 		finalJoinType = new Vector<>();
+		finalBuildLeft = new Vector<>();
 		
 		HashSet<String> leftAttrs = new HashSet<>();							// Attributes that in left sub-plan.
 		LogPlan.Scan scan = logPlan.joinChildren.get(finalJoinOrder.get(0));	// Left most scan.
@@ -437,7 +630,7 @@ public class PhyPlanOptimizer {
 			for (DBCatalog.AttrInfo attr : relation.attrs)
 				rightAttrs.add(scan.alias + '.' + attr.name);
 			
-			// If find a equality condition, use SMJ. Otherwise, use BNLJ.
+			// If find a equality condition, use hash join if it's cheaper, SMJ otherwise. If not, use BNLJ.
 			boolean findEqualCond = false;
 			for (Condition cond : logPlan.joinConditions) {
 				if (leftAttrs.contains(cond.leftName) && rightAttrs.contains(cond.rightName)) {
@@ -451,10 +644,16 @@ public class PhyPlanOptimizer {
 						findEqualCond = true;
 				}
 			}
-			if (findEqualCond)
+			double leftPages = pages(joinSizes.get(i - 1), leftAttrs.size());
+			double rightPages = pages(scanSizes.get(finalJoinOrder.get(i)), rightAttrs.size());
+			boolean buildLeft = (leftPages < rightPages);
+			if (findEqualCond && hashJoinCost(leftPages, rightPages) < sortMergeJoinCost(leftPages, rightPages))
+				finalJoinType.add(3);
+			else if (findEqualCond)
 				finalJoinType.add(2);
 			else
 				finalJoinType.add(1);
+			finalBuildLeft.add(buildLeft);
 			
 			leftAttrs.addAll(rightAttrs);
 		}
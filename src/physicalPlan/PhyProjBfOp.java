@@ -1,14 +1,37 @@
 package physicalPlan;
 import base.Tuple;
+import base.TupleBatch;
 
 /*
  * Brute force implementation of projection physical operator
  * Operator that get some of the columns of its child operator.
+ * Tuples of child are only read before the next call, so they are taken with getNextReusedTuple.
  * 
  * @authors Enze Zhou ez242, Shuang Zhang sz468
  */
 public final class PhyProjBfOp extends PhyProjOp {
 
+	private int [] childColumns = null;		// childColumns[i] is the column of child that goes to output column i. Built at the first batch.
+	private TupleBatch batch = null;		// Batch returned by getNextBatch. It shares columns with the batch of child.
+	private Tuple reused = null;			// Tuple returned by getNextReusedTuple.
+
+	/*
+	 * Build childColumns if it's not built yet.
+	 */
+	private void buildChildColumns() {
+		if (childColumns != null)
+			return;
+		if (selectAll) {				// If select all, projection operator is responsible for changing order
+			childColumns = new int [schema.size()];
+			for (String attr : schema.keySet())
+				childColumns[schema.get(attr)] = child.schema.get(attr);
+		} else {
+			childColumns = new int [projAttrs.size()];
+			for (int i = 0; i < projAttrs.size(); ++i)
+				childColumns[i] = child.schema.get(projAttrs.get(i));
+		}
+	}
+	
 	/*
 	 * Method that returns next tuple in the output of this node.
 	 * @override from super class Operator
@@ -16,29 +39,62 @@ public final class PhyProjBfOp extends PhyProjOp {
 	 */
 	@Override
 	public Tuple getNextTuple() {
-		Tuple childnext = child.getNextTuple();
-		if (childnext == null) {
+		buildChildColumns();
+		return project(new Tuple(childColumns.length));
+	}
+	
+	/*
+	 * Method that returns next tuple in the output of this node, in a tuple filled again by the next call.
+	 * @override from super class PhyOp
+	 * @return next tuple in the output of this node.
+	 */
+	@Override
+	public Tuple getNextReusedTuple() {
+		buildChildColumns();
+		if (reused == null)
+			reused = new Tuple(childColumns.length);
+		return project(reused);
+	}
+	
+	/*
+	 * Fill a tuple with the columns of the next tuple of child.
+	 * @param proj
+	 * 		tuple to fill.
+	 * @return proj, or null if child is over.
+	 */
+	private Tuple project(Tuple proj) {
+		Tuple childnext = child.getNextReusedTuple();
+		if (childnext == null)
+			return null;
+		for (int i = 0; i < childColumns.length; ++i)
+			proj.values[i] = childnext.values[childColumns[i]];
+		return proj;
+	}
+
+	/*
+	 * Method that returns next batch in the output of this node.
+	 * A projection only reorders columns, so the output batch points to the columns and selection vector of the child batch.
+	 * @override from super class PhyOp
+	 * @return next batch with at least one alive row, or null if the output is over.
+	 */
+	@Override
+	public TupleBatch getNextBatch() {
+		TupleBatch childBatch = child.getNextBatch();
+		if (childBatch == null)
 			return null;
-		}
 		
-		if (selectAll) {				// If select all, projection operator is responsible for changing order
-			Tuple proj = new Tuple();
-			for (int i = 0; i < childnext.data.size(); ++i)
-				proj.data.add(0);
-			for (String attr : schema.keySet()) {
-				proj.data.set(schema.get(attr), childnext.data.get(child.schema.get(attr)));
-			}
-			return proj;
+		if (batch == null) {
+			buildChildColumns();
+			batch = new TupleBatch(childColumns.length);
 		}
 		
-		// projection
-		// based on childnext's schema and projNames
-		Tuple proj = new Tuple();
-		for(String attr: projAttrs) {
-			int index = child.schema.get(attr);
-			proj.data.add((childnext.data.get(index)));
-		}
-		return proj;
+		for (int i = 0; i < childColumns.length; ++i)
+			batch.columns[i] = childBatch.columns[childColumns[i]];
+		batch.capacity = childBatch.capacity;
+		batch.rowCount = childBatch.rowCount;
+		batch.sel = childBatch.sel;
+		batch.selCount = childBatch.selCount;
+		return batch;
 	}
 
 	/*
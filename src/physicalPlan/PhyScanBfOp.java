@@ -1,16 +1,45 @@
 package physicalPlan;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Vector;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.IntPredicate;
 
-import base.Condition;
+import base.CompiledCondition;
+import base.AdaptiveOrder;
+import base.BufferPool;
 import base.DBCatalog;
+import base.FileHeader;
+import base.PageTransfer;
 import base.Tuple;
+import base.TupleBatch;
 import base.TupleReader;
+import base.TupleView;
+import base.ZoneMap;
 
 
 /**
  * Brute force implementation of scan physical operator
  * Scan a file and output its tuples one by one. Inherited from PhyCondOp to have a conditions vector that is used to filter the output of this node.
+ * If columns is set, only those columns of the file are read and output, in file order.
+ * Pages whose zone map shows that no tuple can satisfy the conditions are skipped without being read,
+ * and the file is not read at all if Bloom filters prove that no tuple can.
+ * A scan of every column without conditions outputs the file as it is, so its output can be copied page by page.
+ * A file of more than PARTITION_PAGES pages is scanned in parallel when DBCatalog allows more than one scan thread.
+ * It's cut into partitions of PARTITION_PAGES pages, each read and filtered by conditions on a thread of a shared pool.
+ * At most 2 partitions per thread are in flight, and their results are output in file order, so the output is the same
+ * as a scan on one thread. Bloom probes count what they see, so they are applied to the results on the calling thread.
+ * Rows are tested in place through a TupleView, so rejected rows only have the columns of conditions read.
+ * Conditions are compiled with the schema for this, see CompiledCondition.
+ * Both in batches and row by row, conditions are tested in an order learned from the share of rows they reject and their cost,
+ * see AdaptiveOrder. In batches the cost is the time spent, each partition of a parallel scan learns its own order.
+ * Rows passing are read into one tuple that is reused, and copied again for getNextTuple.
+ * A scan reset again and again is read through the buffer pool, so its pages are read from file once. If its file has
+ * more pages than the pool has frames, every reset would miss all of them, so the file is memory-mapped instead.
  * 
  * @authors Enze Zhou ez242 Weicheng Yu wy248
  */
@@ -19,40 +48,203 @@ public final class PhyScanBfOp extends PhyScanOp {
 	
 	private TupleReader tupleReader;		// Reader for binary file.
 	private boolean read = false;
+	private boolean empty = false;			// Whether Bloom filters prove the output empty.
+	private TupleBatch batch = null;		// Batch returned by getNextBatch.
+	private Tuple reused = null;			// Tuple returned by getNextReusedTuple.
+	private CompiledCondition filter = null;	// conditions compiled on the schema. Built by buildSchema.
+	private AdaptiveOrder batchOrder = null;	// Order of conditions in getNextBatch.
+	public boolean rescanned = false;		// Whether the scan is reset again and again, like the inner of BNLJ.
+	public int [] columns = null;			// Ids of the columns of the file to output, in ascending order. null for all. Must be set before buildSchema.
 	
+	public static final int PARTITION_PAGES = 64;	// Number of pages in a partition of a parallel scan.
+	private static ForkJoinPool pool = null;		// Threads of parallel scans, shared by all of them.
+	private boolean parallel = false;				// Whether the file is scanned in partitions in parallel.
+	private String dataPath = null;					// Path of the file, in parallel mode.
+	private IntPredicate pageFilter = null;			// Pages that may hold tuples satisfying conditions by zone map, null if all may.
+	private int pageCount = 0;						// Number of pages of the file.
+	private int nextPartition = 0;					// Id of the next partition to submit.
+	private ArrayDeque<ForkJoinTask<Vector<TupleBatch>>> partitions = new ArrayDeque<>();	// Partitions in flight, in file order.
+	private Vector<TupleBatch> partBatches = null;	// Batches of the partition being output.
+	private int partPos = 0;						// Position of the next batch to output in partBatches.
+	private TupleBatch tupleBatch = null;			// Batch tuples are taken from by getNextTuple in parallel mode.
+	private int tupleRow = 0;						// Position of the next tuple to take in selection vector of tupleBatch.
 	
 	/**
-	 * Method that return next tuple in the output of this node.
-	 * @override from super class Operator
-	 * @return next tuple in the output of this node.
+	 * Method that build output schema of this node, only with the columns asked for.
+	 * @override from super class PhyScanOp
 	 */
 	@Override
-	public Tuple getNextTuple() {
+	public void buildSchema() {
+		if (columns == null) {
+			super.buildSchema();
+		} else {
+			for (int i = 0; i < columns.length; ++i)
+				schema.put(alias + "." + DBCatalog.getCatalog().tables.get(fileName).attrs.get(columns[i]).name, i);
+		}
+		filter = CompiledCondition.compile(conditions, schema);
+	}
+	
+	/*
+	 * Open the data file if it's not opened yet, skipping pages by its zone map if it has one.
+	 * A large file is not opened here but scanned in parallel partitions, the first of which are submitted.
+	 */
+	private void open() {
 		if (!read){
+			read = true;
+			empty = provedEmpty();
+			if (empty)
+				return;
 			try {
 				String data = DBCatalog.getCatalog().inputPath.contains("/") ? "db/data/" : "db\\data\\";
-				tupleReader = new TupleReader(DBCatalog.getCatalog().inputPath+data+fileName);
-				read = true;
+				dataPath = DBCatalog.getCatalog().inputPath+data+fileName;
+				ZoneMap zones = ZoneMap.read(dataPath);
+				pageFilter = (zones == null ? null : zones.pageFilter(conditions, alias, DBCatalog.getCatalog().tables.get(fileName)));
+				FileHeader header = FileHeader.read(dataPath);
+				long bytes = Math.max(0, new File(dataPath).length() - header.offset);
+				pageCount = (int) ((bytes + header.pageSize - 1) / header.pageSize);
+				parallel = (DBCatalog.getCatalog().scanThreads > 1 && !rescanned && pageCount > PARTITION_PAGES);
+				boolean map = (rescanned && pageCount > BufferPool.getPool().frameCount());
+				if (parallel)
+					submitPartitions();
+				else
+					tupleReader = new TupleReader(dataPath, map, TupleReader.READ_AHEAD_PAGES, pageFilter);
 			} catch (IOException e1) {
 				e1.printStackTrace();
 			}
 		}
-		boolean failed = false;
+	}
+	
+	/*
+	 * Get the pool of parallel scans, creating it the first time.
+	 */
+	private static synchronized ForkJoinPool pool() {
+		if (pool == null)
+			pool = new ForkJoinPool(DBCatalog.getCatalog().scanThreads);
+		return pool;
+	}
+	
+	/*
+	 * Submit partitions in file order until as many as allowed are in flight or the file is over.
+	 */
+	private void submitPartitions() {
+		while (partitions.size() < 2 * DBCatalog.getCatalog().scanThreads && (long) nextPartition * PARTITION_PAGES < pageCount) {
+			final int first = nextPartition * PARTITION_PAGES;
+			final int end = Math.min(first + PARTITION_PAGES, pageCount);
+			partitions.add(pool().submit(() -> scanPartition(first, end)));
+			++nextPartition;
+		}
+	}
+	
+	/*
+	 * Read and filter a partition of the file. Runs on a thread of the pool, so it only reads this operator.
+	 * @param
+	 * 		first: id of the first page of the partition.
+	 * 		end: id of the page after the last one.
+	 * @return
+	 * 		batches with at least one row satisfying conditions, in file order.
+	 */
+	private Vector<TupleBatch> scanPartition(int first, int end) throws IOException {
+		Vector<TupleBatch> ret = new Vector<>();
+		TupleReader reader = new TupleReader(dataPath, TupleReader.READ_AHEAD_PAGES, pageFilter, first, end);
+		TupleBatch part = new TupleBatch(schema.size(), TupleBatch.DEFAULT_CAPACITY);
+		AdaptiveOrder order = new AdaptiveOrder(conditions.size());
+		while (reader.readBatch(part, columns) > 0) {
+			if (filterConditions(part, order) > 0) {
+				ret.add(part);
+				part = new TupleBatch(schema.size(), TupleBatch.DEFAULT_CAPACITY);
+			}
+		}
+		reader.close();
+		return ret;
+	}
+	
+	/*
+	 * Filter a batch with conditions in an adaptive order, recording what each of them rejects and the time it takes.
+	 * @param
+	 * 		batch: the batch, in the schema of this operator.
+	 * 		order: order of conditions.
+	 * @return
+	 * 		number of rows left in its selection vector.
+	 */
+	private int filterConditions(TupleBatch batch, AdaptiveOrder order) {
+		int rows = batch.selCount;
+		for (int id : order.order()) {
+			int before = batch.selCount;
+			long start = System.nanoTime();
+			conditions.get(id).filter(batch, schema);
+			order.record(id, before, batch.selCount, System.nanoTime() - start);
+			if (batch.selCount == 0)
+				break;
+		}
+		order.endRows(rows);
+		return batch.selCount;
+	}
+	
+	/*
+	 * Get the next batch in parallel mode, waiting for its partition if needed, and apply Bloom probes to it.
+	 * @return next batch with at least one alive row, or null if the output is over.
+	 */
+	private TupleBatch nextParallelBatch() {
 		try {
-			Tuple temp = null;
-			while ((temp = tupleReader.getNextTuple()) != null){
-				for (Condition c: conditions){		
-					if (!c.test(temp, schema)) {		//if any test fails, set failed and check next ccondition
-						failed = true;
-						break;
-					}
-				}
-				if (failed){
-					failed = false;
+			while (true) {
+				if (partBatches != null && partPos < partBatches.size()) {
+					TupleBatch ret = partBatches.get(partPos++);
+					if (filterProbes(ret) > 0)
+						return ret;
 					continue;
 				}
-				
-				return temp;
+				if (partitions.isEmpty())
+					return null;
+				partBatches = partitions.poll().join();
+				partPos = 0;
+				submitPartitions();
+			}
+		} catch (RuntimeException e) {			// Exceptions of partitions are thrown again by join.
+			e.printStackTrace();
+		}
+		return null;
+	}
+	
+	/**
+	 * Method that return next tuple in the output of this node.
+	 * @override from super class Operator
+	 * @return next tuple in the output of this node.
+	 */
+	@Override
+	public Tuple getNextTuple() {
+		Tuple ret = getNextReusedTuple();
+		return (ret == null ? null : ret.copy());
+	}
+	
+	/**
+	 * Method that return next tuple in the output of this node, in a tuple filled again by the next call.
+	 * @override from super class PhyOp
+	 * @return next tuple in the output of this node.
+	 */
+	@Override
+	public Tuple getNextReusedTuple() {
+		open();
+		if (empty)
+			return null;
+		if (reused == null)
+			reused = new Tuple(schema.size());
+		if (parallel) {
+			while (tupleBatch == null || tupleRow >= tupleBatch.selCount) {
+				tupleBatch = nextParallelBatch();
+				tupleRow = 0;
+				if (tupleBatch == null)
+					return null;
+			}
+			int row = tupleBatch.sel[tupleRow++];
+			for (int c = 0; c < tupleBatch.arity; ++c)
+				reused.values[c] = tupleBatch.columns[c][row];
+			return reused;
+		}
+		try {
+			TupleView temp = null;
+			while ((temp = tupleReader.nextView(columns)) != null){
+				if (filter.test(temp) && passProbes(temp))
+					return temp.fill(reused);
 			}
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -60,12 +252,74 @@ public final class PhyScanBfOp extends PhyScanOp {
 		return null;
 	}
 
+	/**
+	 * Method that return next batch in the output of this node.
+	 * Pages are decoded column by column into the batch and every condition filters the whole batch at once.
+	 * @override from super class PhyOp
+	 * @return next batch with at least one alive row, or null if the output is over.
+	 */
+	@Override
+	public TupleBatch getNextBatch() {
+		open();
+		if (empty)
+			return null;
+		if (parallel)
+			return nextParallelBatch();
+		if (batch == null) {
+			batch = new TupleBatch(schema.size(), TupleBatch.DEFAULT_CAPACITY);
+			batchOrder = new AdaptiveOrder(conditions.size());
+		}
+		try {
+			while (tupleReader.readBatch(batch, columns) > 0) {
+				if (filterConditions(batch, batchOrder) > 0)
+					filterProbes(batch);
+				if (batch.selCount > 0)
+					return batch;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
+
+	/**
+	 * Copy the whole file to an output file page by page if this scan has no condition and outputs every column.
+	 * @override from super class PhyScanOp
+	 * @param
+	 * 		out: channel of the output file, positioned at its beginning.
+	 * @return
+	 * 		whether the output was copied.
+	 */
+	@Override
+	public boolean transferTo(FileChannel out) throws IOException {
+		if (!conditions.isEmpty() || !probes.isEmpty() || columns != null)
+			return false;
+		String data = DBCatalog.getCatalog().inputPath.contains("/") ? "db/data/" : "db\\data\\";
+		PageTransfer transfer = PageTransfer.open(DBCatalog.getCatalog().inputPath+data+fileName, out);
+		if (transfer == null)
+			return false;
+		transfer.start();
+		transfer.copyAll();
+		transfer.close();
+		return true;
+	}
+
 	/**
 	 * Method that reset output of this node to the beginning.
 	 * @override from super class Operator
 	 */
 	@Override
 	public void reset()  {
+		if (parallel) {						// Wait for partitions in flight, whose buffers are dropped, and start again.
+			for (ForkJoinTask<Vector<TupleBatch>> partition : partitions)
+				partition.quietlyJoin();
+			partitions.clear();
+			partBatches = null;
+			tupleBatch = null;
+			nextPartition = 0;
+			submitPartitions();
+			return;
+		}
 		try {
 			if (tupleReader != null)
 				tupleReader.reset();
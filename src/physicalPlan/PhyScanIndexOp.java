@@ -5,16 +5,36 @@ import java.io.RandomAccessFile;
 import java.lang.Math;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.Arrays;
 import java.util.Map.Entry;
+import java.util.Vector;
+import java.util.function.IntPredicate;
 
+import base.BufferPool;
+import base.CompiledCondition;
 import base.Condition;
 import base.DBCatalog;
+import base.FileHeader;
+import base.KeyRanges;
+import base.PageTransfer;
+import base.RidFetcher;
 import base.Tuple;
 import base.TupleReader;
+import base.TupleView;
+import base.ZoneMap;
 import logicalPlan.LogPlan;
 
 /**
  * This class is index scan operator.
+ * An unclustered scan fetches tuples in key order by default. In sorted rid mode it first collects the rids of all the keys in
+ * range from index leaves and sorts them, so that data pages are read in order and each of them once.
+ * Data pages whose zone map shows that no tuple can satisfy the conditions are not read, in clustered and unclustered scans.
+ * If Bloom filters prove that no tuple can, even the index is not probed.
+ * A clustered scan without conditions other than high-low key outputs a run of records of the data file as they are,
+ * so its output can be copied page by page, with only the first and the last pages of the range cut.
+ * IN and <> conditions on key cut high-low key into a sorted set of key ranges, see KeyRanges, visited in one pass.
+ * Between two ranges, index leaves are scanned forward if the next range starts in the same leaf, otherwise index is
+ * descended again from root. A clustered scan jumps the data pages before the next range the same way.
  * @superclass PhyScanOp
  * 
  * @author Enze Zhou ez242
@@ -27,18 +47,32 @@ public class PhyScanIndexOp extends PhyScanOp {
 	private int lowKey = Integer.MIN_VALUE;		// They are set to this value so that if no condition is given, all the key value is valid.
 	private int highKey = Integer.MAX_VALUE;	// The valid range is [lowKey, highKey].
 	private boolean [] validConditions;			// Whether the corresponding condition is valid or has been included in high-low kye.
+	private KeyRanges keyRanges = null;			// Ranges of key visited, within high-low key. Set by initialize.
+	private int rangeId = 0;					// Id of the range being visited.
+	private CompiledCondition filter = null;	// Valid conditions compiled on the schema. Built by buildSchema.
 	private boolean clustered;
+	private boolean empty = false;				// Whether Bloom filters prove the output empty.
 	private int rootAddr;						// Root page address in index file.
 	private int leavesNum;						// Number of leaves in index file.
 	
 	// Things to read index file.
 	private RandomAccessFile indexFile = null;
 	private FileChannel indexFC = null;
+	private String indexKey = null;				// Name of index file in buffer pool.
+	private FileHeader indexHeader = null;		// Page layout of index file.
 	private ByteBuffer BB = null;
 	
 	// Things to read data file.
+	private String dataPath = null;
+	private IntPredicate dataPages = null;		// Data pages that may hold tuples satisfying conditions by zone map. null if all may.
+	public boolean sortedRids = false;			// If unclustered, whether to fetch tuples in rid order instead of key order.
+	private long [] rids = null;				// Rids satisfying high-low key in sorted rid mode, page id in high half, null if not collected yet.
+	private int ridCount = 0;					// Number of rids in rids.
+	private int ridPos = 0;						// Position of the next rid to fetch in rids.
 	private TupleReader dataFile1 = null;		// If clustered, traverse this one for better performance.
-	private RandomAccessFile dataFile2 = null;	// If unclustered, use random access to jump and read next tuple.
+	private int firstPage;						// If clustered, page id of the first tuple satisfying high-low key.
+	private int firstSlot;						// If clustered, id of that tuple in its page.
+	private RidFetcher dataFile2 = null;		// If unclustered, fetch tuples by rid from recently used pages.
 	
 	// Things to find the next tuple rid that satisfies high-low key according to index. It doesn't necessarily satisfy other conditions so further judgment is needed.
 	private int BBPageAddr;			// Corresponding page address of BB.
@@ -73,18 +107,20 @@ public class PhyScanIndexOp extends PhyScanOp {
 		try {
 			indexFile = new RandomAccessFile(indexPath, "r");
 			indexFC = indexFile.getChannel();
-			BB = ByteBuffer.allocate(DBCatalog.getCatalog().pageSize);
+			indexKey = BufferPool.fileKey(indexPath);
+			indexHeader = FileHeader.read(indexFC);
+			BB = ByteBuffer.allocate(indexHeader.pageSize);
 			
 			append = DBCatalog.getCatalog().inputPath.contains("/") ? "db/data/" : "db\\data\\";
+			dataPath = DBCatalog.getCatalog().inputPath + append + fileName;
 			if (this.clustered) {
-				dataFile1 = new TupleReader(DBCatalog.getCatalog().inputPath + append + fileName);
+				dataFile1 = new TupleReader(dataPath, false, TupleReader.READ_AHEAD_PAGES);
 			} else {
-				dataFile2 = new RandomAccessFile(DBCatalog.getCatalog().inputPath + append + fileName, "r");
+				dataFile2 = new RidFetcher(dataPath, DBCatalog.getCatalog().tables.get(fileName).attrs.size());
 			}
 			
 			// Read header information.
-			indexFC.read(BB);
-			BB.flip();
+			BufferPool.getPool().readPage(indexKey, indexHeader, 0, indexFC, BB);
 			rootAddr = BB.getInt(0);
 			leavesNum = BB.getInt(4);
 			
@@ -119,6 +155,9 @@ public class PhyScanIndexOp extends PhyScanOp {
 			validConditions = new boolean [conditions.size()];
 			for (int i = 0; i < conditions.size(); ++i)
 				validConditions[i] = true;
+			useKeyRanges();
+			useZoneMap();
+			useBloomFilters();
 			return seekToFirstRid();
 		}
 		
@@ -133,7 +172,7 @@ public class PhyScanIndexOp extends PhyScanOp {
 			Condition cond = conditions.get(i);
 			
 			// Only these conditions can be expressed by high-low key.
-			if (cond.leftName.equals(alias + "." + keyName) && cond.rightName == null && cond.operator != Condition.op.ne) {
+			if (cond.leftName.equals(alias + "." + keyName) && cond.rightName == null && cond.operator != Condition.op.ne && cond.operator != Condition.op.in) {
 				
 				switch (cond.operator) {
 				case l:
@@ -169,84 +208,255 @@ public class PhyScanIndexOp extends PhyScanOp {
 		}
 		
 		// Seek to first valid rid in index.
+		useKeyRanges();
+		useZoneMap();
+		useBloomFilters();
 		return seekToFirstRid();
 	}
 	
 	/**
-	 * This function seeks to the first valid rid according to high-low key and the index.
+	 * This function cuts high-low key into key ranges with the IN and <> conditions on key, which are then covered by them.
+	 * High-low key becomes the smallest one holding the ranges.
+	 */
+	private void useKeyRanges() {
+		keyRanges = KeyRanges.range(lowKey, highKey);
+		for (int i = 0; i < conditions.size(); ++i) {
+			Condition cond = conditions.get(i);
+			if (!validConditions[i] || cond.leftName == null || !cond.leftName.equals(alias + "." + keyName) || cond.rightName != null)
+				continue;
+			if (cond.operator == Condition.op.in)
+				keyRanges = keyRanges.intersect(cond.ranges);
+			else if (cond.operator == Condition.op.ne)
+				keyRanges = keyRanges.intersect(KeyRanges.of(cond.operator, cond.right));
+			else
+				continue;
+			validConditions[i] = false;
+		}
+		if (keyRanges.isEmpty()) {
+			lowKey = 1;
+			highKey = 0;
+		} else {
+			lowKey = keyRanges.lows[0];
+			highKey = keyRanges.highs[keyRanges.size() - 1];
+		}
+	}
+	
+	/**
+	 * This function finds out whether Bloom filters prove that no tuple satisfies the conditions, either other conditions
+	 * or high-low key when it's a single value.
+	 */
+	private void useBloomFilters() {
+		DBCatalog.AttrInfo keyInfo = DBCatalog.getCatalog().tables.get(fileName).findAttr(keyName);
+		empty = provedEmpty() || (lowKey == highKey && keyInfo.bloom != null && !keyInfo.bloom.mightContain(lowKey));
+	}
+	
+	/**
+	 * This function sets up skipping of data pages by the zone map of data file, if it has one. Every condition is used,
+	 * those in high-low key too, so a clustered scan skips the pages after the last key in range without reading them.
+	 */
+	private void useZoneMap() {
+		ZoneMap zones = ZoneMap.read(dataPath);
+		if (zones == null)
+			return;
+		dataPages = zones.pageFilter(conditions, alias, DBCatalog.getCatalog().tables.get(fileName));
+		try {
+			if (clustered)
+				dataFile1.setPageFilter(dataPages);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * This function seeks to the first valid rid according to key ranges and the index.
 	 * @return
 	 * 		whether this rid exists.
 	 */
 	private boolean seekToFirstRid() {
-		if (highKey < lowKey) {
+		rangeId = 0;
+		if (empty || keyRanges.isEmpty()) {
 			nextRidStart = -1;			// Set end flag.
 			return false;
 		}
 		
 		try {
-			int addr = rootAddr;	// The node being evaluated.
-			int keyNum;
-			int childStart;
+			seekIndex(keyRanges.lows[0]);
+			checkRange();
+			if (nextRidStart == -1)		// No valid in index.
+				return false;
 			
-			// Go through all the index nodes according to lowKey.
-			while (addr > leavesNum) {
-				indexFile.seek(DBCatalog.getCatalog().pageSize * addr);
-				indexFC.read(BB);
-				BB.flip();
-				
-				keyNum = BB.getInt(4);
-				childStart = 8 + keyNum * 4;
-				int childId = 0;
-				for (int i = 0; i < keyNum; ++i) {
-					if (BB.getInt(8 + i * 4) <= lowKey)
-						++childId;
-					else
-						break;
-				}
-				addr = BB.getInt(childStart + childId * 4);
+			if (clustered) {					// For clustered index, jump to data page so that later 
+												// we can just read tuples one by one from clustered data file,
+												// no need to see index anymore.
+				firstPage = BB.getInt(nextRidStart);
+				firstSlot = BB.getInt(nextRidStart + 4);
+				// Currently on page 0. If we plan to go to page 6, jump 6 pages.
+				dataFile1.jumpPages(firstPage);
+				// Next is tuple 0. If we want next to be tuple 6, jump six tuples.
+				for (int j = 0; j < firstSlot; ++j)
+					dataFile1.getNextTuple();
 			}
+			return true;
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		return false;
+	}
+	
+	/**
+	 * This function descends index from root to the first entry whose key is not below a value, or sets the end flag.
+	 * @param
+	 * 		low: the value.
+	 */
+	private void seekIndex(int low) throws IOException {
+		int addr = rootAddr;	// The node being evaluated.
+		int keyNum;
+		int childStart;
+		
+		// Go through all the index nodes according to low.
+		while (addr > leavesNum) {
+			BufferPool.getPool().readPage(indexKey, indexHeader, addr, indexFC, BB);
 			
-			// If lowKey exists in tree, it's in the leaf node assigned by addr now. But if it doesn't, going through following leaves to find the one satisfying lowKey.
-			indexFile.seek(DBCatalog.getCatalog().pageSize * addr);
-			while (addr <= leavesNum) {
-				// Read sequentially so no need to seek.
-				indexFC.read(BB);
-				BB.flip();
-				BBPageAddr = addr;
-				int entryNum = BB.getInt(4);
-				int entryStart = 8;
-				for (int i = 0; i < entryNum; ++i) {
-					if (BB.getInt(entryStart) > highKey) {	// No valid in index. End flag and return.
-						nextRidStart = -1;
-						return false;
-					}
-					if (BB.getInt(entryStart) >= lowKey) {	// Find it.
-						nextEntryStart = entryStart;
-						nextEntryId = i;
-						nextRidStart = entryStart + 8;
-						nextRidId = 0;
-						
-						if (clustered) {					// For clustered index, jump to data page so that later 
-															// we can just read tuples one by one from clustered data file,
-															// no need to see index anymore.
-							// Currently on page 0. If we plan to go to page 6, jump 6 pages.
-							dataFile1.jumpPages(BB.getInt(nextRidStart));
-							// Next is tuple 0. If we want next to be tuple 6, jump six tuples.
-							for (int j = 0; j < BB.getInt(nextRidStart + 4); ++j)
-								dataFile1.getNextTuple();
-						}
-						return true;
-					}
-					entryStart += (8 + BB.getInt(entryStart + 4) * 8);
+			keyNum = BB.getInt(4);
+			childStart = 8 + keyNum * 4;
+			int childId = 0;
+			for (int i = 0; i < keyNum; ++i) {
+				if (BB.getInt(8 + i * 4) <= low)
+					++childId;
+				else
+					break;
+			}
+			addr = BB.getInt(childStart + childId * 4);
+		}
+		
+		// If low exists in tree, it's in the leaf node assigned by addr now. But if it doesn't, going through following leaves to find the one satisfying low.
+		while (addr <= leavesNum) {
+			BufferPool.getPool().readPage(indexKey, indexHeader, addr, indexFC, BB);
+			BBPageAddr = addr;
+			int entryNum = BB.getInt(4);
+			int entryStart = 8;
+			for (int i = 0; i < entryNum; ++i) {
+				if (BB.getInt(entryStart) >= low) {	// Find it.
+					nextEntryStart = entryStart;
+					nextEntryId = i;
+					nextRidStart = entryStart + 8;
+					nextRidId = 0;
+					return;
+				}
+				entryStart += (8 + BB.getInt(entryStart + 4) * 8);
+			}
+			++addr;
+		}
+		nextRidStart = -1;	// Not found. Set end flag.
+	}
+	
+	/**
+	 * This function checks the key of the entry just reached against key ranges. It moves on to the first range whose high end
+	 * is not below the key, or sets the end flag if there is none. If the key is before that range, it moves to the first entry
+	 * of the range, scanning forward if the range starts in the same leaf and descending index again otherwise.
+	 */
+	private void checkRange() throws IOException {
+		while (nextRidStart != -1) {
+			int key = BB.getInt(nextEntryStart);
+			while (key > keyRanges.highs[rangeId]) {
+				if (++rangeId == keyRanges.size()) {
+					nextRidStart = -1;
+					return;
 				}
-				++addr;
 			}
-			nextRidStart = -1;	// Not found. Set end flag and return.
+			int low = keyRanges.lows[rangeId];
+			if (key >= low)
+				return;
+			
+			// Between two ranges.
+			boolean found = false;
+			while (!found && nextEntryId + 1 < BB.getInt(4)) {
+				++nextEntryId;
+				nextEntryStart += (8 + BB.getInt(nextEntryStart + 4) * 8);
+				found = (BB.getInt(nextEntryStart) >= low);
+			}
+			if (found) {
+				nextRidId = 0;
+				nextRidStart = nextEntryStart + 8;
+			} else {
+				seekIndex(low);
+			}
+		}
+	}
+	
+	/**
+	 * This function moves a clustered scan that read a key above the current range to the first range whose high end is not below it.
+	 * If the key is before that range, data pages before the one holding the first record of the range are jumped, found in index.
+	 * @param
+	 * 		key: the key read.
+	 * @return
+	 * 		false if there is no such range.
+	 */
+	private boolean nextKeyRange(int key) throws IOException {
+		while (key > keyRanges.highs[rangeId]) {
+			if (++rangeId == keyRanges.size())
+				return false;
+		}
+		if (key < keyRanges.lows[rangeId]) {
+			seekIndex(keyRanges.lows[rangeId]);
+			checkRange();
+			if (nextRidStart == -1)
+				return false;
+			int page = BB.getInt(nextRidStart);
+			if (page > dataFile1.currentPage())
+				dataFile1.jumpPages(page);
+		}
+		return true;
+	}
+
+	/**
+	 * Copy the whole output to an output file page by page if this scan is clustered and has no condition other than high-low key.
+	 * Records in range run from the first rid found in index to the last one whose key is not above highKey. The page holding
+	 * that one is found by binary search on the first key of every page, because the data file is sorted by key.
+	 * @override from super class PhyScanOp
+	 * @param
+	 * 		out: channel of the output file, positioned at its beginning.
+	 * @return
+	 * 		whether the output was copied.
+	 */
+	@Override
+	public boolean transferTo(FileChannel out) throws IOException {
+		if (!clustered || !probes.isEmpty() || keyRanges.size() > 1)
 			return false;
-		} catch (Exception e) {
-			e.printStackTrace();
+		for (boolean valid : validConditions)
+			if (valid)
+				return false;
+		PageTransfer transfer = PageTransfer.open(dataPath, out);
+		if (transfer == null)
+			return false;
+		transfer.start();
+		if (!empty && highKey >= lowKey && nextRidStart != -1) {
+			
+			// Last page whose first key is in range. Pages without records are at the end.
+			int lastPage = firstPage;
+			int high = transfer.pageCount - 1;
+			while (lastPage < high) {
+				int mid = (lastPage + high + 1) >>> 1;
+				if (transfer.tupleCount(mid) > 0 && transfer.value(mid, 0, keyId) <= highKey)
+					lastPage = mid;
+				else
+					high = mid - 1;
+			}
+			int lastEnd = 0;
+			int count = transfer.tupleCount(lastPage);
+			while (lastEnd < count && transfer.value(lastPage, lastEnd, keyId) <= highKey)
+				++lastEnd;
+			
+			if (lastPage == firstPage) {
+				transfer.copyRows(firstPage, firstSlot, lastEnd);
+			} else {
+				transfer.copyRows(firstPage, firstSlot, transfer.tupleCount(firstPage));
+				transfer.copyPages(firstPage + 1, lastPage);
+				transfer.copyRows(lastPage, 0, lastEnd);
+			}
 		}
-		return false;
+		transfer.close();
+		return true;
 	}
 
 	/**
@@ -256,27 +466,26 @@ public class PhyScanIndexOp extends PhyScanOp {
 	 */
 	@Override
 	public Tuple getNextTuple() {
+		if (sortedRids && !clustered)
+			return nextSortedRidTuple();
 		if (lowKey > highKey || nextRidStart == -1)
 			return null;
 		
 		// For clustered data file, get next one until it satisfies both high-low key and other conditions or come to an end.
+		// Records are tested in place and only copied out when they pass.
 		if (clustered) {
-			Tuple tp = null;
+			TupleView tp = null;
 			try {
-				while ((tp = dataFile1.getNextTuple()) != null) {
-					if (tp.data.get(keyId) > highKey) {
+				while ((tp = dataFile1.nextView(null)) != null) {
+					int key = tp.get(keyId);
+					if (key > keyRanges.highs[rangeId] && !nextKeyRange(key)) {
 						nextRidStart = -1;				// End here.
 						return null;
 					}
-					boolean valid = true;
-					for (int i = 0; i < conditions.size(); ++i) {
-						if (validConditions[i] && !conditions.get(i).test(tp, schema)) {
-							valid = false;
-							break;
-						}
-					}
-					if (valid)							// Satisfies other conditions.
-						return tp;
+					if (key < keyRanges.lows[rangeId])	// Between two ranges.
+						continue;
+					if (satisfies(tp))					// Satisfies other conditions and can be joined.
+						return tp.fill(null);
 				}
 				nextRidStart = -1;						// Data file is over. End here.
 				return null;
@@ -290,51 +499,15 @@ public class PhyScanIndexOp extends PhyScanOp {
 						return null;
 					}
 					
-					// Get current one according to rid. Use random access file to go there.
+					// Get current one according to rid, from a recently used page if possible.
+					// If zone map shows no tuple of the page can satisfy conditions, it's not read at all.
 					int pageId = BB.getInt(nextRidStart);
 					int tupleId = BB.getInt(nextRidStart + 4);
-					dataFile2.seek(pageId * DBCatalog.getCatalog().pageSize + 8 + tupleId * schema.size() * 4);
-					Tuple tp = new Tuple();
-					for (int i = 0; i < schema.size(); ++i)
-						tp.data.add(dataFile2.readInt());
-					
-					// Find next valid rid.
-					if (nextRidId + 1 < BB.getInt(nextEntryStart + 4)) {			// More rid in this entry. Surely valid because same key.
-						++nextRidId;
-						nextRidStart += 8;
-					} else if (nextEntryId + 1 < BB.getInt(4)) {					// Entry is over but this leaf has more entry.
-						++nextEntryId;
-						nextEntryStart += (8 + BB.getInt(nextEntryStart + 4) * 8);
-						nextRidId = 0;
-						nextRidStart = nextEntryStart + 8;
-						
-						if (BB.getInt(nextEntryStart) > highKey)					// The key may be over. There is no next one but current one may still be fine so don't return here.
-																					// If current one fails, will return on next loop on line 257
-							nextRidStart = -1;
-					} else if (BBPageAddr + 1 <= leavesNum) {						// Leaf page is over but has more leaf pages.
-						indexFC.read(BB);											// Sequential read so no need to seek.
-						BB.flip();
-						
-						++BBPageAddr;
-						nextEntryId = 0;
-						nextEntryStart = 8;
-						nextRidId = 0;
-						nextRidStart = nextEntryStart + 8;
-						
-						if (BB.getInt(nextEntryStart) > highKey)					// The key may be over. Same as above.
-							nextRidStart = -1;
-					} else {														// Index is over.
-						nextRidStart = -1;
-					}
+					boolean skipped = (dataPages != null && !dataPages.test(pageId));
+					Tuple tp = (skipped ? null : dataFile2.fetch(pageId, tupleId));
 					
-					boolean valid = true;
-					for (int i = 0; i < conditions.size(); ++i) {
-						if (validConditions[i] && !conditions.get(i).test(tp, schema)) {
-							valid = false;
-							break;
-						}
-					}
-					if (valid)														// Satisfy other conditions.
+					nextRid();
+					if (tp != null && satisfies(tp))								// Satisfy other conditions and can be joined.
 						return tp;
 				}
 			} catch (IOException e) {
@@ -344,6 +517,114 @@ public class PhyScanIndexOp extends PhyScanOp {
 		
 		return null;
 	}
+	
+	/**
+	 * This function returns next tuple in sorted rid mode. Rids satisfying high-low key are collected from index
+	 * and sorted the first time, then tuples are fetched in rid order so that every data page is read once.
+	 * @return
+	 * 		next tuple in the output of this node.
+	 */
+	private Tuple nextSortedRidTuple() {
+		try {
+			if (rids == null)
+				collectRids();
+			while (ridPos < ridCount) {
+				int pageId = (int) (rids[ridPos] >>> 32);
+				int tupleId = (int) rids[ridPos];
+				++ridPos;
+				if (dataPages != null && !dataPages.test(pageId))
+					continue;
+				Tuple tp = dataFile2.fetch(pageId, tupleId);
+				if (tp != null && satisfies(tp))
+					return tp;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
+	
+	/**
+	 * This function collects every rid from the current one on that satisfies high-low key, and sorts them by page.
+	 */
+	private void collectRids() throws IOException {
+		rids = new long [64];
+		ridCount = 0;
+		ridPos = 0;
+		while (nextRidStart != -1) {
+			if (ridCount == rids.length)
+				rids = Arrays.copyOf(rids, ridCount * 2);
+			rids[ridCount++] = ((long) BB.getInt(nextRidStart) << 32) | BB.getInt(nextRidStart + 4);
+			nextRid();
+		}
+		Arrays.sort(rids, 0, ridCount);
+	}
+	
+	/**
+	 * Method that builds output schema of this node, and compiles the conditions not covered by high-low key on it.
+	 * Must be called after initialize.
+	 * @override from super class PhyScanOp
+	 */
+	@Override
+	public void buildSchema() {
+		super.buildSchema();
+		Vector<Condition> valid = new Vector<>();
+		for (int i = 0; i < conditions.size(); ++i)
+			if (validConditions[i])
+				valid.add(conditions.get(i));
+		filter = CompiledCondition.compile(valid, schema);
+	}
+	
+	/**
+	 * This function tests whether a tuple satisfies the conditions not covered by high-low key, and Bloom probes.
+	 * @param
+	 * 		tp: the tuple.
+	 * @return
+	 * 		whether it belongs to the output.
+	 */
+	private boolean satisfies(Tuple tp) {
+		return filter.test(tp) && passProbes(tp);
+	}
+	
+	/**
+	 * This function tests a record seen in place the same way, reading only the columns tested.
+	 * @param
+	 * 		tp: view of the record.
+	 * @return
+	 * 		whether it belongs to the output.
+	 */
+	private boolean satisfies(TupleView tp) {
+		return filter.test(tp) && passProbes(tp);
+	}
+	
+	/**
+	 * This function moves to the next rid in index that satisfies key ranges, or sets the end flag.
+	 */
+	private void nextRid() throws IOException {
+		if (nextRidId + 1 < BB.getInt(nextEntryStart + 4)) {			// More rid in this entry. Surely valid because same key.
+			++nextRidId;
+			nextRidStart += 8;
+		} else if (nextEntryId + 1 < BB.getInt(4)) {					// Entry is over but this leaf has more entry.
+			++nextEntryId;
+			nextEntryStart += (8 + BB.getInt(nextEntryStart + 4) * 8);
+			nextRidId = 0;
+			nextRidStart = nextEntryStart + 8;
+			
+			checkRange();												// The key may be between two ranges or over. Move to the next range or set the end flag,
+																		// current one may still be fine so the caller decides.
+		} else if (BBPageAddr + 1 <= leavesNum) {						// Leaf page is over but has more leaf pages.
+			++BBPageAddr;
+			BufferPool.getPool().readPage(indexKey, indexHeader, BBPageAddr, indexFC, BB);
+			nextEntryId = 0;
+			nextEntryStart = 8;
+			nextRidId = 0;
+			nextRidStart = nextEntryStart + 8;
+			
+			checkRange();												// The key may be over. Same as above.
+		} else {														// Index is over.
+			nextRidStart = -1;
+		}
+	}
 
 	/**
 	 * Method that reset output of this node to the beginning. Return to status just after construction.
@@ -352,13 +633,15 @@ public class PhyScanIndexOp extends PhyScanOp {
 	@Override
 	public void reset() {
 		try {
-			indexFile.seek(DBCatalog.getCatalog().pageSize);	// Read one page in constructor so return to second page.
-			
 			// If clustered, reset tuple reader
 			if (clustered) {
 				dataFile1.reset();
 			}
-			// If unclustered, a random access file is used after seeking every time so no need to reset.
+			// If unclustered, tuples are fetched by rid so no need to reset. Rids collected in sorted rid mode stay valid.
+			if (rids != null) {
+				ridPos = 0;
+				return;
+			}
 			
 			// Get first valid rid according to index.
 			seekToFirstRid();
@@ -378,6 +661,8 @@ public class PhyScanIndexOp extends PhyScanOp {
 	public String toString() {
 		String lowS = (lowKey == Integer.MIN_VALUE ? "null" : Integer.toString(lowKey));
 		String highS = (highKey == Integer.MAX_VALUE ? "null" : Integer.toString(highKey));
+		if (keyRanges != null && keyRanges.size() > 1)
+			return String.format("IndexScan[%s,%s,%s,%s,%s]", fileName, keyName, lowS, highS, keyRanges.toString());
 		return String.format("IndexScan[%s,%s,%s,%s]", fileName, keyName, lowS, highS);
 	}
 }
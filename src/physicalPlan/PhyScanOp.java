@@ -1,16 +1,74 @@
 package physicalPlan;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Vector;
+
+import base.BloomFilter;
+import base.Condition;
 import base.DBCatalog;
+import base.Tuple;
+import base.TupleBatch;
+import base.TupleView;
 
 /**
  * Base class of scan physical scan operator
- * 
+ * Bloom filters of attributes in DBCatalog are used in two ways. A scan whose conditions bind an attribute to a value
+ * its filter does not hold outputs nothing without reading anything. And a scan drops tuples whose value of an
+ * attribute joined by equality is not in the filter of the attribute on the other side, see BloomProbe.
+ *
  * @author Enze Zhou ez242
  */
 public abstract class PhyScanOp extends PhyCondOp {
-	
+
 	public String fileName = "";		// File name that is to be scanned. Full path can be obtained by inferring DBCatalog.
 	public String alias = "";			// Alias of this file. If no alias is provided, it will be the same as the fileName to simplify program.
-	
+	public Vector<BloomProbe> probes = new Vector<>();	// Filters output tuples must pass, from equality join conditions.
+
+	/*
+	 * A Bloom filter an attribute of output tuples must pass, because the attribute is joined by equality with another
+	 * one whose values are in the filter. Tuples failing it can't be joined, so dropping them does not change the result.
+	 * A probe that keeps almost every tuple is not worth its cost, so it's dropped after a while.
+	 */
+	public static final class BloomProbe {
+		private static final int TRIAL = 4096;			// Number of tests before a probe is judged.
+		private static final double USELESS = 0.9;		// A probe passing this share of tuples is dropped.
+
+		public final String attr;						// Full name of the attribute tested.
+		public final BloomFilter filter;
+		private int tested = 0;
+		private int passed = 0;
+
+		/**
+		 * Constructor.
+		 * @param
+		 * 		attr: full name of the attribute tested.
+		 * 		filter: filter of the values of the attribute it's joined with.
+		 */
+		public BloomProbe(String attr, BloomFilter filter) {
+			this.attr = attr;
+			this.filter = filter;
+		}
+
+		/*
+		 * Test a value and count the result.
+		 */
+		private boolean test(int value) {
+			++tested;
+			if (!filter.mightContain(value))
+				return false;
+			++passed;
+			return true;
+		}
+
+		/*
+		 * Whether this probe has been tested enough to show it's not worth keeping.
+		 */
+		private boolean useless() {
+			return tested >= TRIAL && passed > tested * USELESS;
+		}
+	}
+
 	/**
 	 * Method that build output schema of this node.
 	 * @override from super class Operator
@@ -21,7 +79,139 @@ public abstract class PhyScanOp extends PhyCondOp {
 			schema.put(alias + "." + DBCatalog.getCatalog().tables.get(fileName).attrs.get(i).name, i);
 		}
 	}
-	
+
+	/**
+	 * Test a tuple of the output against Bloom probes.
+	 * @param
+	 * 		tuple: the tuple, in the schema of this operator.
+	 * @return
+	 * 		whether it passes all of them.
+	 */
+	protected boolean passProbes(Tuple tuple) {
+		for (int i = probes.size() - 1; i >= 0; --i) {
+			BloomProbe probe = probes.get(i);
+			Integer id = schema.get(probe.attr);
+			if (id == null)
+				continue;
+			boolean pass = probe.test(tuple.values[id]);
+			if (probe.useless())
+				probes.remove(i);
+			if (!pass)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Test a record of the output seen in place against Bloom probes. Only the columns probed are read.
+	 * @param
+	 * 		view: view of the record, in the schema of this operator.
+	 * @return
+	 * 		whether it passes all of them.
+	 */
+	protected boolean passProbes(TupleView view) {
+		for (int i = probes.size() - 1; i >= 0; --i) {
+			BloomProbe probe = probes.get(i);
+			Integer id = schema.get(probe.attr);
+			if (id == null)
+				continue;
+			boolean pass = probe.test(view.get(id));
+			if (probe.useless())
+				probes.remove(i);
+			if (!pass)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Filter a batch of the output with Bloom probes.
+	 * @param
+	 * 		batch: the batch, in the schema of this operator.
+	 * @return
+	 * 		number of rows left in its selection vector.
+	 */
+	protected int filterProbes(TupleBatch batch) {
+		for (int i = probes.size() - 1; i >= 0 && batch.selCount > 0; --i) {
+			BloomProbe probe = probes.get(i);
+			Integer id = schema.get(probe.attr);
+			if (id == null)
+				continue;
+			int [] col = batch.columns[id];
+			int count = 0;
+			for (int j = 0; j < batch.selCount; ++j) {
+				int row = batch.sel[j];
+				if (probe.test(col[row]))
+					batch.sel[count++] = row;
+			}
+			batch.selCount = count;
+			if (probe.useless())
+				probes.remove(i);
+		}
+		return batch.selCount;
+	}
+
+	/**
+	 * Test whether Bloom filters prove that no tuple satisfies the conditions of this scan, because they bind
+	 * an attribute to a single value the attribute never has.
+	 * @return
+	 * 		true if the output is surely empty.
+	 */
+	protected boolean provedEmpty() {
+		HashMap<String, Long> lows = new HashMap<>();
+		HashMap<String, Long> highs = new HashMap<>();
+		for (Condition cond : conditions) {
+			if (cond.leftName == null || cond.rightName != null)
+				continue;
+			long low = Long.MIN_VALUE;
+			long high = Long.MAX_VALUE;
+			switch (cond.operator) {
+			case e:
+				low = high = cond.right;
+				break;
+			case ge:
+				low = cond.right;
+				break;
+			case g:
+				low = cond.right + 1L;
+				break;
+			case le:
+				high = cond.right;
+				break;
+			case l:
+				high = cond.right - 1L;
+				break;
+			default:
+				continue;
+			}
+			lows.merge(cond.leftName, low, Math::max);
+			highs.merge(cond.leftName, high, Math::min);
+		}
+		DBCatalog.RelationInfo relation = DBCatalog.getCatalog().tables.get(fileName);
+		for (String attr : lows.keySet()) {
+			long value = lows.get(attr);
+			if (value != highs.get(attr) || !attr.startsWith(alias + "."))
+				continue;
+			DBCatalog.AttrInfo info = relation.findAttr(attr.substring(alias.length() + 1));
+			if (info != null && info.bloom != null && !info.bloom.mightContain((int) value))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Copy the whole output of this scan to an output file page by page, if it's the records of a run of pages of the
+	 * relation file as they are stored and the file is in the layout of output files, see PageTransfer.
+	 * Nothing is written if it's not. The output of this operator is not touched either way.
+	 * @param
+	 * 		out: channel of the output file, positioned at its beginning.
+	 * @return
+	 * 		whether the output was copied.
+	 */
+	public boolean transferTo(FileChannel out) throws IOException {
+		return false;
+	}
+
 	/**
 	 * Get string representation of this operator.
 	 * @see java.lang.Object#toString()
@@ -4,6 +4,7 @@ import java.util.PriorityQueue;
 import java.util.Vector;
 
 import base.Tuple;
+import base.TupleBatch;
 
 /*
  * Brute force implementation of sort operator
@@ -15,6 +16,7 @@ public final class PhySortBfOp extends PhySortOp {
 
 	private PriorityQueue<Tuple> heap = null;   // Buffer to store all child tuples.
 	public Vector<Integer> sortAttrsIndex = null;
+	private TupleBatch batch = null;			// Batch returned by getNextBatch.
 
 	
 	/*
@@ -35,6 +37,29 @@ public final class PhySortBfOp extends PhySortOp {
 		return heap.poll();
 	}
 
+	/*
+	 * Method that returns next batch in the output of this node. Sorted tuples are polled straight into the batch.
+	 * @override from super class PhyOp
+	 * @return next batch with at least one alive row, or null if the output is over.
+	 */
+	@Override
+	public TupleBatch getNextBatch() {
+		if (heap == null) {
+			buildHeap();
+		}
+		if (heap.isEmpty()) {
+			return null;
+		}
+		if (batch == null) {
+			batch = new TupleBatch(heap.peek().arity, TupleBatch.DEFAULT_CAPACITY);
+		}
+		batch.clear();
+		while (!batch.isFull() && !heap.isEmpty()) {
+			batch.addRow(heap.poll());
+		}
+		return batch;
+	}
+
 	/*
 	 * Method that resets output of this node to the beginning.
 	 * @override from super class Operator
@@ -78,14 +103,14 @@ public final class PhySortBfOp extends PhySortOp {
 		 */
 		public int compare(Tuple t1, Tuple t2) {
 			if (sortAttrsIndex==null) {
-				for (int j = 0; j < t1.data.size(); ++j) {
-					int ret = t1.data.get(j).compareTo(t2.data.get(j));
+				for (int j = 0; j < t1.arity; ++j) {
+					int ret = Integer.compare(t1.values[j], t2.values[j]);
 					if (ret != 0) return ret;
 				}
 				return 0;
 			}
 			for(int index: sortAttrsIndex) {
-				int result = t1.data.get(index).compareTo(t2.data.get(index));
+				int result = Integer.compare(t1.values[index], t2.values[index]);
 				if(result != 0) {
 					return result;
 				}
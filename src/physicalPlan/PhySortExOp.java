@@ -1,6 +1,5 @@
 package physicalPlan;
 
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -12,7 +11,9 @@ import java.util.PriorityQueue;
 import java.util.Vector;
 
 import base.DBCatalog;
+import base.FileHeader;
 import base.Tuple;
+import base.TupleBatch;
 import base.TupleReader;
 import base.TupleWriter;
 
@@ -36,6 +37,7 @@ public final class PhySortExOp extends PhySortOp {
 	private int B;                                                       // Number of Buffer Pages to be used in the sort
 	private PriorityQueue<Tuple> internal = null;                        // Buffer to store B page of child tuples
 	private boolean isSorted = false;                                    // flag of whether the sort has been performed or not
+	private TupleBatch batch = null;                                     // The batch returned by getNextBatch
 //	public boolean binary = true;                                       // flag of whether binary or human-readable format is used for scratch files (for debugging)
 	public Vector<Integer> sortAttrsIndex = null;                       // Index of the attributes the tuples from child operator will be sorted on
 	
@@ -69,12 +71,9 @@ public final class PhySortExOp extends PhySortOp {
 	}
 	
 	/*
-	 * Method that returns next tuple in the output of this node.
-	 * @override from super class Operator
-	 * @return next tuple in the output of this node.
+	 * Perform the sort if it has not been performed, and open a TupleReader on the Full Sorted File.
 	 */
-	@Override
-	public Tuple getNextTuple() {
+	private void prepareResult() {
 		if(!isSorted) {
 			try{
 				externalSort();
@@ -91,6 +90,22 @@ public final class PhySortExOp extends PhySortOp {
 			if(TR == null) {
 				TR = new TupleReader(tempsubdir + "/sortResult");
 			}
+		} catch(Exception e) {
+			System.err.println("Exception occurred for reading in external sort result for: " + tempsubdir);
+			System.err.println(e.toString());
+			e.printStackTrace();
+		}
+	}
+	
+	/*
+	 * Method that returns next tuple in the output of this node.
+	 * @override from super class Operator
+	 * @return next tuple in the output of this node.
+	 */
+	@Override
+	public Tuple getNextTuple() {
+		prepareResult();
+		try{
 			Tuple next = TR.getNextTuple();
 			if(next == null) {
 				return null;
@@ -106,6 +121,31 @@ public final class PhySortExOp extends PhySortOp {
 		return null;
 	}
 	
+	/*
+	 * Method that returns next batch in the output of this node, read straight from the Full Sorted File.
+	 * @override from super class PhyOp
+	 * @return next batch with at least one alive row, or null if the output is over.
+	 */
+	@Override
+	public TupleBatch getNextBatch() {
+		prepareResult();
+		if(batch == null) {
+			batch = new TupleBatch(schema.size(), TupleBatch.DEFAULT_CAPACITY);
+		}
+		try{
+			if(TR.readBatch(batch) == 0) {
+				return null;
+			}
+			return batch;
+		} catch(Exception e) {
+			System.err.println("Exception occurred for reading in external sort result for: " + tempsubdir);
+			System.err.println(e.toString());
+			e.printStackTrace();
+		}
+		
+		return null;
+	}
+	
 	/*
 	 * Method that resets output of this node to the beginning.
 	 * @override from super class Operator
@@ -133,7 +173,7 @@ public final class PhySortExOp extends PhySortOp {
 		 */
 		// Read in from child；Write out runs of B pages;
 		
-		int numPerRun = B * 4096 / (schema.size() * 4); // # of tuples per run given in Pass0
+		int numPerRun = B * DBCatalog.getCatalog().pageSize / (schema.size() * 4); // # of tuples per run given in Pass0
 		boolean buildMore;
 		int numRuns = 0;
 		if(sortAttrsIndex == null) {
@@ -148,9 +188,9 @@ public final class PhySortExOp extends PhySortOp {
 			// write out the (numRuns)th run
 			TupleWriter TW;
 			if(!buildMore && numRuns == 1) {
-				TW = new TupleWriter(new FileOutputStream(tempsubdir + "sortResult"));
+				TW = new TupleWriter(tempsubdir + "sortResult", true, FileHeader.forTemp());
 			} else {
-				TW = new TupleWriter(new FileOutputStream(tempsubdir + "0_" + numRuns));
+				TW = new TupleWriter(tempsubdir + "0_" + numRuns, true, FileHeader.forTemp());
 			}
 			while(!internal.isEmpty()) {
 //				System.out.println(internal.peek().data);
@@ -197,7 +237,7 @@ public final class PhySortExOp extends PhySortOp {
 						marker = j;
 						break;
 					}
-					mergeReader[j] = new TupleReader(tempsubdir + String.valueOf(pass-1) + "_" + runIndex);
+					mergeReader[j] = new TupleReader(tempsubdir + String.valueOf(pass-1) + "_" + runIndex, false, 2); // double buffering for every run
 				}
 				
 //				System.out.println("Pass" + pass + "," + i + "th Run");
@@ -213,9 +253,9 @@ public final class PhySortExOp extends PhySortOp {
 				
 				TupleWriter TW;
 				if(numRunsToBuild == 1) {
-					TW = new TupleWriter(new FileOutputStream(tempsubdir + "sortResult"));
+					TW = new TupleWriter(tempsubdir + "sortResult", true, FileHeader.forTemp());
 				} else {
-					TW = new TupleWriter(new FileOutputStream(tempsubdir + pass + "_" + String.valueOf(i + 1)));
+					TW = new TupleWriter(tempsubdir + pass + "_" + String.valueOf(i + 1), true, FileHeader.forTemp());
 				}
 				while(!tempMerg.isEmpty()) {
 					Tuple temp = tempMerg.poll();
@@ -270,14 +310,14 @@ public final class PhySortExOp extends PhySortOp {
 	private class exComparator implements Comparator<Tuple> {
 		public int compare(Tuple t1, Tuple t2) {
 			if (sortAttrsIndex==null) {
-				for (int j = 0; j < t1.data.size(); ++j) {
-					int ret = t1.data.get(j).compareTo(t2.data.get(j));
+				for (int j = 0; j < t1.arity; ++j) {
+					int ret = Integer.compare(t1.values[j], t2.values[j]);
 					if (ret != 0) return ret;
 				}
 				return 0;
 			}
 			for(int index: sortAttrsIndex) {
-				int result = t1.data.get(index).compareTo(t2.data.get(index));
+				int result = Integer.compare(t1.values[index], t2.values[index]);
 				if(result != 0) {
 					return result;
 				}